@@ -0,0 +1,10 @@
+-- Optional: covering indexes on the shared Flights table for the one-stop search legs (see
+-- Query.FIRST_LEGS_SQL and SECOND_LEGS_SQL), which otherwise scan Flights.
+--
+-- createTables.sql leaves the base tables alone, so these are not part of it.  Run this once
+-- against a database you own the Flights table of; the indexes are only created if missing and
+-- are never dropped.
+
+IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_Flights_origin_day_price') CREATE INDEX IX_Flights_origin_day_price ON Flights(origin_city, day_of_month, price) INCLUDE (fid, dest_city, carrier_id, flight_num, actual_time, capacity, canceled);
+
+IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_Flights_dest_day_price') CREATE INDEX IX_Flights_dest_day_price ON Flights(dest_city, day_of_month, price) INCLUDE (fid, origin_city, carrier_id, flight_num, actual_time, capacity, canceled);
@@ -42,13 +42,25 @@ CREATE TABLE Users_yshubber(
     balance INT NOT NULL
 );
 
+-- day_of_month is copied from the itinerary's flights so that the one-booking-per-day rule
+-- can be enforced by a unique key instead of by reading every reservation of the user.
 CREATE TABLE Reservations_yshubber(
-    rid VARCHAR(20) PRIMARY KEY,
+    rid INT PRIMARY KEY,
     userId VARCHAR(20) NOT NULL,
     paid INT NOT NULL,
     DirectFlightId INT NOT NULL,
     IndirectFlightId INT,
+    day_of_month INT NOT NULL,
     FOREIGN KEY(userId) REFERENCES Users_yshubber(username),
     FOREIGN KEY(DirectFlightId) REFERENCES Flights(fid),
-    FOREIGN KEY(IndirectFlightId) REFERENCES Flights(fid)
+    FOREIGN KEY(IndirectFlightId) REFERENCES Flights(fid),
+    CONSTRAINT UQ_Reservations_yshubber_userDay UNIQUE (userId, day_of_month)
 );
+
+-- Precomputed one-stop connections (see ConnectionsRefresher), so that a one-stop search is a
+-- single seek on (origin, dest, day) already ordered by total time.  These are derived from the
+-- shared Flights table, so they are created once and kept.
+IF OBJECT_ID('FlightConnections') IS NULL CREATE TABLE FlightConnections(origin_city VARCHAR(34) NOT NULL, dest_city VARCHAR(34) NOT NULL, day_of_month INT NOT NULL, total_time INT NOT NULL, fid1 INT NOT NULL, fid2 INT NOT NULL, CONSTRAINT PK_FlightConnections PRIMARY KEY (origin_city, dest_city, day_of_month, total_time, fid1, fid2));
+
+-- SHA-256 (in hex) of each day's Flights rows as of the last refresh of that day's connections.
+IF OBJECT_ID('FlightConnectionDays') IS NULL CREATE TABLE FlightConnectionDays(day_of_month INT PRIMARY KEY, flights_checksum CHAR(64) NOT NULL, refreshed_at DATETIME2 NOT NULL);
@@ -0,0 +1,226 @@
+package flightapp;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control in front of FlightService.execute(), so that one client looping a command
+ * can't take the database (or, for login and create, the password hashing CPU) away from
+ * everyone else.
+ *
+ * Each command first goes through a token bucket for its (operation, user), refilled at
+ * flightapp.admission.[op].rate tokens per second up to flightapp.admission.[op].burst tokens,
+ * where [op] is login, resume, create, search, book, pay or reservations (rates may have a
+ * fraction, eg 0.2 for one command every 5 seconds).  It then needs one of the
+ * flightapp.admission.[op].concurrency permits of its operation, waiting at most
+ * flightapp.admission.wait_ms (default 0) for one.  Commands failing either check get a
+ * rejection response right away and never reach the database.  A rate or concurrency of 0
+ * turns that check off for the operation.  Enabled with flightapp.admission=true.
+ *
+ * The buckets use GCRA (the generic cell rate algorithm): a bucket is a single AtomicLong
+ * holding the time at which it will be full again, updated with one compare-and-set, in a
+ * ConcurrentHashMap whose lookups don't lock.  A bucket that is full is the same as no bucket,
+ * so once an operation has more than flightapp.admission.max_keys buckets the full ones are
+ * dropped: each new bucket looks at the next SWEEP_BATCH buckets, picking up where the previous
+ * one stopped, so the cost on the request path stays constant however many buckets there are.
+ */
+public class AdmissionControl {
+  // Buckets looked at per new bucket once there are too many
+  static final int SWEEP_BATCH = 64;
+
+  private static final AdmissionControl SHARED =
+      DBConnUtils.getBooleanProperty("flightapp.admission", false) ? fromSettings() : null;
+
+  /**
+   * The admission control of this process, or null if it's turned off
+   */
+  public static AdmissionControl shared() {
+    return SHARED;
+  }
+
+  /**
+   * Rate limit and concurrency limit of one operation
+   */
+  public static class Limits {
+    final long intervalNanos;   // between two tokens
+    final long toleranceNanos;  // how far ahead of now a bucket's full time may run
+    final int concurrency;
+
+    /**
+     * @param ratePerSec  sustained commands per second per user, 0 for no limit
+     * @param burst       commands a user can send at once after being idle
+     * @param concurrency commands of this operation running at once, 0 for no limit
+     */
+    public Limits(double ratePerSec, int burst, int concurrency) {
+      this.intervalNanos = ratePerSec > 0 ? (long) (1e9 / ratePerSec) : 0;
+      this.toleranceNanos = intervalNanos * Math.max(burst, 1);
+      this.concurrency = concurrency;
+    }
+  }
+
+  private static AdmissionControl fromSettings() {
+    int cores = Runtime.getRuntime().availableProcessors();
+    Map<CommandMetrics.Operation, Limits> limits = new EnumMap<>(CommandMetrics.Operation.class);
+    limits.put(CommandMetrics.Operation.LOGIN, limitsFromSettings("login", 5, 10, cores));
+    // a resume looks up the user's password hash to check the token, so it is limited like login
+    limits.put(CommandMetrics.Operation.RESUME, limitsFromSettings("resume", 5, 10, cores));
+    limits.put(CommandMetrics.Operation.CREATE, limitsFromSettings("create", 2, 5, cores));
+    limits.put(CommandMetrics.Operation.SEARCH, limitsFromSettings("search", 20, 40, 64));
+    limits.put(CommandMetrics.Operation.BOOK, limitsFromSettings("book", 5, 10, 32));
+    limits.put(CommandMetrics.Operation.PAY, limitsFromSettings("pay", 5, 10, 32));
+    limits.put(CommandMetrics.Operation.RESERVATIONS,
+               limitsFromSettings("reservations", 10, 20, 64));
+    return new AdmissionControl(limits,
+                                DBConnUtils.getIntProperty("flightapp.admission.wait_ms", 0),
+                                DBConnUtils.getIntProperty("flightapp.admission.max_keys", 100000));
+  }
+
+  private static Limits limitsFromSettings(String op, double rate, int burst, int concurrency) {
+    String prefix = "flightapp.admission." + op + ".";
+    return new Limits(DBConnUtils.getDoubleProperty(prefix + "rate", rate),
+                      DBConnUtils.getIntProperty(prefix + "burst", burst),
+                      DBConnUtils.getIntProperty(prefix + "concurrency", concurrency));
+  }
+
+  private final Map<CommandMetrics.Operation, Limits> limits;
+  private final Map<CommandMetrics.Operation, ConcurrentHashMap<String, AtomicLong>> buckets =
+      new EnumMap<>(CommandMetrics.Operation.class);
+  private final Map<CommandMetrics.Operation, Semaphore> running =
+      new EnumMap<>(CommandMetrics.Operation.class);
+  private final long waitMs;
+  private final int maxKeys;
+  private final AtomicBoolean sweeping = new AtomicBoolean();
+  // where each operation's sweep stopped; only used by the thread that set sweeping
+  private final Map<CommandMetrics.Operation, Iterator<AtomicLong>> sweepCursors =
+      new EnumMap<>(CommandMetrics.Operation.class);
+
+  /**
+   * @param limits operations without limits are always admitted
+   */
+  public AdmissionControl(Map<CommandMetrics.Operation, Limits> limits, long waitMs,
+                          int maxKeys) {
+    this.limits = new EnumMap<>(limits);
+    for (Map.Entry<CommandMetrics.Operation, Limits> entry : this.limits.entrySet()) {
+      buckets.put(entry.getKey(), new ConcurrentHashMap<>());
+      if (entry.getValue().concurrency > 0) {
+        running.put(entry.getKey(), new Semaphore(entry.getValue().concurrency));
+      }
+    }
+    this.waitMs = waitMs;
+    this.maxKeys = maxKeys;
+  }
+
+  /**
+   * Decides whether {@code user} may run {@code op} now.
+   *
+   * @return null if the command is admitted, in which case release() must be called once it's
+   *         done; otherwise the response to send back instead of running it
+   */
+  public String admit(CommandMetrics.Operation op, String user) {
+    Limits limit = limits.get(op);
+    if (limit == null) {
+      return null;
+    }
+    if (limit.intervalNanos > 0) {
+      long waitNanos = take(op, user.toLowerCase(Locale.ROOT), limit, System.nanoTime());
+      if (waitNanos > 0) {
+        CommandMetrics.global().recordRejection(op);
+        return "Too many " + op.name().toLowerCase(Locale.ROOT) + " requests, retry in "
+            + TimeUnit.NANOSECONDS.toMillis(waitNanos + 999_999) + "ms\n";
+      }
+    }
+    Semaphore permits = running.get(op);
+    if (permits != null && !acquire(permits)) {
+      CommandMetrics.global().recordRejection(op);
+      return "Server busy, retry later\n";
+    }
+    return null;
+  }
+
+  /**
+   * Ends a command that admit() let through
+   */
+  public void release(CommandMetrics.Operation op) {
+    Semaphore permits = running.get(op);
+    if (permits != null) {
+      permits.release();
+    }
+  }
+
+  /**
+   * Takes a token from the user's bucket, returning 0, or returns how long until the bucket
+   * has one again
+   */
+  long take(CommandMetrics.Operation op, String key, Limits limit, long now) {
+    ConcurrentHashMap<String, AtomicLong> opBuckets = buckets.get(op);
+    AtomicLong fullAt = opBuckets.get(key);
+    if (fullAt == null) {
+      if (opBuckets.size() >= maxKeys) {
+        sweep(op, now);
+      }
+      fullAt = opBuckets.computeIfAbsent(key, k -> new AtomicLong(now));
+    }
+    while (true) {
+      long current = fullAt.get();
+      long next = Math.max(current, now) + limit.intervalNanos;
+      long waitNanos = next - now - limit.toleranceNanos;
+      if (waitNanos > 0) {
+        return waitNanos;
+      }
+      if (fullAt.compareAndSet(current, next)) {
+        return 0;
+      }
+    }
+  }
+
+  int bucketCount(CommandMetrics.Operation op) {
+    return buckets.get(op).size();
+  }
+
+  private boolean acquire(Semaphore permits) {
+    if (waitMs <= 0) {
+      return permits.tryAcquire();
+    }
+    try {
+      return permits.tryAcquire(waitMs, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Drops those of the next SWEEP_BATCH buckets of {@code op} that are full again; one thread
+   * at a time, the others don't wait
+   */
+  private void sweep(CommandMetrics.Operation op, long now) {
+    if (!sweeping.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      Iterator<AtomicLong> cursor = sweepCursors.get(op);
+      for (int i = 0; i < SWEEP_BATCH; i++) {
+        if (cursor == null || !cursor.hasNext()) {
+          // the map's iterators are weakly consistent, so a new one is the way back to the start
+          cursor = buckets.get(op).values().iterator();
+          if (!cursor.hasNext()) {
+            break;
+          }
+        }
+        if (cursor.next().get() - now <= 0) {
+          cursor.remove();
+        }
+      }
+      sweepCursors.put(op, cursor);
+    } finally {
+      sweeping.set(false);
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package flightapp;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for the asynchronous QueryAbstract operations (loginAsync(), searchAsync(), ...).
+ *
+ * Each async operation runs the blocking JDBC calls of the synchronous one on an executor
+ * thread.  On a JDK with virtual threads (21+) the default is a virtual thread per operation;
+ * on older JDKs, or with flightapp.async.executor=fixed, it's a pool of
+ * flightapp.async.threads (default 64) daemon threads.  The JDK is detected at run time, as
+ * the code is compiled for Java 11.
+ *
+ * Note that the JDBC driver blocks inside synchronized blocks, which pins a virtual thread to
+ * its carrier thread on JDKs before 24, so there the number of concurrent database calls is
+ * still bounded by the carrier pool (jdk.virtualThreadScheduler.parallelism).
+ */
+public class AsyncExecutors {
+  private static ExecutorService shared;
+
+  /**
+   * The executor used by sessions that weren't given one with QueryAbstract.setAsyncExecutor()
+   */
+  public static synchronized ExecutorService shared() {
+    if (shared == null) {
+      String kind = DBConnUtils.getProperty("flightapp.async.executor", "virtual");
+      if (!kind.equals("fixed")) {
+        shared = newVirtualThreadExecutor();
+      }
+      if (shared == null) {
+        shared = newFixedThreadPool(DBConnUtils.getIntProperty("flightapp.async.threads", 64));
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * An executor that starts a virtual thread per task, or null if this JDK has none
+   */
+  public static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  /**
+   * A pool of {@code threads} daemon threads, so that an idle pool doesn't keep the JVM alive
+   */
+  public static ExecutorService newFixedThreadPool(int threads) {
+    AtomicInteger count = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "flightapp-async-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+}
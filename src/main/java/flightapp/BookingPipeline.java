@@ -0,0 +1,472 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit for bookings.
+ *
+ * Instead of every session committing its own reservation insert, sessions hand their
+ * bookings to this pipeline and wait on a future.  A single writer thread collects up to
+ * batchSize bookings (waiting at most lingerMs for more to arrive), validates them together,
+ * inserts them with one JDBC batch and commits once, so a burst of N bookings costs a handful
+ * of round trips and one log flush instead of N of each.  What that does to booking throughput
+ * hasn't been measured (see the book scenario of QueryBenchmark).
+ *
+ * Enabled for Query with flightapp.booking.pipeline=true; flightapp.booking.batch_size and
+ * flightapp.booking.linger_ms tune the batching, and a session gives up waiting on its
+ * booking after flightapp.booking.timeout_ms (default 10000).  A batch that fails with
+ * anything unexpected fails its bookings rather than stopping the writer, and so does one that
+ * still deadlocks after MAX_ATTEMPTS tries with a growing random backoff.  The shared pipelines
+ * are closed by closeShared(), which runs at shutdown.  With StatementTimer
+ * on, each booking's result carries its share of the round trips and rows the writer spent on
+ * its batch, so they count for the submitting command.
+ *
+ * A pipeline books on one shard (see Shards) and numbers its reservations like
+ * INSERT_BOOKING_SQL does there, so a sharded Query has one pipeline per shard.  Like the
+ * direct path, it leaves the capacity check to Query.transaction_book, so a booking gets the
+ * same result however many shards there are.
+ */
+public class BookingPipeline implements AutoCloseable {
+  /**
+   * What happened to a submitted booking
+   */
+  public enum Status {
+    BOOKED, SAME_DAY, FAILED
+  }
+
+  /**
+   * The result of a booking: its status, and its reservation ID if it was booked
+   */
+  public static class Result {
+    public final Status status;
+    public final int rid;
+    // this booking's share of the writer's statements, see StatementTimer.addToCommand()
+    final StatementTimer.CommandStats statements;
+
+    Result(Status status, int rid) {
+      this(status, rid, StatementTimer.CommandStats.NONE);
+    }
+
+    Result(Status status, int rid, StatementTimer.CommandStats statements) {
+      this.status = status;
+      this.rid = rid;
+      this.statements = statements;
+    }
+  }
+
+  private static final String MAX_RID_SQL =
+      "SELECT COALESCE(MAX(rid), 0) AS maxRid FROM Reservations_yshubber WITH (UPDLOCK, HOLDLOCK)";
+
+  private static final String INSERT_SQL =
+      "INSERT INTO Reservations_yshubber (rid, userId, paid, DirectFlightId, IndirectFlightId, day_of_month) "
+      + "VALUES (?, ?, 0, ?, ?, ?)";
+
+  // Format string: the IN list is filled in per batch
+  private static final String BOOKED_DAYS_SQL =
+      "SELECT userId, day_of_month FROM Reservations_yshubber WHERE userId IN (%s)";
+
+  // Tries at a batch that keeps deadlocking (or, for a single booking, losing the race for its
+  // rid) before its bookings fail
+  static final int MAX_ATTEMPTS = 10;
+
+  private static final Map<String, BookingPipeline> SHARED = new HashMap<>();
+  private static boolean shutdownHookAdded;
+
+  /**
+   * The pipeline shared by every session in this process that books on {@code shard} of
+   * {@code shards} (whose server is {@code serverURL}, null for the primary) and uses the
+   * tables with the given suffix, started on first use
+   */
+  public static synchronized BookingPipeline shared(String tableSuffix, int shard, int shards,
+                                                    String serverURL)
+      throws SQLException, IOException {
+    String key = tableSuffix + "|" + shard + "/" + shards + "|" + serverURL;
+    BookingPipeline pipeline = SHARED.get(key);
+    if (pipeline == null) {
+      pipeline = new BookingPipeline(DBConnUtils.getIntProperty("flightapp.booking.batch_size", 64),
+                                     DBConnUtils.getIntProperty("flightapp.booking.linger_ms", 2),
+                                     tableSuffix, DBConnUtils.openConnection(serverURL),
+                                     shard, shards);
+      SHARED.put(key, pipeline);
+      if (!shutdownHookAdded) {
+        Runtime.getRuntime().addShutdownHook(new Thread(BookingPipeline::closeShared));
+        shutdownHookAdded = true;
+      }
+    }
+    return pipeline;
+  }
+
+  /**
+   * Closes every shared pipeline, failing the bookings still queued on them; shared() starts
+   * new ones if it's called again
+   */
+  public static synchronized void closeShared() {
+    for (BookingPipeline pipeline : SHARED.values()) {
+      try {
+        pipeline.close();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+    SHARED.clear();
+  }
+
+  private final int batchSize;
+  private final long lingerNanos;
+  private final String tableSuffix;
+  private final int shard;
+  private final int shards;
+  private final Connection conn;
+  private final PreparedStatement maxRidStmt;
+  private final PreparedStatement insertStmt;
+  private final BlockingQueue<Booking> queue = new LinkedBlockingQueue<>();
+  private final Thread writer;
+  private volatile boolean closed;
+
+  public BookingPipeline(int batchSize, long lingerMs) throws SQLException, IOException {
+    this(batchSize, lingerMs, DBConnUtils.DEFAULT_TABLE_SUFFIX);
+  }
+
+  public BookingPipeline(int batchSize, long lingerMs, String tableSuffix)
+      throws SQLException, IOException {
+    this(batchSize, lingerMs, tableSuffix, DBConnUtils.openConnection(), 0, 1);
+  }
+
+  /**
+   * A pipeline that books on {@code shard} of {@code shards} through {@code conn}, which it
+   * takes over
+   */
+  public BookingPipeline(int batchSize, long lingerMs, String tableSuffix, Connection conn,
+                         int shard, int shards) throws SQLException {
+    if (batchSize < 1 || lingerMs < 0) {
+      throw new IllegalArgumentException("batch size must be positive and linger non-negative");
+    }
+    if (shard < 0 || shard >= shards) {
+      throw new IllegalArgumentException("no shard " + shard + " of " + shards);
+    }
+    this.batchSize = batchSize;
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+    this.tableSuffix = tableSuffix;
+    this.shard = shard;
+    this.shards = shards;
+    this.conn = conn;
+    conn.setAutoCommit(false);
+    maxRidStmt = conn.prepareStatement(DBConnUtils.withTableSuffix(MAX_RID_SQL, tableSuffix));
+    insertStmt = conn.prepareStatement(DBConnUtils.withTableSuffix(INSERT_SQL, tableSuffix));
+
+    writer = new Thread(this::run, "flightapp-booking-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Queues a booking of the given flight(s) for {@code username}.  {@code fid2} is null for a
+   * direct flight.
+   */
+  public CompletableFuture<Result> submit(String username, int fid1, Integer fid2, int day) {
+    Booking booking = new Booking(username, fid1, fid2, day);
+    // under the lock so that close() can't drain the queue between the check and the add
+    synchronized (queue) {
+      if (closed) {
+        booking.future.complete(new Result(Status.FAILED, 0));
+      } else {
+        queue.add(booking);
+      }
+    }
+    return booking.future;
+  }
+
+  /**
+   * Stops the writer thread; bookings still queued fail
+   */
+  @Override
+  public void close() throws SQLException {
+    synchronized (queue) {
+      closed = true;
+    }
+    writer.interrupt();
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Booking booking : queue) {
+      booking.future.complete(new Result(Status.FAILED, 0));
+    }
+    conn.close();
+  }
+
+  private void run() {
+    List<Booking> batch = new ArrayList<>(batchSize);
+    while (!closed) {
+      try {
+        batch.add(queue.take());
+        long deadline = System.nanoTime() + lingerNanos;
+        while (batch.size() < batchSize) {
+          Booking next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        // close() was called; fail whatever was collected
+        for (Booking booking : batch) {
+          booking.future.complete(new Result(Status.FAILED, 0));
+        }
+        return;
+      }
+
+      try {
+        commitBatch(batch);
+      } catch (Throwable t) {
+        // keep the writer alive, or every later booking would wait forever
+        t.printStackTrace();
+        rollbackQuietly();
+        for (Booking booking : batch) {
+          if (booking.result == null) {
+            booking.result = new Result(Status.FAILED, 0);
+          }
+        }
+      }
+      finish(batch);
+      batch.clear();
+    }
+  }
+
+  /**
+   * Completes the futures of a batch with the results commitBatch() left on its bookings,
+   * splitting the round trips and rows the writer spent on it evenly between them (which also
+   * keeps the writer thread's own counts from growing)
+   */
+  private static void finish(List<Booking> batch) {
+    StatementTimer.CommandStats spent = StatementTimer.takeCommandStats();
+    int n = batch.size();
+    for (int i = 0; i < n; i++) {
+      Booking booking = batch.get(i);
+      Result result = booking.result != null ? booking.result : new Result(Status.FAILED, 0);
+      StatementTimer.CommandStats share = new StatementTimer.CommandStats(
+          spent.roundTrips / n + (i < spent.roundTrips % n ? 1 : 0),
+          spent.rowsFetched / n + (i < spent.rowsFetched % n ? 1 : 0));
+      booking.future.complete(new Result(result.status, result.rid, share));
+    }
+  }
+
+  /**
+   * Books a whole batch in one transaction.  If that fails for anything but a deadlock, the
+   * bookings are retried one per transaction so one bad booking doesn't fail the others.
+   */
+  private void commitBatch(List<Booking> batch) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        Map<Booking, Result> results = insertAll(batch);
+        conn.commit();
+        setResults(results);
+        return;
+      } catch (SQLException e) {
+        rollbackQuietly();
+        if (e.getErrorCode() == 1205) {
+          CommandMetrics.global().recordDeadlockRetry(CommandMetrics.Operation.BOOK);
+          if (backOff(batch, attempt, e)) {
+            continue;
+          }
+          return;
+        }
+        if (batch.size() == 1) {
+          Booking booking = batch.get(0);
+          if (isDuplicateKey(e)) {
+            // either the user booked that day elsewhere since bookedDays() ran, or another
+            // writer took the rid; the error code is the same for both
+            Status sameDay = alreadyBookedThatDay(booking);
+            if (sameDay == null) {
+              if (backOff(batch, attempt, e)) {
+                continue;
+              }
+              return;
+            }
+            booking.result = new Result(sameDay, 0);
+            return;
+          }
+          e.printStackTrace();
+          booking.result = new Result(Status.FAILED, 0);
+          return;
+        }
+        for (Booking booking : batch) {
+          commitBatch(Collections.singletonList(booking));
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Before another try at a batch: sleeps for a random time that grows with {@code attempt} and
+   * returns true, or fails the batch's bookings and returns false once it had MAX_ATTEMPTS
+   * tries or the pipeline is closing
+   */
+  private boolean backOff(List<Booking> batch, int attempt, SQLException e) {
+    if (attempt >= MAX_ATTEMPTS) {
+      e.printStackTrace();
+    } else if (!closed) {
+      try {
+        // up to 2, 4, ..., 64ms
+        Thread.sleep(1 + ThreadLocalRandom.current().nextLong(1L << Math.min(attempt, 6)));
+        return true;
+      } catch (InterruptedException interrupted) {
+        // close() was called; keep the interrupt for run() to see
+        Thread.currentThread().interrupt();
+      }
+    }
+    for (Booking booking : batch) {
+      booking.result = new Result(Status.FAILED, 0);
+    }
+    return false;
+  }
+
+  /**
+   * Validates the batch against the current reservations and against itself, then inserts the
+   * valid bookings.  Must be followed by a commit or rollback.
+   */
+  private Map<Booking, Result> insertAll(List<Booking> batch) throws SQLException {
+    // this shard's rids are shard+1, shard+1+N, shard+1+2N, ... for N shards
+    int nextRid;
+    try (ResultSet rs = maxRidStmt.executeQuery()) {
+      rs.next();
+      int maxRid = rs.getInt("maxRid");
+      nextRid = maxRid == 0 ? shard + 1 : maxRid + shards;
+    }
+    Set<String> bookedDays = bookedDays(batch);
+
+    Map<Booking, Result> results = new HashMap<>();
+    for (Booking booking : batch) {
+      String userDay = booking.username.toLowerCase() + "|" + booking.day;
+      if (bookedDays.contains(userDay)) {
+        results.put(booking, new Result(Status.SAME_DAY, 0));
+        continue;
+      }
+
+      bookedDays.add(userDay);
+      insertStmt.setInt(1, nextRid);
+      insertStmt.setString(2, booking.username);
+      insertStmt.setInt(3, booking.fid1);
+      if (booking.fid2 != null) {
+        insertStmt.setInt(4, booking.fid2);
+      } else {
+        insertStmt.setNull(4, Types.INTEGER);
+      }
+      insertStmt.setInt(5, booking.day);
+      insertStmt.addBatch();
+      results.put(booking, new Result(Status.BOOKED, nextRid));
+      nextRid += shards;
+    }
+
+    try {
+      insertStmt.executeBatch();
+    } finally {
+      insertStmt.clearBatch();
+    }
+    return results;
+  }
+
+  /**
+   * The "user|day" pairs that the batch's users already have reservations on
+   */
+  private Set<String> bookedDays(List<Booking> batch) throws SQLException {
+    Set<String> users = new HashSet<>();
+    for (Booking booking : batch) {
+      users.add(booking.username.toLowerCase());
+    }
+    Set<String> days = new HashSet<>();
+    String sql = String.format(BOOKED_DAYS_SQL, placeholders(users.size()));
+    try (PreparedStatement stmt =
+             conn.prepareStatement(DBConnUtils.withTableSuffix(sql, tableSuffix))) {
+      int i = 1;
+      for (String user : users) {
+        stmt.setString(i++, user);
+      }
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          days.add(rs.getString("userId").toLowerCase() + "|" + rs.getInt("day_of_month"));
+        }
+      }
+    }
+    return days;
+  }
+
+  private static String placeholders(int count) {
+    return String.join(", ", Collections.nCopies(count, "?"));
+  }
+
+  private static boolean isDuplicateKey(SQLException e) {
+    return e.getErrorCode() == 2627 || e.getErrorCode() == 2601;
+  }
+
+  /**
+   * After a duplicate key error on a single booking: SAME_DAY if its user now has a
+   * reservation on its day, null if not (so the rid was the duplicate and the booking can be
+   * retried), or FAILED if that can't be read
+   */
+  private Status alreadyBookedThatDay(Booking booking) {
+    try {
+      Set<String> days = bookedDays(Collections.singletonList(booking));
+      return days.contains(booking.username.toLowerCase() + "|" + booking.day) ? Status.SAME_DAY
+                                                                              : null;
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return Status.FAILED;
+    } finally {
+      rollbackQuietly();
+    }
+  }
+
+  private static void setResults(Map<Booking, Result> results) {
+    for (Map.Entry<Booking, Result> entry : results.entrySet()) {
+      entry.getKey().result = entry.getValue();
+    }
+  }
+
+  private void rollbackQuietly() {
+    try {
+      conn.rollback();
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * A queued booking, the future its session is waiting on, and (on the writer thread) its
+   * result until the future is completed
+   */
+  private static class Booking {
+    final String username;
+    final int fid1;
+    final Integer fid2;
+    final int day;
+    final CompletableFuture<Result> future = new CompletableFuture<>();
+    Result result;
+
+    Booking(String username, int fid1, Integer fid2, int day) {
+      this.username = username;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+      this.day = day;
+    }
+  }
+}
@@ -0,0 +1,277 @@
+package flightapp;
+
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide latency and outcome counters for the QueryAbstract operations.
+ *
+ * Every call through one of the QueryAbstract wrappers (login, search, ...) records its latency
+ * and whether it succeeded; Query additionally reports every deadlock it retries.  The numbers
+ * can be read with snapshot(), and are printed every flightapp.metrics.dump_secs seconds if
+ * that setting is given and the program calls startDumpFromSettings().  With StatementTimer on,
+ * the database round trips and rows fetched by each operation are counted too.
+ */
+public class CommandMetrics {
+  /**
+   * The operations that are measured, along with the response prefixes that mean success
+   */
+  public enum Operation {
+    LOGIN("Logged in as "),
+    RESUME("Resumed session as "),
+    TOKEN("Session token: "),
+    CREATE("Created user "),
+    SEARCH("Itinerary ", "No flights match your selection"),
+    BOOK("Booked flight(s)"),
+    PAY("Paid reservation: "),
+    RESERVATIONS("Reservation ", "No reservations found");
+
+    private final String[] successPrefixes;
+
+    Operation(String... successPrefixes) {
+      this.successPrefixes = successPrefixes;
+    }
+
+    /**
+     * The operation run by a FlightService command ("login", "search", ...), or null for
+     * commands that don't touch the database
+     */
+    public static Operation forCommand(String command) {
+      switch (command) {
+        case "login": return LOGIN;
+        case "resume": return RESUME;
+        case "token": return TOKEN;
+        case "create": return CREATE;
+        case "search": return SEARCH;
+        case "book": return BOOK;
+        case "pay": return PAY;
+        case "reservations": return RESERVATIONS;
+        default: return null;
+      }
+    }
+
+    /**
+     * Classifies the string returned by the operation
+     */
+    Outcome outcomeOf(String response) {
+      if (response != null) {
+        for (String prefix : successPrefixes) {
+          if (response.startsWith(prefix)) {
+            return Outcome.SUCCESS;
+          }
+        }
+      }
+      return Outcome.FAILURE;
+    }
+  }
+
+  /**
+   * What happened to an operation.  DEADLOCK_RETRY is counted once per retried attempt, in
+   * addition to the final outcome of the operation.  REJECTED operations were turned away by
+   * AdmissionControl without running, and aren't counted otherwise.
+   */
+  public enum Outcome {
+    SUCCESS, FAILURE, DEADLOCK_RETRY, REJECTED
+  }
+
+  private static final CommandMetrics GLOBAL = new CommandMetrics();
+
+  /**
+   * The metrics shared by every session in this process
+   */
+  public static CommandMetrics global() {
+    return GLOBAL;
+  }
+
+  /**
+   * Starts printing the global metrics to stdout if flightapp.metrics.dump_secs is set.  Called
+   * by the programs' main methods, so merely using the metrics never starts a thread.
+   */
+  public static void startDumpFromSettings() {
+    int dumpSecs = DBConnUtils.getIntProperty("flightapp.metrics.dump_secs", 0);
+    if (dumpSecs > 0) {
+      GLOBAL.startPeriodicDump(dumpSecs, System.out);
+    }
+  }
+
+  private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+  private final Map<Operation, Map<Outcome, LongAdder>> outcomes = new EnumMap<>(Operation.class);
+  private final Map<Operation, LongAdder> roundTrips = new EnumMap<>(Operation.class);
+  private final Map<Operation, LongAdder> rowsFetched = new EnumMap<>(Operation.class);
+  private final long createdNanos = System.nanoTime();
+
+  public CommandMetrics() {
+    for (Operation op : Operation.values()) {
+      latencies.put(op, new LatencyHistogram());
+      Map<Outcome, LongAdder> counters = new EnumMap<>(Outcome.class);
+      for (Outcome outcome : Outcome.values()) {
+        counters.put(outcome, new LongAdder());
+      }
+      outcomes.put(op, counters);
+      roundTrips.put(op, new LongAdder());
+      rowsFetched.put(op, new LongAdder());
+    }
+  }
+
+  /**
+   * Records one completed operation that started at {@code startNanos} (from System.nanoTime())
+   * and returned {@code response}, or null if it threw.
+   */
+  public void record(Operation op, long startNanos, String response) {
+    latencies.get(op).recordValue(System.nanoTime() - startNanos);
+    outcomes.get(op).get(op.outcomeOf(response)).increment();
+    if (StatementTimer.shared() != null) {
+      StatementTimer.CommandStats stats = StatementTimer.takeCommandStats();
+      roundTrips.get(op).add(stats.roundTrips);
+      rowsFetched.get(op).add(stats.rowsFetched);
+    }
+  }
+
+  /**
+   * Records that an attempt of {@code op} hit a deadlock and is being retried
+   */
+  public void recordDeadlockRetry(Operation op) {
+    outcomes.get(op).get(Outcome.DEADLOCK_RETRY).increment();
+    FlightEvents.DeadlockRetry.emit(op);
+  }
+
+  /**
+   * Records that {@code op} was rejected by admission control
+   */
+  public void recordRejection(Operation op) {
+    outcomes.get(op).get(Outcome.REJECTED).increment();
+  }
+
+  /**
+   * Copies the current numbers for every operation
+   */
+  public Map<Operation, OperationSnapshot> snapshot() {
+    Map<Operation, OperationSnapshot> result = new EnumMap<>(Operation.class);
+    for (Operation op : Operation.values()) {
+      Map<Outcome, Long> counts = new EnumMap<>(Outcome.class);
+      for (Map.Entry<Outcome, LongAdder> entry : outcomes.get(op).entrySet()) {
+        counts.put(entry.getKey(), entry.getValue().sum());
+      }
+      result.put(op, new OperationSnapshot(op, latencies.get(op).snapshot(), counts,
+                                           roundTrips.get(op).sum(), rowsFetched.get(op).sum()));
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  /**
+   * Clears all recorded numbers
+   */
+  public void reset() {
+    for (Operation op : Operation.values()) {
+      latencies.get(op).reset();
+      for (LongAdder counter : outcomes.get(op).values()) {
+        counter.reset();
+      }
+      roundTrips.get(op).reset();
+      rowsFetched.get(op).reset();
+    }
+  }
+
+  /**
+   * Prints a line per operation (and, with StatementTimer on, per SQL statement) to {@code out}
+   * every {@code periodSecs} seconds, from a daemon thread.  Throughput is computed over the
+   * time since the previous dump.
+   */
+  public ScheduledExecutorService startPeriodicDump(long periodSecs, PrintStream out) {
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "flightapp-metrics-dump");
+      t.setDaemon(true);
+      return t;
+    });
+    Map<Operation, Long> previousCounts = new EnumMap<>(Operation.class);
+    long[] previousNanos = {createdNanos};
+    timer.scheduleAtFixedRate(() -> {
+      long now = System.nanoTime();
+      double elapsedSecs = Math.max(now - previousNanos[0], 1) / 1e9;
+      previousNanos[0] = now;
+      for (OperationSnapshot snap : snapshot().values()) {
+        long count = snap.getLatency().getCount();
+        long delta = count - previousCounts.getOrDefault(snap.getOperation(), 0L);
+        previousCounts.put(snap.getOperation(), count);
+        out.println(snap.format() + String.format(" rate=%.1f/s", delta / elapsedSecs));
+      }
+      if (StatementTimer.shared() != null) {
+        out.print(StatementTimer.shared().format());
+      }
+    }, periodSecs, periodSecs, TimeUnit.SECONDS);
+    return timer;
+  }
+
+  /**
+   * The numbers for a single operation at the time of a snapshot()
+   */
+  public static class OperationSnapshot {
+    private final Operation operation;
+    private final LatencyHistogram.Snapshot latency;
+    private final Map<Outcome, Long> outcomes;
+    private final long roundTrips;
+    private final long rowsFetched;
+
+    OperationSnapshot(Operation operation, LatencyHistogram.Snapshot latency,
+                      Map<Outcome, Long> outcomes, long roundTrips, long rowsFetched) {
+      this.operation = operation;
+      this.latency = latency;
+      this.outcomes = Collections.unmodifiableMap(outcomes);
+      this.roundTrips = roundTrips;
+      this.rowsFetched = rowsFetched;
+    }
+
+    public Operation getOperation() {
+      return operation;
+    }
+
+    public LatencyHistogram.Snapshot getLatency() {
+      return latency;
+    }
+
+    public long getCount(Outcome outcome) {
+      return outcomes.get(outcome);
+    }
+
+    /**
+     * Database round trips of all the operations counted, 0 unless StatementTimer is on
+     */
+    public long getRoundTrips() {
+      return roundTrips;
+    }
+
+    /**
+     * Rows fetched by all the operations counted, 0 unless StatementTimer is on
+     */
+    public long getRowsFetched() {
+      return rowsFetched;
+    }
+
+    /**
+     * One-line summary, latencies in milliseconds
+     */
+    public String format() {
+      String line = String.format("%-12s count=%d ok=%d failed=%d deadlocks=%d rejected=%d"
+                           + " p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms",
+                           operation.name().toLowerCase(), latency.getCount(),
+                           getCount(Outcome.SUCCESS), getCount(Outcome.FAILURE),
+                           getCount(Outcome.DEADLOCK_RETRY), getCount(Outcome.REJECTED),
+                           latency.valueAtPercentile(50) / 1e6,
+                           latency.valueAtPercentile(99) / 1e6,
+                           latency.valueAtPercentile(99.9) / 1e6,
+                           latency.getMaxNanos() / 1e6);
+      if (roundTrips > 0) {
+        line += String.format(" trips/op=%.1f rows/op=%.1f",
+                              roundTrips / (double) latency.getCount(),
+                              rowsFetched / (double) latency.getCount());
+      }
+      return line;
+    }
+  }
+}
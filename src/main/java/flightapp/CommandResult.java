@@ -0,0 +1,78 @@
+package flightapp;
+
+import java.util.OptionalInt;
+
+/**
+ * The outcome of an asynchronous QueryAbstract operation: the same response text the
+ * synchronous operation returns, along with whether it succeeded and the values callers
+ * usually pick out of it.
+ */
+public class CommandResult {
+  private static final String BOOKED_PREFIX = "Booked flight(s), reservation ID: ";
+  private static final String PAID_PREFIX = "Paid reservation: ";
+  private static final String BALANCE_LABEL = " remaining balance: ";
+
+  private final CommandMetrics.Operation operation;
+  private final String text;
+
+  public CommandResult(CommandMetrics.Operation operation, String text) {
+    this.operation = operation;
+    this.text = text;
+  }
+
+  public CommandMetrics.Operation getOperation() {
+    return operation;
+  }
+
+  /**
+   * The response as returned by the synchronous operation
+   */
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * Whether the operation did what was asked; a search with no matching flights and a listing
+   * without reservations count as successes
+   */
+  public boolean succeeded() {
+    return operation.outcomeOf(text) == CommandMetrics.Outcome.SUCCESS;
+  }
+
+  /**
+   * The reservation booked or paid for, if this is a successful book or pay
+   */
+  public OptionalInt reservationId() {
+    if (operation == CommandMetrics.Operation.BOOK && text.startsWith(BOOKED_PREFIX)) {
+      return parseInt(BOOKED_PREFIX.length(), text.length());
+    } else if (operation == CommandMetrics.Operation.PAY && text.startsWith(PAID_PREFIX)) {
+      int end = text.indexOf(BALANCE_LABEL);
+      return end < 0 ? OptionalInt.empty() : parseInt(PAID_PREFIX.length(), end);
+    }
+    return OptionalInt.empty();
+  }
+
+  /**
+   * The user's remaining balance, if this is a successful pay
+   */
+  public OptionalInt balance() {
+    int label = text.indexOf(BALANCE_LABEL);
+    if (operation != CommandMetrics.Operation.PAY || !text.startsWith(PAID_PREFIX) || label < 0) {
+      return OptionalInt.empty();
+    }
+    return parseInt(label + BALANCE_LABEL.length(), text.length());
+  }
+
+  private OptionalInt parseInt(int start, int end) {
+    try {
+      return OptionalInt.of(Integer.parseInt(text.substring(start, end).trim()));
+    } catch (NumberFormatException e) {
+      return OptionalInt.empty();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return text;
+  }
+}
@@ -0,0 +1,13 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Opens a connection to a server given as in DBConnUtils.openConnection(serverURL); lets the
+ * classes that open their own connections (ReplicaPool, Shards) be tested without a database
+ */
+interface ConnectionOpener {
+  Connection open(String serverURL) throws SQLException, IOException;
+}
@@ -0,0 +1,201 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Batch job that keeps the FlightConnections table (see createTables.sql) in step with Flights.
+ *
+ * FlightConnections holds every valid one-stop pair (f1, f2): same day, f1 lands where f2 takes
+ * off, neither canceled, along with the total flight time, so that Query can answer one-stop
+ * searches with a single ordered index seek instead of joining Flights with itself.
+ *
+ * Flights can't be given triggers or a rowversion column (its schema belongs to the assignment),
+ * so the refresh is incremental by day instead: FlightConnectionDays remembers a SHA-256 hash of
+ * each day's Flights rows as of that day's last refresh, and only the days whose hash changed
+ * are rebuilt, one transaction per day; days that no longer have any flights are removed.  The
+ * hash covers every column the application reads, not just the ones connections are built
+ * from, so that caches of flights can be checked against it too.  Run it with
+ *
+ *   mvn compile exec:java -Dexec.mainClass=flightapp.ConnectionsRefresher \
+ *       -Dexec.args="[--full] [--every seconds]"
+ *
+ * --full rebuilds every day; --every keeps running, refreshing at the given interval.  Query
+ * only reads the table when flightapp.search.connections_table is true, so run this once before
+ * turning that on.
+ */
+public class ConnectionsRefresher {
+  // A hash rather than CHECKSUM_AGG(BINARY_CHECKSUM(...)), which misses changes that cancel
+  // out in its XOR (eg two rows swapping values) and collides far more often
+  private static final String DAY_CHECKSUMS_SQL =
+      "SELECT day_of_month, CONVERT(CHAR(64), HASHBYTES('SHA2_256', STRING_AGG(CAST(CONCAT("
+      + "fid, '|', carrier_id, '|', flight_num, '|', origin_city, '|', dest_city, '|', "
+      + "actual_time, '|', capacity, '|', price, '|', canceled) AS NVARCHAR(MAX)), ';') "
+      + "WITHIN GROUP (ORDER BY fid)), 2) AS flights_checksum "
+      + "FROM Flights GROUP BY day_of_month";
+
+  private static final String REFRESHED_DAYS_SQL =
+      "SELECT day_of_month, flights_checksum FROM FlightConnectionDays";
+
+  private static final String DELETE_DAY_SQL =
+      "DELETE FROM FlightConnections WHERE day_of_month = ?";
+
+  private static final String UNMARK_DAY_SQL =
+      "DELETE FROM FlightConnectionDays WHERE day_of_month = ?";
+
+  // The pairs of Query.INDIRECT_FLIGHT_SQL, except those with a flight that has no
+  // actual_time: total_time is part of the primary key so it can't be NULL, and those pairs
+  // (which INDIRECT_FLIGHT_SQL lists first, as NULL sorts first) are left out of the table
+  private static final String INSERT_DAY_SQL =
+      "INSERT INTO FlightConnections (origin_city, dest_city, day_of_month, total_time, fid1, fid2) "
+      + "SELECT f1.origin_city, f2.dest_city, f1.day_of_month, f1.actual_time + f2.actual_time, "
+      + "f1.fid, f2.fid "
+      + "FROM Flights f1 JOIN Flights f2 "
+      + "ON f1.dest_city = f2.origin_city AND f1.day_of_month = f2.day_of_month "
+      + "WHERE f1.day_of_month = ? AND f1.canceled = 0 AND f2.canceled = 0 "
+      + "AND f1.actual_time IS NOT NULL AND f2.actual_time IS NOT NULL";
+
+  private static final String MARK_DAY_SQL =
+      "MERGE FlightConnectionDays d USING (SELECT ? AS day_of_month, ? AS flights_checksum) s "
+      + "ON d.day_of_month = s.day_of_month "
+      + "WHEN MATCHED THEN UPDATE SET flights_checksum = s.flights_checksum, "
+      + "refreshed_at = SYSUTCDATETIME() "
+      + "WHEN NOT MATCHED THEN INSERT (day_of_month, flights_checksum, refreshed_at) "
+      + "VALUES (s.day_of_month, s.flights_checksum, SYSUTCDATETIME());";
+
+  private final Connection conn;
+  private final FlightsWatcher watcher;
+
+  public ConnectionsRefresher(Connection conn) {
+    this(conn, null);
+  }
+
+  /**
+   * A refresher that also tells {@code watcher} (if not null) whenever it rebuilt or removed a
+   * day, so that a process refreshing its own database drops what it derived from the old rows
+   * without waiting for the next check
+   */
+  public ConnectionsRefresher(Connection conn, FlightsWatcher watcher) {
+    this.conn = conn;
+    this.watcher = watcher;
+  }
+
+  public static void main(String[] args) throws Exception {
+    boolean full = false;
+    long everySecs = 0;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--full")) {
+        full = true;
+      } else if (args[i].equals("--every") && i + 1 < args.length) {
+        everySecs = Long.parseLong(args[++i]);
+      } else {
+        System.out.println("Usage: ConnectionsRefresher [--full] [--every seconds]");
+        return;
+      }
+    }
+
+    try (Connection conn = DBConnUtils.openConnection()) {
+      ConnectionsRefresher refresher = new ConnectionsRefresher(conn);
+      do {
+        long start = System.nanoTime();
+        int days = refresher.refresh(full);
+        System.out.println(String.format("Refreshed %d day(s) of connections in %.1fs", days,
+                                         (System.nanoTime() - start) / 1e9));
+        full = false;
+        if (everySecs > 0) {
+          Thread.sleep(everySecs * 1000);
+        }
+      } while (everySecs > 0);
+    }
+  }
+
+  /**
+   * Rebuilds the connections of every day whose Flights rows changed since its last refresh
+   * (or of every day, if {@code full}), and removes those of days that no longer have flights.
+   *
+   * @return the number of days rebuilt or removed
+   */
+  public int refresh(boolean full) throws SQLException {
+    Map<Integer, String> current = checksums(DAY_CHECKSUMS_SQL);
+    Map<Integer, String> refreshed = checksums(REFRESHED_DAYS_SQL);
+
+    int days = 0;
+    for (Map.Entry<Integer, String> day : current.entrySet()) {
+      if (full || !day.getValue().equals(refreshed.get(day.getKey()))) {
+        refreshDay(day.getKey(), day.getValue());
+        days++;
+      }
+    }
+    for (int day : refreshed.keySet()) {
+      if (!current.containsKey(day)) {
+        removeDay(day);
+        days++;
+      }
+    }
+    if (days > 0 && watcher != null) {
+      watcher.changed(conn);
+    }
+    return days;
+  }
+
+  /**
+   * Replaces one day's connections and records the checksum they were built from, atomically,
+   * so searches see either the old or the new set
+   */
+  private void refreshDay(int day, String checksum) throws SQLException {
+    conn.setAutoCommit(false);
+    try (PreparedStatement delete = conn.prepareStatement(DELETE_DAY_SQL);
+         PreparedStatement insert = conn.prepareStatement(INSERT_DAY_SQL);
+         PreparedStatement mark = conn.prepareStatement(MARK_DAY_SQL)) {
+      delete.setInt(1, day);
+      delete.executeUpdate();
+      insert.setInt(1, day);
+      insert.executeUpdate();
+      mark.setInt(1, day);
+      mark.setString(2, checksum);
+      mark.executeUpdate();
+      conn.commit();
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  /**
+   * Deletes the connections of a day that has no flights any more, and forgets the day
+   */
+  private void removeDay(int day) throws SQLException {
+    conn.setAutoCommit(false);
+    try (PreparedStatement delete = conn.prepareStatement(DELETE_DAY_SQL);
+         PreparedStatement unmark = conn.prepareStatement(UNMARK_DAY_SQL)) {
+      delete.setInt(1, day);
+      delete.executeUpdate();
+      unmark.setInt(1, day);
+      unmark.executeUpdate();
+      conn.commit();
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  private Map<Integer, String> checksums(String sql) throws SQLException {
+    Map<Integer, String> checksums = new HashMap<>();
+    try (PreparedStatement stmt = conn.prepareStatement(sql);
+         ResultSet rs = stmt.executeQuery()) {
+      while (rs.next()) {
+        checksums.put(rs.getInt("day_of_month"), rs.getString("flights_checksum"));
+      }
+    }
+    return checksums;
+  }
+}
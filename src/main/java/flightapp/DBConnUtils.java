@@ -11,6 +11,12 @@ import java.util.Properties;
  * A collection of utility methods to help with parsing dbconn.properties.
  */
 public class DBConnUtils {
+  /**
+   * The suffix that table names are written with in the SQL and in createTables.sql, eg
+   * Users_yshubber
+   */
+  public static final String DEFAULT_TABLE_SUFFIX = "yshubber";
+
   /**
    * Open and return a connection using dbconn.properties file
    *
@@ -18,19 +24,35 @@ public class DBConnUtils {
    * @throws IOException
    */
   public static Connection openConnection() throws SQLException, IOException {
+    return openConnection(null);
+  }
+
+  /**
+   * Open and return a connection to another server (eg a read replica) with the database name
+   * and credentials from dbconn.properties.  A full JDBC URL (starting with "jdbc:") is used
+   * as is instead, eg to point at a local embedded database.
+   *
+   * @param serverURL the server to connect to, or null for flightapp.server_url
+   */
+  public static Connection openConnection(String serverURL) throws SQLException, IOException {
     // Connect to the database with the provided connection configuration
     Properties configProps = new Properties();
     configProps.load(new FileInputStream("dbconn.properties"));
 
-    String serverURL = configProps.getProperty("flightapp.server_url");
+    if (serverURL == null) {
+      serverURL = configProps.getProperty("flightapp.server_url");
+    }
     String dbName = configProps.getProperty("flightapp.database_name");
     String adminName = configProps.getProperty("flightapp.username");
     String password = configProps.getProperty("flightapp.password");
 
-    String connectionUrl =
+    String connectionUrl = serverURL.startsWith("jdbc:") ? serverURL :
         String.format("jdbc:sqlserver://%s:1433;databaseName=%s;user=%s;password=%s", 
                       serverURL, dbName, adminName, password);
+    FlightEvents.ConnectionAcquire event = FlightEvents.ConnectionAcquire.start();
     Connection conn = DriverManager.getConnection(connectionUrl);
+    event.finish(serverURL.startsWith("jdbc:") ? serverURL : serverURL + "/" + dbName,
+                 false, true);
 
     // By default, automatically commit after each statement
     conn.setAutoCommit(true);
@@ -38,7 +60,82 @@ public class DBConnUtils {
     // By default, set the transaction isolation level to serializable
     conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
 
-    return conn;
+    StatementTimer timer = StatementTimer.shared();
+    return timer != null ? timer.wrap(conn) : conn;
+  }
+
+  /**
+   * Look up an optional setting, first in dbconn.properties and then in the Java system
+   * properties (eg -Dflightapp.metrics.dump_secs=10).
+   *
+   * @returns defaultValue if the setting wasn't specified, or was specified and empty
+   */
+  public static String getProperty(String name, String defaultValue) {
+    Properties configProps = new Properties();
+    try (FileInputStream in = new FileInputStream("dbconn.properties")) {
+      configProps.load(in);
+    } catch (IOException e) {
+      // no config file; fall back to the system properties
+    }
+
+    String value = configProps.getProperty(name);
+    if (value == null || value.trim().isEmpty()) {
+      value = System.getProperty(name);
+    }
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    return value.trim();
+  }
+
+  /**
+   * Same as getProperty(), for integer-valued settings
+   */
+  public static int getIntProperty(String name, int defaultValue) {
+    String value = getProperty(name, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Setting " + name + " must be an integer: " + value);
+    }
+  }
+
+  /**
+   * Same as getProperty(), for settings that may have a fraction, eg a rate of 0.5 per second
+   */
+  public static double getDoubleProperty(String name, double defaultValue) {
+    String value = getProperty(name, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Setting " + name + " must be a number: " + value);
+    }
+  }
+
+  /**
+   * Same as getProperty(), for true/false settings
+   */
+  public static boolean getBooleanProperty(String name, boolean defaultValue) {
+    String value = getProperty(name, null);
+    return value == null ? defaultValue : value.equalsIgnoreCase("true");
+  }
+
+  /**
+   * Rewrites the suffixed table (and constraint/index) names in {@code sql} to use
+   * {@code suffix} instead of DEFAULT_TABLE_SUFFIX, so that several independent sets of tables
+   * can live in the same database.
+   */
+  public static String withTableSuffix(String sql, String suffix) {
+    if (suffix == null || suffix.equals(DEFAULT_TABLE_SUFFIX)) {
+      return sql;
+    }
+    return sql.replace("_" + DEFAULT_TABLE_SUFFIX, "_" + suffix);
   }
 
   /**
@@ -0,0 +1,129 @@
+package flightapp;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count-min sketch of recent events per key whose counts halve every {@code halfLifeNanos}.
+ *
+ * Memory is fixed at depth x width ints however many distinct keys are counted; an estimate is
+ * never below the key's true (decayed) count, and is above it only by collisions with other
+ * keys in every row.  Increments use the conservative update (only the smallest counters are
+ * bumped), which keeps that error down.  The row hashes are seeded randomly per instance, so
+ * nobody can pick keys that collide with someone else's on purpose.
+ *
+ * Thread-safe without locks: counters are CAS-updated, and the halving is done by whichever
+ * caller first notices a half-life has passed.  Increments racing with the halving may be
+ * halved or not, which doesn't matter for its uses.
+ */
+public class DecayingSketch {
+  private final int depth;
+  private final int mask;
+  private final AtomicIntegerArray counters;
+  private final long seed;
+  private final long halfLifeNanos;
+  private final AtomicLong decayedAt;
+
+  /**
+   * @param width rounded up to a power of two
+   */
+  public DecayingSketch(int depth, int width, long halfLifeNanos) {
+    this(depth, width, halfLifeNanos, System.nanoTime());
+  }
+
+  /**
+   * @param startNanos when the first half-life starts, from System.nanoTime()
+   */
+  DecayingSketch(int depth, int width, long halfLifeNanos, long startNanos) {
+    int columns = Integer.highestOneBit(Math.max(width - 1, 1)) << 1;
+    this.depth = depth;
+    this.mask = columns - 1;
+    this.counters = new AtomicIntegerArray(depth * columns);
+    this.seed = new SecureRandom().nextLong();
+    this.halfLifeNanos = halfLifeNanos;
+    this.decayedAt = new AtomicLong(startNanos);
+  }
+
+  /**
+   * Counts one event for {@code key} and returns its new estimated count
+   */
+  public int add(String key, long nowNanos) {
+    decay(nowNanos);
+    long hash = hash(key);
+    int min = estimate(hash);
+    for (int row = 0; row < depth; row++) {
+      int index = index(hash, row);
+      int current;
+      // conservative update: leave counters that already overcount this key alone
+      while ((current = counters.get(index)) <= min) {
+        if (counters.compareAndSet(index, current, current + 1)) {
+          break;
+        }
+      }
+    }
+    return min + 1;
+  }
+
+  /**
+   * The estimated recent count of {@code key}
+   */
+  public int estimate(String key, long nowNanos) {
+    decay(nowNanos);
+    return estimate(hash(key));
+  }
+
+  /**
+   * Bytes used by the counters
+   */
+  public long memoryBytes() {
+    return 4L * counters.length();
+  }
+
+  private int estimate(long hash) {
+    int min = Integer.MAX_VALUE;
+    for (int row = 0; row < depth; row++) {
+      min = Math.min(min, counters.get(index(hash, row)));
+    }
+    return min;
+  }
+
+  private int index(long hash, int row) {
+    // double hashing: row i uses h1 + i * h2
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32) | 1;
+    return row * (mask + 1) + ((h1 + row * h2) & mask);
+  }
+
+  /**
+   * Halves every counter once per half-life that passed since the last halving
+   */
+  private void decay(long nowNanos) {
+    long last = decayedAt.get();
+    long halvings = (nowNanos - last) / halfLifeNanos;
+    if (halvings <= 0 || !decayedAt.compareAndSet(last, last + halvings * halfLifeNanos)) {
+      return;
+    }
+    int shift = (int) Math.min(halvings, 31);
+    for (int i = 0; i < counters.length(); i++) {
+      int current;
+      do {
+        current = counters.get(i);
+      } while (current != 0 && !counters.compareAndSet(i, current, current >>> shift));
+    }
+  }
+
+  private long hash(String key) {
+    // seeded FNV-1a over the UTF-8 bytes, then a 64-bit finalizer to spread the bits
+    long h = 0xcbf29ce484222325L ^ seed;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      h = (h ^ (b & 0xff)) * 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    return h ^ (h >>> 33);
+  }
+}
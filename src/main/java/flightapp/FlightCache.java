@@ -0,0 +1,87 @@
+package flightapp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide cache of decoded flights, shared by every session.
+ *
+ * Sessions searching the same popular routes keep reading the same Flights rows; with the cache
+ * they all hold the one immutable Query.Flight per fid instead of a copy each (plus a copy of
+ * each of its strings).  As with FlightLines, a cached flight is used only if the row still has
+ * the capacity it was decoded with, and changes to any other column of Flights empty the whole
+ * cache once FlightsWatcher notices them.
+ *
+ * The cache holds at most flightapp.flight_cache.max_entries (default 100000) flights, in two
+ * generations: new flights go into the young one, and when it's half full it becomes the old one
+ * and the previous old generation is dropped.  A flight found in the old generation is moved
+ * back into the young one, so flights that keep being searched are never evicted; one cached with
+ * a different capacity is stale and is left to age out instead.
+ */
+public class FlightCache {
+  private static final FlightCache GLOBAL =
+      new FlightCache(DBConnUtils.getIntProperty("flightapp.flight_cache.max_entries", 100000));
+
+  /**
+   * The cache shared by every session in this process
+   */
+  public static FlightCache global() {
+    return GLOBAL;
+  }
+
+  private final int generationSize;
+  private volatile Map<Integer, Query.Flight> young = new ConcurrentHashMap<>();
+  private volatile Map<Integer, Query.Flight> old = new ConcurrentHashMap<>();
+
+  public FlightCache(int maxEntries) {
+    this.generationSize = Math.max(maxEntries / 2, 1);
+  }
+
+  /**
+   * The cached flight {@code fid}, or null if it isn't cached or was cached with a different
+   * capacity
+   */
+  public Query.Flight get(int fid, int capacity) {
+    Query.Flight flight = young.get(fid);
+    if (flight == null) {
+      flight = old.get(fid);
+      if (flight == null || flight.capacity != capacity) {
+        // a stale copy stays behind, to be replaced by add() or dropped with its generation
+        return null;
+      }
+      add(flight);
+    }
+    return flight.capacity == capacity ? flight : null;
+  }
+
+  /**
+   * Caches a newly decoded flight, replacing any stale copy, and returns it
+   */
+  public Query.Flight add(Query.Flight flight) {
+    young.put(flight.fid, flight);
+    if (young.size() >= generationSize) {
+      rotate();
+    }
+    return flight;
+  }
+
+  /**
+   * Drops every cached flight, eg after Flights changed
+   */
+  public synchronized void clear() {
+    young = new ConcurrentHashMap<>();
+    old = new ConcurrentHashMap<>();
+  }
+
+  public int size() {
+    return young.size() + old.size();
+  }
+
+  private synchronized void rotate() {
+    // another thread may have rotated while this one waited
+    if (young.size() >= generationSize) {
+      old = young;
+      young = new ConcurrentHashMap<>();
+    }
+  }
+}
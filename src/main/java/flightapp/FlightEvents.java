@@ -0,0 +1,204 @@
+package flightapp;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for the application, so that a recording shows per command
+ * where the time went (eg "jcmd [pid] JFR.start settings=profile" and then looking at the
+ * "Flights App" category in JDK Mission Control).
+ *
+ * Each event is begun where the work starts and committed where it ends.  While no recording
+ * has the event enabled, shouldCommit() is false and nothing but the event object (which the
+ * JIT usually scalar-replaces) is created, so the events stay in place in production.  Being
+ * custom events, they are on in every recording unless its settings turn them off (eg
+ * "flightapp.Command#enabled=false").
+ */
+public final class FlightEvents {
+  private static final String CATEGORY = "Flights App";
+
+  private FlightEvents() { }
+
+  /**
+   * One call through a QueryAbstract operation wrapper (login, search, book, ...)
+   */
+  @Name("flightapp.Command")
+  @Label("Command")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  public static class Command extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Outcome")
+    String outcome;
+
+    @Label("User")
+    @Description("The user logged in on the session when the command finished")
+    String user;
+
+    @Label("Session")
+    int session;
+
+    @Label("Response Length")
+    @Description("Characters in the response")
+    int responseLength;
+
+    public static Command start() {
+      Command event = new Command();
+      event.begin();
+      return event;
+    }
+
+    /**
+     * @param response what the operation returned, or null if it threw
+     */
+    public void finish(CommandMetrics.Operation op, String response, String user, int session) {
+      if (shouldCommit()) {
+        this.operation = op.name().toLowerCase();
+        this.outcome = op.outcomeOf(response).name().toLowerCase();
+        this.user = user;
+        this.session = session;
+        this.responseLength = response != null ? response.length() : -1;
+        commit();
+      }
+    }
+  }
+
+  /**
+   * A deadlocked attempt of an operation that is being retried
+   */
+  @Name("flightapp.DeadlockRetry")
+  @Label("Deadlock Retry")
+  @Category(CATEGORY)
+  public static class DeadlockRetry extends Event {
+    @Label("Operation")
+    String operation;
+
+    public static void emit(CommandMetrics.Operation op) {
+      DeadlockRetry event = new DeadlockRetry();
+      if (event.shouldCommit()) {
+        event.operation = op.name().toLowerCase();
+        event.commit();
+      }
+    }
+  }
+
+  /**
+   * One PBKDF2 password hash, in login or create
+   */
+  @Name("flightapp.PasswordHash")
+  @Label("Password Hash")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  public static class PasswordHash extends Event {
+    @Label("Iterations")
+    int iterations;
+
+    public static PasswordHash start() {
+      PasswordHash event = new PasswordHash();
+      event.begin();
+      return event;
+    }
+
+    public void finish(int iterations) {
+      if (shouldCommit()) {
+        this.iterations = iterations;
+        commit();
+      }
+    }
+  }
+
+  /**
+   * Opening a database connection, or borrowing a replica connection from a ReplicaPool
+   */
+  @Name("flightapp.ConnectionAcquire")
+  @Label("Connection Acquire")
+  @Category(CATEGORY)
+  public static class ConnectionAcquire extends Event {
+    @Label("Server")
+    String server;
+
+    @Label("Pooled")
+    @Description("Borrowed from a ReplicaPool rather than opened")
+    boolean pooled;
+
+    @Label("Acquired")
+    @Description("False if no pooled connection became free in time")
+    boolean acquired;
+
+    public static ConnectionAcquire start() {
+      ConnectionAcquire event = new ConnectionAcquire();
+      event.begin();
+      return event;
+    }
+
+    public void finish(String server, boolean pooled, boolean acquired) {
+      if (shouldCommit()) {
+        this.server = server;
+        this.pooled = pooled;
+        this.acquired = acquired;
+        commit();
+      }
+    }
+  }
+
+  /**
+   * One search, with how many itineraries it asked for and found
+   */
+  @Name("flightapp.Search")
+  @Label("Search")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  public static class Search extends Event {
+    @Label("Origin")
+    String origin;
+
+    @Label("Destination")
+    String destination;
+
+    @Label("Direct Only")
+    boolean direct;
+
+    @Label("Day of Month")
+    int day;
+
+    @Label("Order")
+    String order;
+
+    @Label("Requested")
+    int requested;
+
+    @Label("Returned")
+    int returned;
+
+    @Label("Response Length")
+    @Description("Characters in the response")
+    int responseLength;
+
+    public static Search start() {
+      Search event = new Search();
+      event.begin();
+      return event;
+    }
+
+    public void finish(String origin, String destination, boolean direct, int day,
+                       SearchOrder order, int requested, int returned, String response) {
+      if (shouldCommit()) {
+        this.origin = origin;
+        this.destination = destination;
+        this.direct = direct;
+        this.day = day;
+        this.order = order.name().toLowerCase();
+        this.requested = requested;
+        this.returned = returned;
+        this.responseLength = response != null ? response.length() : -1;
+        commit();
+      }
+    }
+  }
+}
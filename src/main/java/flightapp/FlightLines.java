@@ -0,0 +1,80 @@
+package flightapp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide cache of the rendered "ID: ... Day: ... Carrier: ..." line of each flight, as
+ * UTF-8 bytes ready to be copied into a ResponseBuilder.
+ *
+ * Popular flights show up in many searches and reservation listings; with the cache their line
+ * is formatted once instead of on every appearance.  An entry is keyed by fid and re-rendered
+ * whenever it's asked for with a different capacity than it was rendered with; changes to any
+ * other column of Flights empty the whole cache once FlightsWatcher notices them.  At most
+ * flightapp.flight_lines.max_entries (default 100000) flights are cached; lines of further
+ * flights are rendered every time.
+ */
+public class FlightLines {
+  private static final FlightLines GLOBAL =
+      new FlightLines(DBConnUtils.getIntProperty("flightapp.flight_lines.max_entries", 100000));
+
+  /**
+   * The cache shared by every session in this process
+   */
+  public static FlightLines global() {
+    return GLOBAL;
+  }
+
+  private final int maxEntries;
+  private final Map<Integer, Line> lines = new ConcurrentHashMap<>();
+
+  public FlightLines(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * The encoded line of flight {@code fid}, rendered with {@code render} unless it is cached for
+   * the same {@code capacity}
+   */
+  public byte[] line(int fid, int capacity, Supplier<String> render) {
+    Line line = lines.get(fid);
+    if (line != null && line.capacity == capacity) {
+      return line.bytes;
+    }
+    byte[] bytes = render.get().getBytes(StandardCharsets.UTF_8);
+    if (line != null || lines.size() < maxEntries) {
+      lines.put(fid, new Line(capacity, bytes));
+    }
+    return bytes;
+  }
+
+  /**
+   * Drops the cached line of {@code fid}, eg after its row was changed
+   */
+  public void invalidate(int fid) {
+    lines.remove(fid);
+  }
+
+  /**
+   * Drops every cached line, eg after Flights changed
+   */
+  public void clear() {
+    lines.clear();
+  }
+
+  public int size() {
+    return lines.size();
+  }
+
+  private static class Line {
+    final int capacity;
+    final byte[] bytes;
+
+    Line(int capacity, byte[] bytes) {
+      this.capacity = capacity;
+      this.bytes = bytes;
+    }
+  }
+}
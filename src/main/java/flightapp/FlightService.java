@@ -7,11 +7,54 @@ import java.sql.*;
 
 public class FlightService {
 
+  // A quoted argument, or a run of anything but whitespace
+  private static final Pattern TOKEN = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+
   /**
    * Execute the specified command on the database query connection
    */
   public static String execute(QueryAbstract q, String command) {
     String[] tokens = tokenize(command.trim());
+    TrafficCapture capture = TrafficCapture.shared();
+    if (capture == null) {
+      return admitAndRun(q, tokens);
+    }
+    long start = System.nanoTime();
+    String response = admitAndRun(q, tokens);
+    capture.record(q.getSessionId(), command, tokens, start, System.nanoTime());
+    return response;
+  }
+
+  private static String admitAndRun(QueryAbstract q, String[] tokens) {
+    CommandMetrics.Operation op =
+        tokens.length > 0 ? CommandMetrics.Operation.forCommand(tokens[0]) : null;
+    AdmissionControl admission = AdmissionControl.shared();
+    if (op == null || admission == null) {
+      return run(q, tokens);
+    }
+
+    String rejection = admission.admit(op, userOf(q));
+    if (rejection != null) {
+      return rejection;
+    }
+    try {
+      return run(q, tokens);
+    } finally {
+      admission.release(op);
+    }
+  }
+
+  /**
+   * Who a command is rate limited as: the logged-in user, or else the session's client.  A
+   * login or create is not limited as the username it names, or anyone could lock a user out
+   * by sending logins in their name.
+   */
+  private static String userOf(QueryAbstract q) {
+    String user = q.getLoggedInUser();
+    return user != null ? user : q.getClientSource();
+  }
+
+  private static String run(QueryAbstract q, String[] tokens) {
     String response;
 
     // empty input
@@ -30,6 +73,20 @@ public class FlightService {
       }
     }
 
+    // token
+    else if (tokens[0].equals("token")) {
+      response = q.token();
+    }
+
+    // resume
+    else if (tokens[0].equals("resume")) {
+      if (tokens.length == 2) {
+        response = q.resume(tokens[1]);
+      } else {
+        response = "Error: Please provide a session token";
+      }
+    }
+
     // create
     else if (tokens[0].equals("create")) {
       if (tokens.length == 4) {
@@ -44,19 +101,26 @@ public class FlightService {
 
     // search
     else if (tokens[0].equals("search")) {
-      if (tokens.length == 6) {
+      if (tokens.length == 6 || tokens.length == 7) {
         String originCity = tokens[1];
         String destinationCity = tokens[2];
         boolean direct = tokens[3].equals("1");
+        SearchOrder order = tokens.length == 7 ? SearchOrder.parse(tokens[6]) : SearchOrder.TIME;
         try {
           int day = Integer.valueOf(tokens[4]);
           int count = Integer.valueOf(tokens[5]);
-          response = q.search(originCity, destinationCity, direct, day, count);
+          if (order == null) {
+            response = "Error: Unknown sort order '" + tokens[6] + "', expected time, price or pareto";
+          } else if (order == SearchOrder.TIME) {
+            response = q.search(originCity, destinationCity, direct, day, count);
+          } else {
+            response = q.search(originCity, destinationCity, direct, day, count, order);
+          }
         } catch (NumberFormatException e) {
           response = "Failed to parse integer";
         }
       } else {
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
+        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries> [time|price|pareto]";
       }
     }
 
@@ -106,11 +170,28 @@ public class FlightService {
    * @throws IOException
    */
   public static void main(String[] args) throws IOException, SQLException {
+    CommandMetrics.startDumpFromSettings();
     QueryAbstract q = new Query();
+    String client = clientAddress();
+    if (client != null) {
+      q.setClientSource(client);
+    }
     menu(q);
     q.closeConnection();
   }
 
+  /**
+   * The address of the client this process is serving, when it was started for a remote login
+   * (from the SSH_CLIENT environment variable, "address port localport"), or null
+   */
+  static String clientAddress() {
+    String ssh = System.getenv("SSH_CLIENT");
+    if (ssh == null || ssh.trim().isEmpty()) {
+      return null;
+    }
+    return "addr:" + ssh.trim().split("\\s+")[0];
+  }
+
   /**
    * REPL (Read-Execute-Print-Loop) for Flights application for the specified
    * application-to-database connection
@@ -125,7 +206,9 @@ public class FlightService {
       System.out.println(" *** Please enter one of the following commands *** ");
       System.out.println("> create <username> <password> <initial amount>");
       System.out.println("> login <username> <password>");
-      System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+      System.out.println("> token");
+      System.out.println("> resume <session token>");
+      System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries> [time|price|pareto]");
       System.out.println("> book <itinerary id>");
       System.out.println("> pay <reservation id>");
       System.out.println("> reservations");
@@ -148,9 +231,8 @@ public class FlightService {
   /**
    * Tokenize a string into a string array
    */
-  private static String[] tokenize(String command) {
-    String regex = "\"([^\"]*)\"|(\\S+)";
-    Matcher m = Pattern.compile(regex).matcher(command);
+  static String[] tokenize(String command) {
+    Matcher m = TOKEN.matcher(command);
     List<String> tokens = new ArrayList<>();
     while (m.find()) {
       if (m.group(1) != null)
@@ -0,0 +1,144 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells what the process keeps in memory about Flights (Reachability, FlightCache, FlightLines)
+ * that Flights changed, so it can be rebuilt or dropped.
+ *
+ * Flights has no triggers or rowversion to watch, so changes are seen through a checksum of the
+ * whole table: every flightapp.flights.check_secs (default 60, 0 to never check) a daemon
+ * thread computes it, and if it differs from the last check the listeners are called on that
+ * thread.  This needs nothing else to run (in particular not ConnectionsRefresher), at the
+ * cost of one scan of Flights per check.  CHECKSUM_AGG is not a cryptographic hash, so a
+ * change that happens to leave it and the row count the same goes unnoticed; a refresher
+ * running in this process also calls changed() itself as soon as it has rebuilt a day.
+ */
+public class FlightsWatcher {
+  // The row count is included so that deleting rows can't cancel out in the aggregate
+  static final String FLIGHTS_CHECKSUM_SQL =
+      "SELECT COUNT_BIG(*) AS flights, CHECKSUM_AGG(BINARY_CHECKSUM(fid, day_of_month, "
+      + "carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price, "
+      + "canceled)) AS checksum FROM Flights";
+
+  /**
+   * Called with an open connection to the primary after Flights changed
+   */
+  public interface Listener {
+    void flightsChanged(Connection conn) throws SQLException;
+  }
+
+  private static FlightsWatcher shared;
+
+  /**
+   * The watcher shared by every session in this process, started on first use
+   */
+  public static synchronized FlightsWatcher shared() throws SQLException, IOException {
+    if (shared == null) {
+      try (Connection conn = DBConnUtils.openConnection()) {
+        return shared(conn);
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * The shared watcher, started with {@code conn} (a session's connection to the primary) if
+   * this is the first use.  The process-wide caches of flights are always among its listeners.
+   */
+  public static synchronized FlightsWatcher shared(Connection conn) throws SQLException {
+    if (shared == null) {
+      shared = new FlightsWatcher(url -> DBConnUtils.openConnection(url), conn);
+      shared.addListener(c -> FlightLines.global().clear());
+      shared.addListener(c -> FlightCache.global().clear());
+      shared.start(DBConnUtils.getIntProperty("flightapp.flights.check_secs", 60));
+    }
+    return shared;
+  }
+
+  private final ConnectionOpener opener;
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+  private String checksum;
+
+  /**
+   * A watcher that opens its connections to the primary with {@code opener}, and computes the
+   * checksum it will compare the first check with through {@code conn} right away
+   */
+  FlightsWatcher(ConnectionOpener opener, Connection conn) throws SQLException {
+    this.opener = opener;
+    checksum = checksum(conn);
+  }
+
+  private void start(long checkSecs) {
+    if (checkSecs <= 0) {
+      return;
+    }
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "flightapp-flights-watcher");
+      t.setDaemon(true);
+      return t;
+    });
+    timer.scheduleWithFixedDelay(this::checkQuietly, checkSecs, checkSecs, TimeUnit.SECONDS);
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Computes the checksum of Flights, and calls the listeners if it changed since the last
+   * check
+   *
+   * @return whether it changed
+   */
+  synchronized boolean check() throws SQLException, IOException {
+    try (Connection conn = opener.open(null)) {
+      String current = checksum(conn);
+      if (current.equals(checksum)) {
+        return false;
+      }
+      checksum = current;
+      notifyListeners(conn);
+      return true;
+    }
+  }
+
+  /**
+   * Calls the listeners right away, eg after Flights was changed through {@code conn}
+   */
+  public synchronized void changed(Connection conn) throws SQLException {
+    checksum = checksum(conn);
+    notifyListeners(conn);
+  }
+
+  private void notifyListeners(Connection conn) throws SQLException {
+    for (Listener listener : listeners) {
+      listener.flightsChanged(conn);
+    }
+  }
+
+  private void checkQuietly() {
+    try {
+      check();
+    } catch (SQLException | IOException | RuntimeException e) {
+      // keep the old state, and try again at the next check
+      e.printStackTrace();
+    }
+  }
+
+  private static String checksum(Connection conn) throws SQLException {
+    try (PreparedStatement stmt = conn.prepareStatement(FLIGHTS_CHECKSUM_SQL);
+         ResultSet rs = stmt.executeQuery()) {
+      return rs.next() ? rs.getLong("flights") + ":" + rs.getInt("checksum") : "";
+    }
+  }
+}
@@ -0,0 +1,358 @@
+package flightapp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary journal of committed bookings and payments, so that auditing and
+ * downstream consumers can read them from local files instead of querying the reservations
+ * table on the primary.
+ *
+ * The journal is a directory of segment files named after the sequence number of their first
+ * entry ([seq].journal, zero-padded), each up to flightapp.journal.segment_bytes (default
+ * 64MB).  Every entry is
+ *
+ *   int length, int crc32 of the body, body:
+ *     byte type, long seq, long timestamp (epoch millis), int rid, int fid1, int fid2 (-1 for
+ *     none), int amount, short username length, username (UTF-8)
+ *
+ * all big-endian.  Entries are written to the segment's FileChannel as they are appended and
+ * forced to disk together every flightapp.journal.fsync_ms (default 10) milliseconds, so a
+ * burst of commits shares one fsync; an OS crash can lose the entries of the last interval,
+ * but never leaves a partial entry behind undetected.  Opening the journal truncates a torn
+ * last entry, and Reader maps the segments and decodes them sequentially.  Enabled by setting
+ * flightapp.journal.dir.
+ */
+public class Journal implements Closeable {
+  private static final String SUFFIX = ".journal";
+  private static final int HEADER_BYTES = 8;
+  private static final int FIXED_BODY_BYTES = 1 + 8 + 8 + 4 * 4 + 2;
+
+  private static Journal shared;
+  private static boolean sharedOpened;
+
+  /**
+   * The journal of this process, or null if flightapp.journal.dir isn't set
+   */
+  public static synchronized Journal shared() throws IOException {
+    if (!sharedOpened) {
+      String dir = DBConnUtils.getProperty("flightapp.journal.dir", null);
+      if (dir != null) {
+        shared = new Journal(Paths.get(dir),
+                             DBConnUtils.getIntProperty("flightapp.journal.segment_bytes",
+                                                        64 * 1024 * 1024),
+                             DBConnUtils.getIntProperty("flightapp.journal.fsync_ms", 10));
+      }
+      sharedOpened = true;
+    }
+    return shared;
+  }
+
+  /**
+   * One journaled event
+   */
+  public static class Entry {
+    public enum Type {
+      BOOKING, PAYMENT
+    }
+
+    public final Type type;
+    public final long seq;
+    public final long timestampMillis;
+    public final int rid;
+    public final String username;
+    public final int fid1;
+    public final int fid2;
+    // price of the booked itinerary, or the amount paid
+    public final int amount;
+
+    Entry(Type type, long seq, long timestampMillis, int rid, String username, int fid1,
+          int fid2, int amount) {
+      this.type = type;
+      this.seq = seq;
+      this.timestampMillis = timestampMillis;
+      this.rid = rid;
+      this.username = username;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+      this.amount = amount;
+    }
+
+    @Override
+    public String toString() {
+      return seq + " " + timestampMillis + " " + type + " rid=" + rid + " user=" + username
+          + " fid1=" + fid1 + " fid2=" + fid2 + " amount=" + amount;
+    }
+  }
+
+  private final Path dir;
+  private final long segmentBytes;
+  private final ScheduledExecutorService flusher;
+  private FileChannel segment;
+  private long segmentSize;
+  private long nextSeq;
+  private volatile boolean dirty;
+
+  public Journal(Path dir, long segmentBytes, long fsyncMs) throws IOException {
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    Files.createDirectories(dir);
+    recover();
+    flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "flightapp-journal-fsync");
+      t.setDaemon(true);
+      return t;
+    });
+    flusher.scheduleWithFixedDelay(this::flushQuietly, fsyncMs, fsyncMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Journals a committed booking of {@code rid}; {@code fid2} is -1 for direct flights
+   */
+  public long appendBooking(int rid, String username, int fid1, int fid2, int price)
+      throws IOException {
+    return append(Entry.Type.BOOKING, rid, username, fid1, fid2, price);
+  }
+
+  /**
+   * Journals a committed payment for {@code rid}
+   */
+  public long appendPayment(int rid, String username, int fid1, int fid2, int amount)
+      throws IOException {
+    return append(Entry.Type.PAYMENT, rid, username, fid1, fid2, amount);
+  }
+
+  private synchronized long append(Entry.Type type, int rid, String username, int fid1,
+                                   int fid2, int amount) throws IOException {
+    byte[] user = username.getBytes(StandardCharsets.UTF_8);
+    int bodyBytes = FIXED_BODY_BYTES + user.length;
+    ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + bodyBytes);
+    buf.putInt(bodyBytes).putInt(0);
+    buf.put((byte) type.ordinal()).putLong(nextSeq).putLong(System.currentTimeMillis())
+        .putInt(rid).putInt(fid1).putInt(fid2).putInt(amount)
+        .putShort((short) user.length).put(user);
+    CRC32 crc = new CRC32();
+    crc.update(buf.array(), HEADER_BYTES, bodyBytes);
+    buf.putInt(4, (int) crc.getValue());
+    buf.flip();
+
+    if (segmentSize > 0 && segmentSize + buf.remaining() > segmentBytes) {
+      roll();
+    }
+    while (buf.hasRemaining()) {
+      segmentSize += segment.write(buf);
+    }
+    dirty = true;
+    return nextSeq++;
+  }
+
+  /**
+   * Forces everything appended so far to disk
+   */
+  public void sync() throws IOException {
+    FileChannel current;
+    synchronized (this) {
+      current = segment;
+      dirty = false;
+    }
+    try {
+      // outside the lock, so appends can go on while the disk catches up
+      current.force(false);
+    } catch (ClosedChannelException e) {
+      // rolled meanwhile, and roll() forces the segment before closing it
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    flusher.shutdown();
+    segment.force(false);
+    segment.close();
+  }
+
+  private void flushQuietly() {
+    if (dirty) {
+      try {
+        sync();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void roll() throws IOException {
+    segment.force(false);
+    segment.close();
+    openSegment(nextSeq);
+  }
+
+  private void openSegment(long firstSeq) throws IOException {
+    segment = FileChannel.open(dir.resolve(String.format("%020d", firstSeq) + SUFFIX),
+                               StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    segmentSize = 0;
+  }
+
+  /**
+   * Continues after the last complete entry of the last segment, cutting off a torn one
+   */
+  private void recover() throws IOException {
+    List<Path> segments = segments(dir);
+    if (segments.isEmpty()) {
+      nextSeq = 1;
+      openSegment(nextSeq);
+      return;
+    }
+    Path last = segments.get(segments.size() - 1);
+    nextSeq = firstSeqOf(last);
+    long validBytes = 0;
+    try (Reader reader = new Reader(List.of(last))) {
+      Entry entry;
+      while ((entry = reader.next()) != null) {
+        nextSeq = entry.seq + 1;
+        validBytes = reader.position();
+      }
+    }
+    segment = FileChannel.open(last, StandardOpenOption.WRITE);
+    segment.truncate(validBytes);
+    segment.position(validBytes);
+    segmentSize = validBytes;
+  }
+
+  /**
+   * Reads every entry in {@code dir}, oldest first
+   */
+  public static Reader read(Path dir) throws IOException {
+    return new Reader(segments(dir));
+  }
+
+  private static List<Path> segments(Path dir) throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.filter(p -> p.getFileName().toString().endsWith(SUFFIX))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private static long firstSeqOf(Path segment) {
+    String name = segment.getFileName().toString();
+    return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+  }
+
+  /**
+   * Sequential reader over memory-mapped segments.  Each segment is read up to its first
+   * incomplete or corrupt entry, ie up to what was written when it was mapped.
+   */
+  public static class Reader implements Closeable {
+    private final List<Path> segments;
+    private int nextSegment;
+    private MappedByteBuffer current;
+
+    Reader(List<Path> segments) {
+      this.segments = new ArrayList<>(segments);
+    }
+
+    /**
+     * The next entry, or null after the last one
+     */
+    public Entry next() throws IOException {
+      while (true) {
+        if (current != null) {
+          Entry entry = decode(current);
+          if (entry != null) {
+            return entry;
+          }
+        }
+        if (nextSegment >= segments.size()) {
+          return null;
+        }
+        try (FileChannel channel = FileChannel.open(segments.get(nextSegment++),
+                                                    StandardOpenOption.READ)) {
+          current = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+      }
+    }
+
+    /**
+     * Offset in the current segment just past the last entry returned
+     */
+    long position() {
+      return current == null ? 0 : current.position();
+    }
+
+    @Override
+    public void close() {
+      current = null;
+    }
+
+    private static Entry decode(ByteBuffer buf) {
+      if (buf.remaining() < HEADER_BYTES) {
+        return null;
+      }
+      int start = buf.position();
+      int bodyBytes = buf.getInt(start);
+      int checksum = buf.getInt(start + 4);
+      if (bodyBytes < FIXED_BODY_BYTES || bodyBytes > buf.remaining() - HEADER_BYTES) {
+        return null;
+      }
+      ByteBuffer body = buf.duplicate();
+      body.position(start + HEADER_BYTES).limit(start + HEADER_BYTES + bodyBytes);
+      CRC32 crc = new CRC32();
+      crc.update(body.duplicate());
+      if ((int) crc.getValue() != checksum) {
+        return null;
+      }
+
+      int typeIndex = body.get();
+      if (typeIndex < 0 || typeIndex >= Entry.Type.values().length) {
+        return null;
+      }
+      long seq = body.getLong();
+      long timestamp = body.getLong();
+      int rid = body.getInt();
+      int fid1 = body.getInt();
+      int fid2 = body.getInt();
+      int amount = body.getInt();
+      byte[] user = new byte[body.getShort() & 0xffff];
+      if (user.length != body.remaining()) {
+        return null;
+      }
+      body.get(user);
+      buf.position(start + HEADER_BYTES + bodyBytes);
+      return new Entry(Entry.Type.values()[typeIndex], seq, timestamp, rid,
+                       new String(user, StandardCharsets.UTF_8), fid1, fid2, amount);
+    }
+  }
+
+  /**
+   * Prints the journal in {@code args[0]}, one entry per line
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      System.out.println("Usage: Journal <journal directory>");
+      return;
+    }
+    try (Reader reader = read(Paths.get(args[0]))) {
+      Entry entry;
+      while ((entry = reader.next()) != null) {
+        System.out.println(entry);
+      }
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package flightapp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size, lock-free latency histogram in the style of HdrHistogram.
+ *
+ * Values (in nanoseconds) are counted in log-linear buckets: every power-of-two range is split
+ * into the same number of linear sub-buckets, so any recorded value is reported back with a
+ * relative error of at most 1/64 (about 1.5%).  Recording updates the bucket count, the total
+ * and the maximum, each with its own atomic operation and without taking a lock.
+ */
+public class LatencyHistogram {
+  // SUB_BUCKET_HALF linear buckets per power of two above SUB_BUCKET_COUNT
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+  // Anything slower than ~18 minutes is clamped into the last bucket
+  static final long HIGHEST_TRACKABLE_VALUE = (1L << 40) - 1;
+
+  private static final int BUCKET_COUNT = indexFor(HIGHEST_TRACKABLE_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final LongAdder totalNanos = new LongAdder();
+  private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+  /**
+   * Records a single latency, in nanoseconds.  Negative values are recorded as 0.
+   */
+  public void recordValue(long nanos) {
+    long value = Math.min(Math.max(nanos, 0), HIGHEST_TRACKABLE_VALUE);
+    counts.incrementAndGet(indexFor(value));
+    totalNanos.add(value);
+    maxNanos.accumulate(value);
+  }
+
+  /**
+   * Takes a consistent-enough copy of the current counts.  Concurrent recordings may or may not
+   * be included, but the snapshot itself never changes afterwards.
+   */
+  public Snapshot snapshot() {
+    long[] copy = new long[BUCKET_COUNT];
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      copy[i] = counts.get(i);
+      count += copy[i];
+    }
+    return new Snapshot(copy, count, totalNanos.sum(), maxNanos.get());
+  }
+
+  /**
+   * Clears all recorded values
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts.set(i, 0);
+    }
+    totalNanos.reset();
+    maxNanos.reset();
+  }
+
+  /**
+   * Maps a value to its bucket.  Values below SUB_BUCKET_COUNT get their own bucket; above that,
+   * each power of two gets SUB_BUCKET_HALF buckets.
+   */
+  static int indexFor(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int highestBit = 63 - Long.numberOfLeadingZeros(value);
+    int shift = highestBit - (SUB_BUCKET_BITS - 1);
+    int subBucket = (int) (value >> shift);  // in [SUB_BUCKET_HALF, SUB_BUCKET_COUNT)
+    return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (subBucket - SUB_BUCKET_HALF);
+  }
+
+  /**
+   * The largest value that maps to the given bucket
+   */
+  static long highestValueIn(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int offset = index - SUB_BUCKET_COUNT;
+    int shift = offset / SUB_BUCKET_HALF + 1;
+    long subBucket = offset % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  /**
+   * An immutable copy of a histogram's counts
+   */
+  public static class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+
+    Snapshot(long[] counts, long count, long totalNanos, long maxNanos) {
+      this.counts = counts;
+      this.count = count;
+      this.totalNanos = totalNanos;
+      this.maxNanos = maxNanos;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getMaxNanos() {
+      return maxNanos;
+    }
+
+    public double getMeanNanos() {
+      return count == 0 ? 0 : (double) totalNanos / count;
+    }
+
+    /**
+     * The latency at or below which {@code percentile} percent of the recorded values fall,
+     * eg valueAtPercentile(99.9).  Returns 0 if nothing was recorded.
+     */
+    public long valueAtPercentile(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long target = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100.0) / 100.0));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= target) {
+          return Math.min(highestValueIn(i), maxNanos);
+        }
+      }
+      return maxNanos;
+    }
+
+    /**
+     * Adds another snapshot's counts to this one's, eg to combine several sessions' results
+     */
+    public Snapshot add(Snapshot other) {
+      long[] sum = new long[counts.length];
+      for (int i = 0; i < sum.length; i++) {
+        sum[i] = counts[i] + other.counts[i];
+      }
+      return new Snapshot(sum, count + other.count, totalNanos + other.totalNanos,
+                          Math.max(maxNanos, other.maxNanos));
+    }
+  }
+}
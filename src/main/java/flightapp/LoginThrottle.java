@@ -0,0 +1,81 @@
+package flightapp;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns away login attempts for usernames, and from sources, that recently failed to log in
+ * too often, before they cost a database lookup and a PBKDF2 hash.
+ *
+ * Failed logins are counted per username (case-insensitively) and per source (see
+ * QueryAbstract.getClientSource()) in two DecayingSketches, so memory stays fixed (about 1MB
+ * each by default) however many usernames are tried.  The counts halve every
+ * flightapp.login_throttle.half_life_secs (default 60) seconds; a username with at least
+ * flightapp.login_throttle.max_user_failures (default 10) recent failures, or a source with
+ * at least flightapp.login_throttle.max_source_failures (default 50), gets "Login failed"
+ * without its password being checked.  A sketch can only overestimate, so an unlucky username
+ * sharing counters with attacked ones may be throttled early, never late.  Enabled with
+ * flightapp.login_throttle=true.
+ *
+ * A throttled login gets its "Login failed" at once rather than after a PBKDF2 hash, so its
+ * timing does tell that the username or source is throttled (though nothing about the
+ * password); skipping the hash is the point of the throttle.
+ */
+public class LoginThrottle {
+  private static final int DEPTH = 4;
+
+  private static LoginThrottle shared;
+
+  /**
+   * The throttle shared by every session in this process
+   */
+  public static synchronized LoginThrottle shared() {
+    if (shared == null) {
+      shared = new LoginThrottle(
+          DBConnUtils.getIntProperty("flightapp.login_throttle.max_user_failures", 10),
+          DBConnUtils.getIntProperty("flightapp.login_throttle.max_source_failures", 50),
+          DBConnUtils.getIntProperty("flightapp.login_throttle.width", 1 << 16),
+          TimeUnit.SECONDS.toNanos(
+              DBConnUtils.getIntProperty("flightapp.login_throttle.half_life_secs", 60)));
+    }
+    return shared;
+  }
+
+  private final int maxUserFailures;
+  private final int maxSourceFailures;
+  private final DecayingSketch userFailures;
+  private final DecayingSketch sourceFailures;
+
+  public LoginThrottle(int maxUserFailures, int maxSourceFailures, int width,
+                       long halfLifeNanos) {
+    this.maxUserFailures = maxUserFailures;
+    this.maxSourceFailures = maxSourceFailures;
+    this.userFailures = new DecayingSketch(DEPTH, width, halfLifeNanos);
+    this.sourceFailures = new DecayingSketch(DEPTH, width, halfLifeNanos);
+  }
+
+  /**
+   * Whether a login as {@code username} from {@code source} should be refused unchecked
+   */
+  public boolean isThrottled(String username, String source) {
+    long now = System.nanoTime();
+    return userFailures.estimate(username.toLowerCase(Locale.ROOT), now) >= maxUserFailures
+        || sourceFailures.estimate(source, now) >= maxSourceFailures;
+  }
+
+  /**
+   * Counts a wrong password or unknown username
+   */
+  public void recordFailure(String username, String source) {
+    long now = System.nanoTime();
+    userFailures.add(username.toLowerCase(Locale.ROOT), now);
+    sourceFailures.add(source, now);
+  }
+
+  /**
+   * Bytes used by both sketches
+   */
+  public long memoryBytes() {
+    return userFailures.memoryBytes() + sourceFailures.memoryBytes();
+  }
+}
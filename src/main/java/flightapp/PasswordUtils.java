@@ -84,9 +84,11 @@ public class PasswordUtils {
     // Hash the whole thing
     SecretKeyFactory factory = null;
     byte[] hash = null; 
+    FlightEvents.PasswordHash event = FlightEvents.PasswordHash.start();
     try {
       factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
       hash = factory.generateSecret(spec).getEncoded();
+      event.finish(HASH_STRENGTH);
       return hash;
     } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
       throw new IllegalStateException();
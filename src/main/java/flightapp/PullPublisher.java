@@ -0,0 +1,250 @@
+package flightapp;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Flow.Publisher for a single subscriber that pulls its items from a blocking Source only as
+ * fast as the subscriber requests them.
+ *
+ * The source is opened and read on {@code executor}, never on the subscriber's thread, and by
+ * one task at a time, so it doesn't need to be thread-safe (eg it can hold a session's JDBC
+ * result sets).  Nothing is read before the first request(), and reading doesn't start until
+ * {@code after} completes.  {@code done} completes once the source is closed: after the last
+ * item, an error or a cancel.
+ *
+ * With an idle timeout, a publisher that waits that long for its subscriber (to subscribe, or to
+ * request more items) gives up: the source is closed as if the subscription had been
+ * cancelled, {@code done} completes, and the subscriber, if there is one, gets a
+ * TimeoutException.  Otherwise a stalled or forgotten subscriber would keep the source (and
+ * whatever waits on {@code done}) blocked forever.
+ */
+public class PullPublisher<T> implements Flow.Publisher<T> {
+  /**
+   * Produces the items, blocking as needed
+   */
+  public interface Source<T> {
+    /**
+     * The next item, or null after the last one
+     */
+    T next() throws Exception;
+
+    void close() throws Exception;
+  }
+
+  private static ScheduledExecutorService idleTimer;
+
+  /**
+   * The daemon thread that checks publishers with an idle timeout, started on first use
+   */
+  private static synchronized ScheduledExecutorService idleTimer() {
+    if (idleTimer == null) {
+      idleTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "flightapp-stream-idle");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return idleTimer;
+  }
+
+  private final Executor executor;
+  private final CompletableFuture<?> after;
+  private final Callable<Source<T>> open;
+  private final CompletableFuture<Void> done;
+  private final long idleNanos;
+  private final AtomicBoolean subscribed = new AtomicBoolean();
+  private volatile Pull pull;
+  // when the publisher last heard from its subscriber or handed it items
+  private volatile long lastActive = System.nanoTime();
+  private ScheduledFuture<?> idleCheck;
+
+  public PullPublisher(Executor executor, CompletableFuture<?> after, Callable<Source<T>> open,
+                       CompletableFuture<Void> done) {
+    this(executor, after, open, done, 0);
+  }
+
+  /**
+   * A publisher that gives up after {@code idleTimeoutMs} milliseconds without demand from its
+   * subscriber (0 to wait forever)
+   */
+  public PullPublisher(Executor executor, CompletableFuture<?> after, Callable<Source<T>> open,
+                       CompletableFuture<Void> done, long idleTimeoutMs) {
+    this.executor = executor;
+    this.after = after;
+    this.open = open;
+    this.done = done;
+    this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+    if (idleTimeoutMs > 0) {
+      long period = Math.max(idleTimeoutMs / 4, 1);
+      idleCheck = idleTimer().scheduleWithFixedDelay(this::checkIdle, period, period,
+                                                     TimeUnit.MILLISECONDS);
+      done.whenComplete((r, e) -> idleCheck.cancel(false));
+    }
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super T> subscriber) {
+    if (!subscribed.compareAndSet(false, true)) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        @Override
+        public void request(long n) { }
+
+        @Override
+        public void cancel() { }
+      });
+      subscriber.onError(new IllegalStateException(
+          done.isDone() ? "The stream is closed" : "Only one subscriber is supported"));
+      return;
+    }
+    lastActive = System.nanoTime();
+    pull = new Pull(subscriber);
+    subscriber.onSubscribe(pull);
+  }
+
+  /**
+   * Gives up on a subscriber that hasn't subscribed or asked for more within the idle timeout
+   */
+  private void checkIdle() {
+    if (System.nanoTime() - lastActive < idleNanos) {
+      return;
+    }
+    if (subscribed.compareAndSet(false, true)) {
+      // never subscribed, so the source was never opened; let whatever waits on done go once
+      // the previous operation is done too
+      after.handle((r, e) -> done.complete(null));
+      return;
+    }
+    Pull current = pull;
+    if (current != null && current.idle()) {
+      current.timeOut();
+    }
+  }
+
+  private class Pull implements Flow.Subscription {
+    private final Flow.Subscriber<? super T> subscriber;
+    private final AtomicLong demand = new AtomicLong();
+    // Number of times drain() was asked for since the running drain started; only the
+    // request() or cancel() that raises it from 0 schedules a drain
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean cancelled;
+    private volatile boolean timedOut;
+    private volatile Throwable badRequest;
+    private Source<T> source;
+    private boolean finished;
+
+    Pull(Flow.Subscriber<? super T> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        badRequest = new IllegalArgumentException("request(" + n + ")");
+      } else {
+        demand.getAndAccumulate(n, (d, m) -> d + m < 0 ? Long.MAX_VALUE : d + m);
+      }
+      lastActive = System.nanoTime();
+      schedule();
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+      schedule();
+    }
+
+    /**
+     * Whether the publisher is waiting for the subscriber: nothing requested, nothing running
+     */
+    boolean idle() {
+      return demand.get() == 0 && pending.get() == 0;
+    }
+
+    void timeOut() {
+      timedOut = true;
+      cancelled = true;
+      schedule();
+    }
+
+    private void schedule() {
+      if (pending.getAndIncrement() == 0) {
+        after.handle((r, e) -> null).thenRunAsync(this::drain, executor);
+      }
+    }
+
+    private void drain() {
+      int missed = 1;
+      do {
+        if (!finished) {
+          pull();
+        }
+        missed = pending.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    /**
+     * Hands out items while there is demand; the only place that touches the source
+     */
+    private void pull() {
+      try {
+        if (cancelled || badRequest != null) {
+          finish();
+          if (timedOut) {
+            subscriber.onError(new TimeoutException(
+                "No items requested for " + TimeUnit.NANOSECONDS.toMillis(idleNanos) + "ms"));
+          } else if (badRequest != null && !cancelled) {
+            subscriber.onError(badRequest);
+          }
+          return;
+        }
+        while (demand.get() > 0 && !cancelled) {
+          if (source == null) {
+            source = open.call();
+          }
+          T item = source.next();
+          if (item == null) {
+            finish();
+            subscriber.onComplete();
+            return;
+          }
+          demand.decrementAndGet();
+          subscriber.onNext(item);
+        }
+        lastActive = System.nanoTime();
+        if (cancelled) {
+          finish();
+        }
+      } catch (Throwable t) {
+        finish();
+        subscriber.onError(t);
+      }
+    }
+
+    private void finish() {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      try {
+        if (source != null) {
+          source.close();
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+      } finally {
+        done.complete(null);
+      }
+    }
+  }
+}
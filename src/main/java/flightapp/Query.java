@@ -1,14 +1,27 @@
 package flightapp;
 
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 /**
  * Runs queries against a back-end database
@@ -47,10 +60,66 @@ public class Query extends QueryAbstract {
 
   private PreparedStatement indirectFlightStmt;
 
-  private static final String INSERT_BOOKING_SQL  = "INSERT INTO Reservations_yshubber (rid, userId, paid, DirectFlightId, IndirectFlightID) VALUES (?, ?, ?, ?, ?)";
+  // Same result as INDIRECT_FLIGHT_SQL, read from the precomputed FlightConnections table (see
+  // ConnectionsRefresher): a seek on its primary key, which is already in total time order
+  private static final String CONNECTIONS_SQL = "SELECT TOP (?) f1.fid AS fid1, f1.day_of_month AS day1, f1.carrier_id AS carrier1, f1.flight_num AS flightNum1, f1.origin_city AS origin1, f1.dest_city AS dest1, f1.actual_time AS time1, f1.capacity AS capacity1, f1.price AS price1, " +
+                                               "f2.fid AS fid2, f2.day_of_month AS day2, f2.carrier_id AS carrier2, f2.flight_num AS flightNum2, f2.origin_city AS origin2, f2.dest_city AS dest2, f2.actual_time AS time2, f2.capacity AS capacity2, f2.price AS price2 " +
+                                               "FROM FlightConnections c " +
+                                               "JOIN Flights f1 ON f1.fid = c.fid1 JOIN Flights f2 ON f2.fid = c.fid2 " +
+                                               "WHERE c.origin_city = ? AND c.dest_city = ? AND c.day_of_month = ? " +
+                                               "ORDER BY c.total_time, c.fid1, c.fid2";
+  private PreparedStatement connectionsStmt;
+
+  // The labels of a flight's fields in the rows of the canned queries, in Flight constructor
+  // order (see FlightDecoder)
+  private static final String[] FLIGHT_COLUMNS = {"fid", "day_of_month", "carrier_id", "flight_num", "origin_city", "dest_city", "actual_time", "capacity", "price"};
+  private static final String[] FIRST_FLIGHT_COLUMNS = {"fid1", "day1", "carrier1", "flightNum1", "origin1", "dest1", "time1", "capacity1", "price1"};
+  private static final String[] SECOND_FLIGHT_COLUMNS = {"fid2", "day2", "carrier2", "flightNum2", "origin2", "dest2", "time2", "capacity2", "price2"};
+  private static final String[] RESERVED_FLIGHT1_COLUMNS = withSuffix(FLIGHT_COLUMNS, "1");
+  private static final String[] RESERVED_FLIGHT2_COLUMNS = withSuffix(FLIGHT_COLUMNS, "2");
+
+  // Search rows are fetched in batches of at most this many
+  private static final int MAX_FETCH_SIZE = 1000;
+
+  // Streamed one-stop rows are fetched in small batches, a few at a time as they're requested
+  private static final int STREAM_FETCH_SIZE = 20;
+
+  // For cheapest-first and Pareto searches
+  private static final String DIRECT_FLIGHT_PRICE_SQL = "SELECT TOP (?) fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price " +
+                                                        "FROM Flights " +
+                                                        "WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? " +
+                                                        "ORDER BY price, actual_time, fid";
+  private PreparedStatement directFlightPriceStmt;
+
+  // One-stop legs are fetched per side (both index seeks with createFlightsIndexes.sql) and
+  // paired up in memory, rather than materializing and sorting the Flights x Flights join
+  private static final String FIRST_LEGS_SQL = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price " +
+                                               "FROM Flights " +
+                                               "WHERE origin_city = ? AND day_of_month = ? AND canceled = 0 " +
+                                               "ORDER BY price, fid";
+  private PreparedStatement firstLegsStmt;
+
+  private static final String SECOND_LEGS_SQL = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price " +
+                                                "FROM Flights " +
+                                                "WHERE dest_city = ? AND day_of_month = ? AND canceled = 0 " +
+                                                "ORDER BY price, fid";
+  private PreparedStatement secondLegsStmt;
+
+  // Books in a single statement.  The next rid comes from a seek on the clustered primary key,
+  // and a second booking on the same day is rejected by the UQ_Reservations_yshubber_userDay
+  // constraint rather than by reading the user's existing reservations.  Returns the new rid.
+  // Books on one shard (see Shards): rids go up by the number of shards
+  private static final String INSERT_BOOKING_SQL =
+      "SET NOCOUNT ON; " +
+      "DECLARE @user VARCHAR(20) = ?, @fid1 INT = ?, @fid2 INT = ?, @day INT = ?; " +
+      "DECLARE @shards INT = ?, @shard INT = ?; " +
+      "INSERT INTO Reservations_yshubber (rid, userId, paid, DirectFlightId, IndirectFlightId, day_of_month) " +
+      "OUTPUT inserted.rid " +
+      "SELECT n.rid, @user, 0, @fid1, @fid2, @day " +
+      "FROM (SELECT COALESCE(MAX(rid) + @shards, @shard + 1) AS rid FROM Reservations_yshubber WITH (UPDLOCK, HOLDLOCK)) n;";
   private PreparedStatement insertBookingStmt;
 
-  private static final String PAY_BOOKING_SQL = "SELECT r.userId, r.paid, f1.price + COALESCE(f2.price, 0) AS totalCost FROM Reservations_yshubber r LEFT JOIN Flights f1 ON r.DirectFlightId = f1.fid LEFT JOIN Flights f2 ON r.IndirectFlightId = f2.fid WHERE r.rid = ?";
+  private static final String PAY_BOOKING_SQL = "SELECT r.userId, r.paid, r.DirectFlightId AS fid1, r.IndirectFlightId AS fid2, f1.price + COALESCE(f2.price, 0) AS totalCost FROM Reservations_yshubber r LEFT JOIN Flights f1 ON r.DirectFlightId = f1.fid LEFT JOIN Flights f2 ON r.IndirectFlightId = f2.fid WHERE r.rid = ?";
   private PreparedStatement payBookingStmt;
   private static final String RETRIEVE_RESERVATIONS_SQL = "SELECT r.rid, r.paid, f1.fid AS fid1, f1.day_of_month AS day_of_month1, f1.carrier_id AS carrier_id1, f1.flight_num AS flight_num1, f1.origin_city AS origin_city1, f1.dest_city AS dest_city1, f1.actual_time AS actual_time1, f1.capacity AS capacity1, f1.price AS price1, f2.fid AS fid2, f2.day_of_month AS day_of_month2, f2.carrier_id AS carrier_id2, f2.flight_num AS flight_num2, f2.origin_city AS origin_city2, f2.dest_city AS dest_city2, f2.actual_time AS actual_time2, f2.capacity AS capacity2, f2.price AS price2 FROM Reservations_yshubber r LEFT JOIN Flights f1 ON r.DirectFlightId = f1.fid LEFT JOIN Flights f2 ON r.IndirectFlightId = f2.fid WHERE r.userId = ?";
   private PreparedStatement retrieveReservationsStmt; 
@@ -60,17 +129,55 @@ public class Query extends QueryAbstract {
   private PreparedStatement updateUserBalanceStmt; 
   private static final String UPDATE_BALANCE_SQL = "SELECT balance FROM Users_yshubber WHERE username = ?"; 
   private PreparedStatement updateBalanceStmt; 
+
+  // Pays in a single round trip: the balance is debited only if the reservation exists, belongs
+  // to the user, is unpaid and is covered by the balance, and the reservation is marked paid in
+  // the same server-side transaction.  The result row says what happened:
+  //   status 1: paid, balance is what's left; status 0: balance doesn't cover cost;
+  //   status -1: no such unpaid reservation for this user
+  // and on success fid1/fid2 are the reservation's flights, for the journal
+  private static final String PAY_SINGLE_STATEMENT_SQL =
+      "SET NOCOUNT ON; SET XACT_ABORT ON; " +
+      "DECLARE @rid INT = ?, @user VARCHAR(20) = ?; " +
+      "DECLARE @status INT = -1, @balance INT, @cost INT, @fid1 INT, @fid2 INT; " +
+      "DECLARE @debited TABLE (balance INT, cost INT, fid1 INT, fid2 INT); " +
+      "BEGIN TRANSACTION; " +
+      "UPDATE u SET balance = u.balance - r.cost " +
+      "OUTPUT inserted.balance, r.cost, r.fid1, r.fid2 INTO @debited " +
+      "FROM Users_yshubber u " +
+      "JOIN (SELECT r.userId, r.DirectFlightId AS fid1, r.IndirectFlightId AS fid2, " +
+      "             f1.price + COALESCE(f2.price, 0) AS cost " +
+      "      FROM Reservations_yshubber r WITH (UPDLOCK) " +
+      "      JOIN Flights f1 ON r.DirectFlightId = f1.fid " +
+      "      LEFT JOIN Flights f2 ON r.IndirectFlightId = f2.fid " +
+      "      WHERE r.rid = @rid AND r.userId = @user AND r.paid = 0) r ON u.username = r.userId " +
+      "WHERE u.balance >= r.cost; " +
+      "IF @@ROWCOUNT = 1 " +
+      "BEGIN " +
+      "  UPDATE Reservations_yshubber SET paid = 1 WHERE rid = @rid; " +
+      "  SELECT @status = 1, @balance = balance, @cost = cost, @fid1 = fid1, @fid2 = fid2 " +
+      "  FROM @debited; " +
+      "END " +
+      "ELSE " +
+      "  SELECT @status = 0, @balance = u.balance, @cost = f1.price + COALESCE(f2.price, 0) " +
+      "  FROM Reservations_yshubber r " +
+      "  JOIN Users_yshubber u ON u.username = r.userId " +
+      "  JOIN Flights f1 ON r.DirectFlightId = f1.fid " +
+      "  LEFT JOIN Flights f2 ON r.IndirectFlightId = f2.fid " +
+      "  WHERE r.rid = @rid AND r.userId = @user AND r.paid = 0; " +
+      "COMMIT TRANSACTION; " +
+      "SELECT @status AS status, @balance AS balance, @cost AS cost, @fid1 AS fid1, " +
+      "       @fid2 AS fid2;";
+  private PreparedStatement paySingleStatementStmt;
   //change below 
-  private static final String SAME_DAY_RESERVATION_SQL = "SELECT CASE WHEN COUNT(*) > 0 THEN 1 ELSE 0 END AS collision FROM Reservations_yshubber r JOIN Flights f1 ON r.DirectFlightId = f1.fid OR r.IndirectFlightId = f1.fid WHERE r.userId = ? AND f1.day_of_month = ?";
+  // A seek on UQ_Reservations_yshubber_userDay, to tell a same-day duplicate key error from a
+  // rid race (their error codes are the same, and the message naming the constraint is localized)
+  private static final String SAME_DAY_RESERVATION_SQL = "SELECT 1 FROM Reservations_yshubber WHERE userId = ? AND day_of_month = ?";
   private PreparedStatement reservationCollisionStmt; 
 
   private static final String GET_BOOKED_COUNT_SQL = "Select Count(*) as num FROM Reservations_yshubber WHERE DirectFlightId = ? or IndirectFlightId = ?"; 
   private PreparedStatement getBookedStmt;
 
-  private static final String GET_DAY_SQL = "SELECT f.day_of_month FROM Reservations_yshubber AS r JOIN (SELECT f.day_of_month, f.fid FROM FLIGHTS AS f) AS f ON (f.fid = r.IndirectFlightId OR f.fid = r.DirectFlightId) WHERE r.userId = ?";
-
-  // "SELECT day_of_month AS day FROM Flights JOIN Reservations_yshubber ON Reservations_yshubber.DirectFlightId = Flights.fid OR Reservations_yshubber.IndirectFlightId = Flights.fid WHERE rid = ?";
-  private PreparedStatement getDayStmt; 
 
 
   //
@@ -78,6 +185,10 @@ public class Query extends QueryAbstract {
   //
 private List<Itinerary> itineraries = new ArrayList<>();
 
+// Cheapest first, then the usual time-based ordering
+private static final Comparator<Itinerary> PRICE_ORDER =
+    Comparator.comparingInt(Itinerary::getPrice).thenComparing(Comparator.naturalOrder());
+
 private String username;
 
 public void setUsername(String username){
@@ -90,13 +201,200 @@ public int getId(int id) {
   return id; 
 }
 
-private int rid = 1; 
 private boolean loggedIn;
+
+// Whether pay uses PAY_SINGLE_STATEMENT_SQL or the older multi-statement transaction
+private boolean singleStatementPay;
+
+// If not null, bookings are group-committed through these pipelines, one per shard, instead of
+// INSERT_BOOKING_SQL
+private BookingPipeline[] bookingPipelines;
+
+// How long a booking waits for its pipeline batch to commit before it's reported as failed
+private long bookingTimeoutMs;
+
+// The suffix of this session's Users/Reservations tables (see DBConnUtils.withTableSuffix)
+private final String tableSuffix;
+
+// Decoders by query and flight columns, see decoder()
+private final Map<String, Map<String[], FlightDecoder>> decoders = new HashMap<>();
+
+// Searches that run longer than this are cancelled by the driver
+private final int searchTimeoutSecs;
+
+// Whether one-stop searches read FlightConnections instead of joining Flights with itself
+private boolean useConnectionsTable;
+
+// If not null, searches that can't match anything are answered without asking the database
+private Reachability reachability;
+
+// The databases that users and reservations are partitioned over; a single shard is just conn
+private Shards shards;
+
+// If not null, logins for usernames or from client sources (see getClientSource()) that failed
+// too often are refused early
+private LoginThrottle loginThrottle;
+
+// If not null, committed bookings and payments are appended to this journal
+private Journal journal;
+
+// If not null, reservations listings are served from and invalidated in this cache
+private ReservationsCache reservationsCache;
+
+// If not null, read-only transactions go to these replicas instead of conn (see routeRead)
+private ReplicaPool replicaPool;
+
+// The replica connection of the read-only transaction in progress; null when reading from conn
+private ReplicaPool.Lease readLease;
+
+// The primary's commit position after this session's last write, which a replica must have
+// reached to serve the session's reads (see ReplicaPool.read); null before the first write
+private BigDecimal writePosition;
+
+// Whether this session wrote since writePosition was read; the position is only read when the
+// session next reads (see routeRead), so writes that aren't followed by a read cost nothing
+private boolean writePositionStale;
+
   protected Query() throws SQLException, IOException {
+    this(DBConnUtils.DEFAULT_TABLE_SUFFIX);
+  }
+
+  /**
+   * Creates a session that works on the Users_[suffix] and Reservations_[suffix] tables
+   * instead of the default ones
+   */
+  protected Query(String tableSuffix) throws SQLException, IOException {
+    this(DBConnUtils.openConnection(), tableSuffix);
+  }
+
+  /**
+   * A session on an already open connection to the primary, eg a fake one in a test
+   */
+  Query(Connection conn, String tableSuffix) throws SQLException, IOException {
+    super(conn);
+    this.tableSuffix = tableSuffix;
     loggedIn = false; 
+    singleStatementPay = DBConnUtils.getBooleanProperty("flightapp.pay.single_statement", true);
+    bookingTimeoutMs = DBConnUtils.getIntProperty("flightapp.booking.timeout_ms", 10000);
+    searchTimeoutSecs = DBConnUtils.getIntProperty("flightapp.search.timeout_secs", 30);
+    useConnectionsTable = DBConnUtils.getBooleanProperty("flightapp.search.connections_table",
+                                                         false);
+    // clears the caches of flights (and reloads the reachability filter) when Flights changes
+    FlightsWatcher.shared(conn);
+    if (DBConnUtils.getBooleanProperty("flightapp.search.reachability", false)) {
+      reachability = Reachability.shared();
+    }
+    if (DBConnUtils.getBooleanProperty("flightapp.login_throttle", false)) {
+      loginThrottle = LoginThrottle.shared();
+    }
+    journal = Journal.shared();
+    if (DBConnUtils.getBooleanProperty("flightapp.reservations_cache", false)) {
+      reservationsCache = ReservationsCache.shared();
+    }
+    shards = new Shards(conn, Shards.configuredURLs(), tableSuffix);
+    if (DBConnUtils.getBooleanProperty("flightapp.booking.pipeline", false)) {
+      bookingPipelines = new BookingPipeline[shards.count()];
+      for (int shard = 0; shard < shards.count(); shard++) {
+        bookingPipelines[shard] = BookingPipeline.shared(tableSuffix, shard, shards.count(),
+                                                         shards.serverURL(shard));
+      }
+    }
+    replicaPool = ReplicaPool.shared();
     prepareStatements();
   }
 
+  /**
+   * Switches one-stop searches between FlightConnections and the Flights self-join
+   */
+  void setUseConnectionsTable(boolean enabled) {
+    useConnectionsTable = enabled;
+  }
+
+  /**
+   * Filters searches through {@code reachability}, or always asks the database if it's null
+   */
+  void setReachability(Reachability reachability) {
+    this.reachability = reachability;
+  }
+
+  /**
+   * Throttles failed logins through {@code throttle}, or never if it's null
+   */
+  void setLoginThrottle(LoginThrottle throttle) {
+    loginThrottle = throttle;
+  }
+
+  /**
+   * Appends committed bookings and payments to {@code journal}, or nowhere if it's null
+   */
+  void setJournal(Journal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Serves reservations listings from {@code cache}, or always asks the database if it's null
+   */
+  void setReservationsCache(ReservationsCache cache) {
+    reservationsCache = cache;
+  }
+
+  /**
+   * Partitions this session's users and reservations over {@code shards} instead of the
+   * configured ones
+   */
+  void setShards(Shards shards) throws SQLException {
+    if (bookingPipelines != null && bookingPipelines.length != shards.count()) {
+      throw new IllegalStateException("Set one booking pipeline per shard after the shards");
+    }
+    this.shards.close();
+    this.shards = shards;
+  }
+
+  @Override
+  public String getLoggedInUser() {
+    return loggedIn ? username : null;
+  }
+
+  @Override
+  public void closeConnection() throws SQLException {
+    shards.close();
+    super.closeConnection();
+  }
+
+  /**
+   * Sends this session's read-only transactions to {@code pool}, or to the primary if it's null
+   */
+  void setReplicaPool(ReplicaPool pool) {
+    replicaPool = pool;
+  }
+
+  /**
+   * Sends this session's bookings through {@code pipeline}, or books directly if it's null;
+   * for an unsharded session
+   */
+  void setBookingPipeline(BookingPipeline pipeline) {
+    setBookingPipelines(pipeline != null ? Collections.singletonList(pipeline) : null);
+  }
+
+  /**
+   * Sends the bookings of the users on shard i through {@code pipelines.get(i)}, or books
+   * directly if {@code pipelines} is null
+   */
+  void setBookingPipelines(List<BookingPipeline> pipelines) {
+    if (pipelines != null && pipelines.size() != shards.count()) {
+      throw new IllegalArgumentException(pipelines.size() + " booking pipelines for "
+                                         + shards.count() + " shards");
+    }
+    bookingPipelines = pipelines != null ? pipelines.toArray(new BookingPipeline[0]) : null;
+  }
+
+  /**
+   * Switches between the single-statement and the multi-statement payment path
+   */
+  void setSingleStatementPay(boolean enabled) {
+    singleStatementPay = enabled;
+  }
+
   /**
    * Clear the data in any custom tables created.
    * 
@@ -105,8 +403,14 @@ private boolean loggedIn;
   public void clearTables() {
     try {
       // delete Reservations_yshubber and Users_yshubber
-      clearReservationsStmt.executeUpdate(); 
-      clearUsersStmt.executeUpdate();
+      for (int shard = 0; shard < shards.count(); shard++) {
+        onShard(shard, clearReservationsStmt, CLEAR_RESERVATIONS_SQL).executeUpdate();
+        onShard(shard, clearUsersStmt, CLEAR_USERS_SQL).executeUpdate();
+      }
+      if (reservationsCache != null) {
+        reservationsCache.clear();
+      }
+      // session tokens are bound to the deleted rows, so they stop working too
 
     } catch (Exception e) {
       e.printStackTrace();
@@ -117,125 +421,229 @@ private boolean loggedIn;
    * prepare all the SQL statements in this method.
    */
   private void prepareStatements() throws SQLException {
-    flightCapacityStmt = conn.prepareStatement(FLIGHT_CAPACITY_SQL);
+    flightCapacityStmt = prepare(FLIGHT_CAPACITY_SQL);
     //clearTables 
-    clearReservationsStmt = conn.prepareStatement(CLEAR_RESERVATIONS_SQL);
-    clearUsersStmt = conn.prepareStatement(CLEAR_USERS_SQL);
+    clearReservationsStmt = prepare(CLEAR_RESERVATIONS_SQL);
+    clearUsersStmt = prepare(CLEAR_USERS_SQL);
     //^^end of clearTables
     //create 
-    createCustomerStmt = conn.prepareStatement(CREATE_CUSTOMER_SQL); 
+    createCustomerStmt = prepare(CREATE_CUSTOMER_SQL); 
     //login
-    getUserStmt = conn.prepareStatement(GET_USER_SQL);
-    directFlightStmt = conn.prepareStatement(DIRECT_FLIGHT_SQL);
-    indirectFlightStmt = conn.prepareStatement(INDIRECT_FLIGHT_SQL);
-    insertBookingStmt = conn.prepareStatement(INSERT_BOOKING_SQL); 
-    payBookingStmt = conn.prepareStatement(PAY_BOOKING_SQL); 
-    retrieveReservationsStmt = conn.prepareStatement(RETRIEVE_RESERVATIONS_SQL); 
-    updatePayStmt = conn.prepareStatement(UPDATE_PAY_SQL); 
-    updateUserBalanceStmt = conn.prepareStatement(UPDATE_USER_BALANCE_SQL);
-    reservationCollisionStmt = conn.prepareStatement(SAME_DAY_RESERVATION_SQL); 
-    getDayStmt = conn.prepareStatement(GET_DAY_SQL); 
-    updateBalanceStmt  = conn.prepareStatement(UPDATE_BALANCE_SQL); 
-    getBookedStmt = conn.prepareStatement(GET_BOOKED_COUNT_SQL);
+    getUserStmt = prepare(GET_USER_SQL);
+    directFlightStmt = prepare(DIRECT_FLIGHT_SQL);
+    indirectFlightStmt = prepare(INDIRECT_FLIGHT_SQL);
+    connectionsStmt = prepare(CONNECTIONS_SQL);
+    directFlightPriceStmt = prepare(DIRECT_FLIGHT_PRICE_SQL);
+    firstLegsStmt = prepare(FIRST_LEGS_SQL);
+    secondLegsStmt = prepare(SECOND_LEGS_SQL);
+    insertBookingStmt = prepare(INSERT_BOOKING_SQL); 
+    payBookingStmt = prepare(PAY_BOOKING_SQL); 
+    retrieveReservationsStmt = prepare(RETRIEVE_RESERVATIONS_SQL); 
+    updatePayStmt = prepare(UPDATE_PAY_SQL); 
+    updateUserBalanceStmt = prepare(UPDATE_USER_BALANCE_SQL);
+    reservationCollisionStmt = prepare(SAME_DAY_RESERVATION_SQL); 
+    updateBalanceStmt  = prepare(UPDATE_BALANCE_SQL); 
+    paySingleStatementStmt = prepare(PAY_SINGLE_STATEMENT_SQL);
+    getBookedStmt = prepare(GET_BOOKED_COUNT_SQL);
 
     // TODO: YOUR CODE HERE
   }
 
+  /**
+   * Prepares one of the canned queries against this session's tables
+   */
+  private PreparedStatement prepare(String sql) throws SQLException {
+    return conn.prepareStatement(DBConnUtils.withTableSuffix(sql, tableSuffix));
+  }
+
+  /**
+   * A read-only transaction; see routeRead
+   */
+  private interface Read<T> {
+    T run() throws SQLException;
+  }
+
+  /**
+   * Runs a read-only transaction on a replica connection, unless no replicas are configured,
+   * none is free, or none has caught up with this session's last write (read-your-writes).
+   * Inside {@code read}, get statements from forRead() rather than using the fields directly.
+   * If the replica fails, the transaction is run again on the primary.
+   */
+  private <T> T routeRead(Read<T> read) throws SQLException {
+    if (replicaPool == null) {
+      return read.run();
+    }
+    if (writePositionStale) {
+      // a position read now is at or after the write, so the write is still seen
+      writePosition = replicaPool.commitPosition(conn);
+      writePositionStale = false;
+    }
+    return replicaPool.read(writePosition, lease -> {
+      readLease = lease;
+      try {
+        return read.run();
+      } finally {
+        readLease = null;
+      }
+    });
+  }
+
+  /**
+   * The statement to use for {@code sql} in the current read-only transaction: the primary's
+   * {@code primaryStmt}, or the same query prepared on the borrowed replica connection
+   */
+  private PreparedStatement forRead(PreparedStatement primaryStmt, String sql)
+      throws SQLException {
+    if (readLease == null) {
+      return primaryStmt;
+    }
+    return readLease.prepare(DBConnUtils.withTableSuffix(sql, tableSuffix));
+  }
+
+  /**
+   * The statement to use for {@code sql} on {@code shard}: {@code primaryStmt} for the primary,
+   * otherwise the same query prepared on that shard
+   */
+  private PreparedStatement onShard(int shard, PreparedStatement primaryStmt, String sql)
+      throws SQLException {
+    return shard == 0 ? primaryStmt : shards.prepare(shard, sql);
+  }
+
+  /**
+   * Like forRead(), for a user's data: the replicas only copy the primary, so reads of users on
+   * the other shards go to those shards
+   */
+  private PreparedStatement forUserRead(String username, PreparedStatement primaryStmt,
+                                        String sql) throws SQLException {
+    int shard = shards.shardOf(username);
+    return shard == 0 ? forRead(primaryStmt, sql) : shards.prepare(shard, sql);
+  }
+
+  /**
+   * Records that this session just committed a write, so its next reads only go to replicas
+   * that have it
+   */
+  private void noteWrite() {
+    writePositionStale = replicaPool != null;
+  }
+
+  /**
+   * Like noteWrite(), for a committed booking or payment of the logged-in user: also drops
+   * their cached reservations listing
+   */
+  private void noteReservationsWrite() {
+    noteWrite();
+    if (reservationsCache != null) {
+      reservationsCache.invalidate(ReservationsCache.key(tableSuffix, username));
+    }
+  }
+
   /* See QueryAbstract.java for javadoc */
   public String transaction_login(String username, String password) {
-    // TODO: YOUR CODE HERE
-    try {
-        if(!loggedIn) {
-          // receives the username 
-            getUserStmt.setString(1, username.toLowerCase());
-            // executes the querey above -> gets the password based on username 
-            ResultSet resultSet = getUserStmt.executeQuery();
-            // if user exists 
-            if (resultSet.next()) {
-              // receives the hashed password 
-                byte[] realPassword = resultSet.getBytes("hashedPassword");
-                //checks if the password matches what the user inputted and the realpassword 
-                if (PasswordUtils.plaintextMatchesSaltedHash(password, realPassword)) {
-                    loggedIn = true;
-                    this.username = username;
-                    
-                    conn.commit();
-                    conn.setAutoCommit(true);
-
-                    return "Logged in as " + username + "\n";
-
-                } else {
-                  //if passwords dont match 
-                    conn.rollback();
-                    conn.setAutoCommit(true);
-                    return "Login failed\n";
-                }
-            } else {
-              //if user doesnt exist 
-                conn.rollback();
-                conn.setAutoCommit(true);
-                return "Login failed\n";
-            }
-        } 
-        // if the user is already logged in 
-        else {
-            return "User already logged in\n";
-        }
-    }  
-    catch(SQLException e) {
+    if (loggedIn) {
+      return "User already logged in\n";
+    }
+    if (loginThrottle != null && loginThrottle.isThrottled(username, getClientSource())) {
+      return "Login failed\n";
+    }
+    while (true) {
       try {
-        e.printStackTrace();
-        conn.rollback();
-        conn.setAutoCommit(true);
-        if (isDeadlock(e)) {
-          return transaction_login(username, password);
+        byte[] realPassword = routeRead(() -> lookupPassword(username));
+        //checks if the user exists and the password matches what the user inputted
+        if (realPassword == null
+            || !PasswordUtils.plaintextMatchesSaltedHash(password, realPassword)) {
+          if (loginThrottle != null) {
+            loginThrottle.recordFailure(username, getClientSource());
+          }
+          return "Login failed\n";
         }
-        else {
+        loggedIn = true;
+        this.username = username;
+        return "Logged in as " + username + "\n";
+      } catch (SQLException e) {
+        if (!isDeadlock(e)) {
+          e.printStackTrace();
           return "Login failed\n";
         }
+        CommandMetrics.global().recordDeadlockRetry(CommandMetrics.Operation.LOGIN);
       }
-      catch(SQLException ex) {
-        ex.printStackTrace();
-        return "Login failed\n";
+    }
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public String transaction_token() {
+    if (!loggedIn) {
+      return "Cannot issue token, not logged in\n";
+    }
+    try {
+      // read from the primary, like the check in resume, so a replica can't hand out a row that
+      // was already deleted
+      byte[] userState = lookupPassword(username);
+      if (userState == null) {
+        return "Cannot issue token, not logged in\n";
       }
+      return "Session token: " + SessionTokens.shared().issue(tableSuffix, username, userState)
+          + "\n";
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return "Cannot issue token, not logged in\n";
     }
   }
+
   /* See QueryAbstract.java for javadoc */
-  public String transaction_createCustomer(String username, String password, int initAmount) {
-    try{
-      if (initAmount < 0) {
-        conn.rollback();
-        conn.setAutoCommit(true);
-        return "Failed to create user\n";
+  public String transaction_resume(String token) {
+    if (loggedIn) {
+      return "User already logged in\n";
+    }
+    String user;
+    try {
+      user = SessionTokens.shared().verify(tableSuffix, token, this::lookupPassword);
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return "Resume failed\n";
+    }
+    if (user == null) {
+      return "Resume failed\n";
     }
-      createCustomerStmt.clearParameters();
-      String inputUser = username.toLowerCase();
-      createCustomerStmt.setString(1, inputUser);
-      byte[] newPassword = PasswordUtils.saltAndHashPassword(password);
-      createCustomerStmt.setBytes(2, newPassword);
-      createCustomerStmt.setInt(3, initAmount);
-      createCustomerStmt.executeUpdate();
+    loggedIn = true;
+    this.username = user;
+    return "Resumed session as " + user + "\n";
+  }
 
-      conn.commit();
-      conn.setAutoCommit(true);
-      return "Created user " + username + "\n"; 
+  /**
+   * The salted password hash of {@code username}, or null if there's no such user
+   */
+  private byte[] lookupPassword(String username) throws SQLException {
+    PreparedStatement stmt = forUserRead(username, getUserStmt, GET_USER_SQL);
+    stmt.setString(1, username.toLowerCase());
+    try (ResultSet resultSet = stmt.executeQuery()) {
+      return resultSet.next() ? resultSet.getBytes("hashedPassword") : null;
+    }
+  }
 
+  /* See QueryAbstract.java for javadoc */
+  public String transaction_createCustomer(String username, String password, int initAmount) {
+    if (initAmount < 0) {
+      return "Failed to create user\n";
     }
-    catch(SQLException e) {
+    byte[] newPassword = PasswordUtils.saltAndHashPassword(password);
+    while (true) {
       try {
-        e.printStackTrace();
-        conn.rollback();
-        conn.setAutoCommit(true);
-        if (isDeadlock(e)) {
-          return transaction_createCustomer(username, password, initAmount);
-        }
-        else {
+        // a single autocommitted INSERT, on the shard the user will live on
+        PreparedStatement stmt = onShard(shards.shardOf(username), createCustomerStmt,
+                                         CREATE_CUSTOMER_SQL);
+        stmt.setString(1, username.toLowerCase());
+        stmt.setBytes(2, newPassword);
+        stmt.setInt(3, initAmount);
+        stmt.executeUpdate();
+        noteWrite();
+        return "Created user " + username + "\n";
+      } catch (SQLException e) {
+        if (!isDeadlock(e)) {
+          e.printStackTrace();
           return "Failed to create user\n";
         }
-      }
-      catch(SQLException ex) {
-        ex.printStackTrace();
-        return "Failed to create user\n";
+        CommandMetrics.global().recordDeadlockRetry(CommandMetrics.Operation.CREATE);
       }
     }
   }
@@ -244,252 +652,578 @@ private boolean loggedIn;
   public String transaction_search(String originCity, String destinationCity, 
                                    boolean directFlight, int dayOfMonth,
                                    int numberOfItineraries) {
-    StringBuffer sb = new StringBuffer();
+    return transaction_search(originCity, destinationCity, directFlight, dayOfMonth,
+                              numberOfItineraries, SearchOrder.TIME);
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public String transaction_search(String originCity, String destinationCity,
+                                   boolean directFlight, int dayOfMonth,
+                                   int numberOfItineraries, SearchOrder order) {
+    FlightEvents.Search event = FlightEvents.Search.start();
+    String response = null;
     try {
-        // Direct flights
-        directFlightStmt.setInt(1, numberOfItineraries);
-        directFlightStmt.setString(2, originCity);
-        directFlightStmt.setString(3, destinationCity);
-        directFlightStmt.setInt(4, dayOfMonth);
-        
-        ResultSet directResults = directFlightStmt.executeQuery();
-
-        // itinerarates through the direct flights 
-        while(directResults.next()){
-            // Retrieves the flight details 
-            int dayMonth = directResults.getInt("day_of_month");
-            String carrierId = directResults.getString("carrier_id");
-            String flightNum = directResults.getString("flight_num");
-            String cityOrgin = directResults.getString("origin_city");
-            String destCity = directResults.getString("dest_city");
-            int time = directResults.getInt("actual_time");
-            int capacity = directResults.getInt("capacity");
-            int price = directResults.getInt("price");
-            Flight flight = new Flight(directResults.getInt("fid"), dayMonth, carrierId, flightNum, cityOrgin, destCity, time, capacity, price);
-            itineraries.add(new Itinerary(flight));
-        }
-        directResults.close();
-      
-        // Indirect flights if needed
-        if (!directFlight && itineraries.size() < numberOfItineraries) {
-            int indirectToGet = numberOfItineraries - itineraries.size();
-             // Set parameters for the indirect flight query
-            indirectFlightStmt.setInt(1, indirectToGet);
-            indirectFlightStmt.setString(2, originCity);
-            indirectFlightStmt.setString(3, destinationCity);
-            indirectFlightStmt.setInt(4, dayOfMonth);
-            indirectFlightStmt.setInt(5, dayOfMonth);
-            ResultSet indirectResults = indirectFlightStmt.executeQuery();
-          
-            while(indirectResults.next()){
-                Flight flightOne = new Flight(indirectResults.getInt("fid1"), 
-                                              indirectResults.getInt("day1"), 
-                                              indirectResults.getString("carrier1"), 
-                                              indirectResults.getString("flightNum1"),
-                                              indirectResults.getString("origin1"),
-                                              indirectResults.getString("dest1"),
-                                              indirectResults.getInt("time1"),
-                                              indirectResults.getInt("capacity1"),
-                                              indirectResults.getInt("price1"));
-                Flight flightTwo = new Flight(indirectResults.getInt("fid2"), 
-                                              indirectResults.getInt("day2"), 
-                                              indirectResults.getString("carrier2"), 
-                                              indirectResults.getString("flightNum2"),
-                                              indirectResults.getString("origin2"),
-                                              indirectResults.getString("dest2"),
-                                              indirectResults.getInt("time2"),
-                                              indirectResults.getInt("capacity2"),
-                                              indirectResults.getInt("price2"));
-                itineraries.add(new Itinerary(flightOne, flightTwo));
-            }
-            indirectResults.close();
-        }
+      response = searchItineraries(originCity, destinationCity, directFlight, dayOfMonth,
+                                   numberOfItineraries, order);
+      return response;
+    } finally {
+      event.finish(originCity, destinationCity, directFlight, dayOfMonth, order,
+                   numberOfItineraries, itineraries.size(), response);
+    }
+  }
 
-        // Sort itineraries
-        Collections.sort(itineraries);
+  private String searchItineraries(String originCity, String destinationCity,
+                                   boolean directFlight, int dayOfMonth,
+                                   int numberOfItineraries, SearchOrder order) {
+    // itinerary ids handed out by the previous search are no longer valid
+    itineraries.clear();
+    if (reachability != null
+        && !reachability.mayHaveItineraries(originCity, destinationCity, directFlight, dayOfMonth)) {
+        return "No flights match your selection\n";
+    }
+    try {
+        routeRead(() -> {
+          // start over if a failed replica read is being retried on the primary
+          itineraries.clear();
+          if (order == SearchOrder.PRICE) {
+              searchCheapest(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+          } else if (order == SearchOrder.PARETO) {
+              searchParetoFrontier(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+          } else {
+              searchFastest(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+          }
+          return null;
+        });
 
         // Build result string
         if(itineraries.isEmpty()){
             return "No flights match your selection\n";
-        } else {
-            for(int c = 0; c < itineraries.size(); c++){
-                sb.append("Itinerary " + c + ": " + itineraries.get(c).toString());
-            }
         }
+        ResponseBuilder out = new ResponseBuilder(itineraries.size() * 256);
+        for(int c = 0; c < itineraries.size(); c++){
+            out.append("Itinerary ").append(c).append(": ");
+            itineraries.get(c).appendTo(out);
+        }
+        return out.toString();
     } catch (SQLException e) {
         e.printStackTrace();
         return "Failed to search\n";
     }
-    return sb.toString();
 }
 
+  /**
+   * Fills {@code itineraries} with the shortest itineraries, sorted by total flight time.
+   */
+  private void searchFastest(String originCity, String destinationCity, boolean directFlight,
+                             int dayOfMonth, int numberOfItineraries) throws SQLException {
+    FastestItineraries source = new FastestItineraries(originCity, destinationCity, directFlight,
+                                                       dayOfMonth, numberOfItineraries,
+                                                       numberOfItineraries);
+    try {
+      while (source.next() != null) {
+        // next() adds each itinerary to the list
+      }
+    } finally {
+      source.close();
+    }
+  }
+
+  /**
+   * The shortest itineraries in increasing total flight time, read one at a time and appended
+   * to {@code itineraries} as they are handed out.
+   *
+   * DIRECT_FLIGHT_SQL is read up front, as its row count decides how many one-stop itineraries
+   * are needed (and there are only ever a few direct flights between two cities on a day).  The
+   * one-stop rows, which come back in the same order, are then merged in from the open result
+   * set as needed.
+   */
+  private class FastestItineraries implements PullPublisher.Source<Itinerary> {
+    private final ArrayDeque<Itinerary> direct = new ArrayDeque<>();
+    private String indirectSql;
+    private ResultSet indirectRows;
+    private FlightDecoder first;
+    private FlightDecoder second;
+    private Itinerary nextIndirect;
+
+    /**
+     * @param fetchRows how many one-stop rows the driver should fetch at a time
+     */
+    FastestItineraries(String originCity, String destinationCity, boolean directFlight,
+                       int dayOfMonth, int numberOfItineraries, int fetchRows)
+        throws SQLException {
+      PreparedStatement directStmt = forRead(directFlightStmt, DIRECT_FLIGHT_SQL);
+      directStmt.setInt(1, numberOfItineraries);
+      directStmt.setString(2, originCity);
+      directStmt.setString(3, destinationCity);
+      directStmt.setInt(4, dayOfMonth);
+      readFlights(DIRECT_FLIGHT_SQL, forSearch(directStmt, numberOfItineraries),
+                  flight -> direct.add(new Itinerary(flight)));
+
+      if (!directFlight && direct.size() < numberOfItineraries) {
+        int indirectToGet = numberOfItineraries - direct.size();
+        indirectSql = useConnectionsTable ? CONNECTIONS_SQL : INDIRECT_FLIGHT_SQL;
+        PreparedStatement indirectStmt =
+            forRead(useConnectionsTable ? connectionsStmt : indirectFlightStmt, indirectSql);
+        indirectStmt.setInt(1, indirectToGet);
+        indirectStmt.setString(2, originCity);
+        indirectStmt.setString(3, destinationCity);
+        indirectStmt.setInt(4, dayOfMonth);
+        if (!useConnectionsTable) {
+          indirectStmt.setInt(5, dayOfMonth);
+        }
+        indirectRows =
+            forSearch(indirectStmt, Math.min(indirectToGet, fetchRows)).executeQuery();
+        advance();
+      }
+    }
+
+    @Override
+    public Itinerary next() throws SQLException {
+      Itinerary next;
+      if (nextIndirect != null && (direct.isEmpty() || nextIndirect.compareTo(direct.peek()) < 0)) {
+        next = nextIndirect;
+        advance();
+      } else {
+        next = direct.poll();
+      }
+      if (next != null) {
+        itineraries.add(next);
+      }
+      return next;
+    }
+
+    private void advance() throws SQLException {
+      nextIndirect = null;
+      if (indirectRows.next()) {
+        if (first == null) {
+          first = decoder(indirectSql, FIRST_FLIGHT_COLUMNS, indirectRows);
+          second = decoder(indirectSql, SECOND_FLIGHT_COLUMNS, indirectRows);
+        }
+        nextIndirect = new Itinerary(first.read(indirectRows), second.read(indirectRows));
+      }
+    }
+
+    @Override
+    public void close() throws SQLException {
+      if (indirectRows != null) {
+        indirectRows.close();
+      }
+    }
+  }
+
+  /**
+   * Hands out already computed itineraries, appending each to {@code itineraries}
+   */
+  private class ListedItineraries implements PullPublisher.Source<Itinerary> {
+    private final ArrayDeque<Itinerary> remaining;
+
+    ListedItineraries(List<Itinerary> list) {
+      remaining = new ArrayDeque<>(list);
+    }
+
+    @Override
+    public Itinerary next() {
+      Itinerary next = remaining.poll();
+      if (next != null) {
+        itineraries.add(next);
+      }
+      return next;
+    }
+
+    @Override
+    public void close() { }
+  }
+
+  /**
+   * Fills {@code itineraries} with the cheapest itineraries, sorted by total price.  As with
+   * the time-ordered search, one-stop itineraries only fill the slots left over by direct ones.
+   */
+  private void searchCheapest(String originCity, String destinationCity, boolean directFlight,
+                              int dayOfMonth, int numberOfItineraries) throws SQLException {
+    PreparedStatement directStmt = forRead(directFlightPriceStmt, DIRECT_FLIGHT_PRICE_SQL);
+    directStmt.setInt(1, numberOfItineraries);
+    directStmt.setString(2, originCity);
+    directStmt.setString(3, destinationCity);
+    directStmt.setInt(4, dayOfMonth);
+    readFlights(DIRECT_FLIGHT_PRICE_SQL, forSearch(directStmt, numberOfItineraries),
+                flight -> itineraries.add(new Itinerary(flight)));
+
+    if (!directFlight && itineraries.size() < numberOfItineraries) {
+      Map<String, List<Flight>> firstLegs =
+          fetchLegs(FIRST_LEGS_SQL, firstLegsStmt, originCity, dayOfMonth, true);
+      Map<String, List<Flight>> secondLegs =
+          fetchLegs(SECOND_LEGS_SQL, secondLegsStmt, destinationCity, dayOfMonth, false);
+      itineraries.addAll(cheapestConnections(firstLegs, secondLegs,
+                                             numberOfItineraries - itineraries.size()));
+    }
+
+    itineraries.sort(PRICE_ORDER);
+  }
+
+  /**
+   * Fills {@code itineraries} with the (time, price) Pareto frontier, ie every itinerary for
+   * which no other itinerary is at least as fast and as cheap and strictly better in one of the
+   * two, sorted by total flight time.  At most {@code numberOfItineraries} are kept.
+   */
+  private void searchParetoFrontier(String originCity, String destinationCity,
+                                    boolean directFlight, int dayOfMonth,
+                                    int numberOfItineraries) throws SQLException {
+    List<Itinerary> candidates = new ArrayList<>();
+    PreparedStatement directStmt = forRead(directFlightStmt, DIRECT_FLIGHT_SQL);
+    directStmt.setInt(1, Integer.MAX_VALUE);
+    directStmt.setString(2, originCity);
+    directStmt.setString(3, destinationCity);
+    directStmt.setInt(4, dayOfMonth);
+    readFlights(DIRECT_FLIGHT_SQL, forSearch(directStmt, MAX_FETCH_SIZE),
+                flight -> candidates.add(new Itinerary(flight)));
+
+    if (!directFlight) {
+      Map<String, List<Flight>> firstLegs =
+          fetchLegs(FIRST_LEGS_SQL, firstLegsStmt, originCity, dayOfMonth, true);
+      Map<String, List<Flight>> secondLegs =
+          fetchLegs(SECOND_LEGS_SQL, secondLegsStmt, destinationCity, dayOfMonth, false);
+      for (Map.Entry<String, List<Flight>> entry : firstLegs.entrySet()) {
+        List<Flight> onward = secondLegs.get(entry.getKey());
+        if (onward == null) {
+          continue;
+        }
+        for (Flight flightOne : entry.getValue()) {
+          for (Flight flightTwo : onward) {
+            candidates.add(new Itinerary(flightOne, flightTwo));
+          }
+        }
+      }
+    }
+
+    // Sweep in (time, price) order: an itinerary is on the frontier iff it is cheaper than
+    // everything faster than it (identical time and price pairs don't dominate each other)
+    candidates.sort(Comparator.comparingInt(Itinerary::getTime)
+                    .thenComparingInt(Itinerary::getPrice)
+                    .thenComparing(Comparator.naturalOrder()));
+    int bestPrice = Integer.MAX_VALUE;
+    int bestPriceTime = -1;
+    for (Itinerary it : candidates) {
+      if (itineraries.size() >= numberOfItineraries) {
+        break;
+      }
+      if (it.getPrice() < bestPrice || (it.getPrice() == bestPrice && it.getTime() == bestPriceTime)) {
+        bestPrice = it.getPrice();
+        bestPriceTime = it.getTime();
+        itineraries.add(it);
+      }
+    }
+  }
+
+  /**
+   * Runs one of the leg queries and groups the non-canceled legs by the connecting city, keeping
+   * each group in increasing price order.
+   *
+   * @param byDest if true, group by the leg's destination (first legs), otherwise by its origin
+   */
+  private Map<String, List<Flight>> fetchLegs(String sql, PreparedStatement primaryStmt,
+                                              String city, int dayOfMonth,
+                                              boolean byDest) throws SQLException {
+    Map<String, List<Flight>> legs = new HashMap<>();
+    PreparedStatement stmt = forRead(primaryStmt, sql);
+    stmt.setString(1, city);
+    stmt.setInt(2, dayOfMonth);
+    readFlights(sql, forSearch(stmt, MAX_FETCH_SIZE), leg -> {
+      String via = byDest ? leg.destCity : leg.originCity;
+      legs.computeIfAbsent(via, k -> new ArrayList<>()).add(leg);
+    });
+    return legs;
+  }
+
+  /**
+   * Picks the {@code count} cheapest one-stop itineraries out of the per-city leg lists without
+   * enumerating every pair: for each connecting city, the pairs form a grid sorted by price
+   * along both axes, so a heap over the grid frontiers yields pairs in increasing total price.
+   * Pairs tied with the last one taken are drained too, so the final tie-break matches
+   * {@code PRICE_ORDER}.
+   */
+  private List<Itinerary> cheapestConnections(Map<String, List<Flight>> firstLegs,
+                                              Map<String, List<Flight>> secondLegs, int count) {
+    PriorityQueue<LegPair> frontier = new PriorityQueue<>(Comparator.comparingInt(p -> p.price));
+    for (Map.Entry<String, List<Flight>> entry : firstLegs.entrySet()) {
+      List<Flight> onward = secondLegs.get(entry.getKey());
+      if (onward != null) {
+        frontier.add(new LegPair(entry.getValue(), onward, 0, 0));
+      }
+    }
+
+    List<Itinerary> result = new ArrayList<>();
+    int lastPrice = -1;
+    while (!frontier.isEmpty()
+           && (result.size() < count || frontier.peek().price == lastPrice)) {
+      LegPair pair = frontier.poll();
+      lastPrice = pair.price;
+      result.add(new Itinerary(pair.first.get(pair.i), pair.second.get(pair.j)));
+      if (pair.i + 1 < pair.first.size()) {
+        frontier.add(new LegPair(pair.first, pair.second, pair.i + 1, pair.j));
+      }
+      // only walk the second axis from the first row, so each pair is queued exactly once
+      if (pair.i == 0 && pair.j + 1 < pair.second.size()) {
+        frontier.add(new LegPair(pair.first, pair.second, pair.i, pair.j + 1));
+      }
+    }
+
+    result.sort(PRICE_ORDER);
+    return result.size() > count ? new ArrayList<>(result.subList(0, count)) : result;
+  }
+
+  /**
+   * A candidate (first leg, second leg) pair through one connecting city
+   */
+  private static class LegPair {
+    final List<Flight> first;
+    final List<Flight> second;
+    final int i;
+    final int j;
+    final int price;
+
+    LegPair(List<Flight> first, List<Flight> second, int i, int j) {
+      this.first = first;
+      this.second = second;
+      this.i = i;
+      this.j = j;
+      this.price = first.get(i).price + second.get(j).price;
+    }
+  }
+
+  /**
+   * Same as searchStream() with {@link SearchOrder#TIME}
+   */
+  public Flow.Publisher<Itinerary> searchStream(String originCity, String destinationCity,
+                                                boolean directFlight, int dayOfMonth,
+                                                int numberOfItineraries) {
+    return searchStream(originCity, destinationCity, directFlight, dayOfMonth,
+                        numberOfItineraries, SearchOrder.TIME);
+  }
+
+  /**
+   * Streaming search: publishes the itineraries search() would return, in the same order, as
+   * the subscriber requests them.  With {@link SearchOrder#TIME} the one-stop rows are read
+   * from the database only as they're needed (how soon the first one arrives still depends on
+   * the server's plan, and hasn't been measured); the other orders need every candidate to
+   * pick the first one, so their itineraries are published once all are known.
+   *
+   * Runs on the async executor like the async operations (see QueryAbstract.stream()), always
+   * on the primary.  Itinerary ids for book() are positions in the stream, for the
+   * itineraries published before it completed or was cancelled; a failed search is reported
+   * to the subscriber's onError().
+   */
+  public Flow.Publisher<Itinerary> searchStream(String originCity, String destinationCity,
+                                                boolean directFlight, int dayOfMonth,
+                                                int numberOfItineraries, SearchOrder order) {
+    return stream(() -> {
+      itineraries.clear();
+      if (reachability != null
+          && !reachability.mayHaveItineraries(originCity, destinationCity, directFlight,
+                                              dayOfMonth)) {
+        return new ListedItineraries(Collections.emptyList());
+      }
+      if (order == SearchOrder.TIME) {
+        return new FastestItineraries(originCity, destinationCity, directFlight, dayOfMonth,
+                                      numberOfItineraries, STREAM_FETCH_SIZE);
+      }
+      if (order == SearchOrder.PRICE) {
+        searchCheapest(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+      } else {
+        searchParetoFrontier(originCity, destinationCity, directFlight, dayOfMonth,
+                             numberOfItineraries);
+      }
+      List<Itinerary> found = new ArrayList<>(itineraries);
+      itineraries.clear();
+      return new ListedItineraries(found);
+    });
+  }
 
   /* See QueryAbstract.java for javadoc */
   public String transaction_book(int itineraryId) {
-    try {
-      //Not logged in 
+    //Not logged in 
     if (!loggedIn) {
-          return "Cannot book reservations, not logged in\n";
-    }
-      // Trying to book with invalid ID 
-    if (itineraries.isEmpty() || itineraryId > itineraries.size()) {
-        return "No such itinerary " + itineraryId + "\n";
-    }
-    conn.setAutoCommit(false);
-
-        
-    // Retrieve all existing reservations for the user
-    retrieveReservationsStmt.clearParameters();
-    retrieveReservationsStmt.setString(1, username);
-    ResultSet reservationsResultSet = retrieveReservationsStmt.executeQuery();
-
-    // find all days of reservations
-    getDayStmt.setString(1, username);
-    ResultSet resultSet = getDayStmt.executeQuery();
-
-    while (resultSet.next()) {
-      int day = resultSet.getInt("day_of_month");
-      if (itineraries.get(itineraryId).day == day) {
-        conn.rollback();
-        conn.setAutoCommit(true);
-        return "You cannot book two flights in the same day\n";
+      return "Cannot book reservations, not logged in\n";
+    }
+    // Trying to book with invalid ID 
+    if (itineraryId < 0 || itineraryId >= itineraries.size()) {
+      return "No such itinerary " + itineraryId + "\n";
+    }
+    Itinerary itinerary = itineraries.get(itineraryId);
+    if (itinerary.flightOne.capacity == 0
+        || (itinerary.flightTwo != null && itinerary.flightTwo.capacity == 0)) {
+      return "Booking failed\n";
+    }
+    int shard = shards.shardOf(username);
+    if (bookingPipelines != null) {
+      return bookThroughPipeline(bookingPipelines[shard], itinerary);
+    }
+
+    // A single autocommitted INSERT_BOOKING_SQL either books or fails, so there is no
+    // transaction to roll back here; deadlocks and rid races are simply retried
+    while (true) {
+      try {
+        PreparedStatement insertStmt = onShard(shard, insertBookingStmt, INSERT_BOOKING_SQL);
+        insertStmt.setString(1, username);
+        insertStmt.setInt(2, itinerary.flightOne.fid);
+        if (itinerary.flightTwo != null) {
+          insertStmt.setInt(3, itinerary.flightTwo.fid);
+        } else {
+          insertStmt.setNull(3, Types.INTEGER);
+        }
+        insertStmt.setInt(4, itinerary.getDay());
+        insertStmt.setInt(5, shards.count());
+        insertStmt.setInt(6, shard);
+        try (ResultSet rs = insertStmt.executeQuery()) {
+          rs.next();
+          noteReservationsWrite();
+          journalBooking(rs.getInt("rid"), itinerary);
+          return "Booked flight(s), reservation ID: " + rs.getInt("rid") + "\n";
+        }
+      } catch (SQLException e) {
+        if (isDuplicateKey(e)) {
+          // the same-day constraint or a race for the rid, which share the error code
+          try {
+            if (hasReservationOn(shard, itinerary.getDay())) {
+              return "You cannot book two flights in the same day\n";
+            }
+          } catch (SQLException lookup) {
+            lookup.printStackTrace();
+            return "Booking failed\n";
+          }
+        } else if (isDeadlock(e)) {
+          CommandMetrics.global().recordDeadlockRetry(CommandMetrics.Operation.BOOK);
+        } else {
+          e.printStackTrace();
+          return "Booking failed\n";
         }
       }
-        
-      Itinerary itinerararies = itineraries.get(itineraryId);
-
-      if(itinerararies.flightOne.capacity ==0 || ((!(itinerararies.directFlight)) && itinerararies.flightTwo.capacity == 0)){
-        conn.rollback();
-        conn.setAutoCommit(true);
-        return "Booking failed\n";
-      }
-      // // check capacity of flights
-      // // check for direct
-      //  int capacity = itinerararies.flightOne.capacity; 
-      //  int flightNumberCheck = itinerararies.flightOne.fid; 
-      //  getBookedStmt.setInt(1, flightNumberCheck);
-      //  getBookedStmt.setInt(2, flightNumberCheck); 
-      //  ResultSet cut = getBookedStmt.executeQuery(); 
-      //  if(cut.next()){
-      //     if(capacity - cut.getInt(("num")) == 0){
-      //       conn.rollback();
-      //       conn.setAutoCommit(true);
-      //       return "Booking failed\n"; 
-      //    }
-      //  }
-
-      //  // check capacity of flights
-      // // check for un-direct
-      // int capacityTwo = itinerararies.flightTwo.capacity; 
-      // int flightNumberTwoCheck = itinerararies.flightTwo.fid; 
-      //  getBookedStmt.setInt(1, flightNumberTwoCheck);
-      //  getBookedStmt.setInt(2, flightNumberTwoCheck); 
-      //  ResultSet cutTwo = getBookedStmt.executeQuery(); 
-      //  if(cutTwo.next()){
-      //     if(capacityTwo - cutTwo.getInt(("num")) == 0){
-      //       conn.rollback();
-      //       conn.setAutoCommit(true);
-      //       return "Booking failed\n"; 
-      //    }
-      //  }
-
-      if (itinerararies.flightTwo != null) {
-        int flightId1 = itinerararies.flightOne.fid;
-        int flightId2 = itinerararies.flightTwo.fid;
-        insertBookingStmt.setString(1, Integer.toString (this.rid));
-        insertBookingStmt.setString(2, username);
-        insertBookingStmt.setInt(3, 0);
-        insertBookingStmt.setInt(4, flightId1);
-        insertBookingStmt.setInt(5, flightId2);
-        this.rid++;
-      } else {
-        int fid = itinerararies.flightOne.fid;
-        insertBookingStmt.setString(1, Integer.toString (this.rid));
-        insertBookingStmt.setString(2, username);
-        insertBookingStmt.setInt(3, 0);
-        insertBookingStmt.setInt(4, fid);
-        insertBookingStmt.setNull(5, Types.INTEGER);
-        this.rid++;
-      }
-      insertBookingStmt.executeUpdate();
-      conn.commit();
-      conn.setAutoCommit(true);
-      return "Booked flight(s), reservation ID: " + (this.rid - 1) + "\n";
-  } catch(SQLException e) {
+    }
+  }
+
+  /**
+   * Whether the logged-in user has a reservation on the given day, on their shard
+   */
+  private boolean hasReservationOn(int shard, int day) throws SQLException {
+    PreparedStatement stmt = onShard(shard, reservationCollisionStmt, SAME_DAY_RESERVATION_SQL);
+    stmt.setString(1, username);
+    stmt.setInt(2, day);
+    try (ResultSet rs = stmt.executeQuery()) {
+      return rs.next();
+    }
+  }
+
+  /**
+   * Hands the booking to the user's shard's BookingPipeline and waits for its batch to commit
+   */
+  private String bookThroughPipeline(BookingPipeline pipeline, Itinerary itinerary) {
+    Integer fid2 = itinerary.flightTwo != null ? itinerary.flightTwo.fid : null;
     try {
-      e.printStackTrace();
-      conn.rollback();
-      conn.setAutoCommit(true);
-      if (isDeadlock(e)) {
-        return transaction_book(itineraryId);
+      BookingPipeline.Result result =
+          pipeline.submit(username, itinerary.flightOne.fid, fid2, itinerary.getDay())
+              .get(bookingTimeoutMs, TimeUnit.MILLISECONDS);
+      StatementTimer.addToCommand(result.statements);
+      switch (result.status) {
+        case BOOKED:
+          noteReservationsWrite();
+          journalBooking(result.rid, itinerary);
+          return "Booked flight(s), reservation ID: " + result.rid + "\n";
+        case SAME_DAY:
+          return "You cannot book two flights in the same day\n";
+        default:
+          return "Booking failed\n";
       }
-      else {
-        return "Booking failed\n";
-      }
-    }
-    catch(SQLException ex) {
-      ex.printStackTrace();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return "Booking failed\n";
+    } catch (ExecutionException e) {
+      e.printStackTrace();
+      return "Booking failed\n";
+    } catch (TimeoutException e) {
+      // the booking may still commit later; the user will see it in their reservations
+      System.err.println("Booking not committed by the pipeline within " + bookingTimeoutMs
+                         + "ms");
       return "Booking failed\n";
     }
   }
-}
 
   /* See QueryAbstract.java for javadoc */
   public String transaction_pay(int reservationId) {
+    Connection payConn = conn;
     try {
       // Base case: Check if the user is logged in
       if (!loggedIn) {
           return "Cannot pay, not logged in\n";
       }
+      if (singleStatementPay) {
+          return payInOneStatement(reservationId);
+      }
       // Base case: Check if the reservation ID is valid
-      if (reservationId <= 0 || reservationId >= rid) {
+      if (reservationId <= 0) {
+          return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
+      }
+      // the reservation has to be on the user's shard, and its ID says which shard it is on
+      int shard = shards.shardOf(username);
+      if (shards.shardOfReservation(reservationId) != shard) {
           return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
       }
-      conn.setAutoCommit(false);
+      payConn = shard == 0 ? conn : shards.connection(shard);
+      payConn.setAutoCommit(false);
       
       // Execute the payment statement
+      PreparedStatement payBookingStmt = onShard(shard, this.payBookingStmt, PAY_BOOKING_SQL);
       payBookingStmt.setInt(1, reservationId);
       ResultSet resultSet = payBookingStmt.executeQuery();
-      resultSet.next();
+      if (!resultSet.next()) {
+          payConn.rollback();
+          payConn.setAutoCommit(true);
+          return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
+      }
      
           String userId = resultSet.getString("userId");
           int paid = resultSet.getInt("paid");
           int totalCost = resultSet.getInt("totalCost");
+          int fid1 = resultSet.getInt("fid1");
+          int fid2 = fidOrNone(resultSet, "fid2");
 
           // Check if the reservation belongs to the logged-in user and is unpaid
           if (!userId.equals(username) || paid == 1) {
-              conn.rollback();
-              conn.setAutoCommit(true);
+              payConn.rollback();
+              payConn.setAutoCommit(true);
               return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
           }
 
           // Update the user's balance
+          PreparedStatement updateBalanceStmt =
+              onShard(shard, this.updateBalanceStmt, UPDATE_BALANCE_SQL);
           updateBalanceStmt.setString(1, username);
           ResultSet balanceResultSet = updateBalanceStmt.executeQuery();
 
           if (balanceResultSet.next()) {
               int balance = balanceResultSet.getInt("balance");
               if (totalCost > balance) {
-                  conn.rollback();
-                  conn.setAutoCommit(true);
+                  payConn.rollback();
+                  payConn.setAutoCommit(true);
                   return "User has only " + balance + " in account but itinerary costs " + totalCost + "\n";
               }
 
               // Update the reservation status
-              updateReservationStatus(reservationId);
+              updateReservationStatus(shard, reservationId);
 
               // Deduct the total cost from the user's balance
               balance -= totalCost;
-              updateUserBalanceStmt.setInt(1, totalCost);
+              PreparedStatement updateUserBalanceStmt =
+                  onShard(shard, this.updateUserBalanceStmt, UPDATE_USER_BALANCE_SQL);
+              updateUserBalanceStmt.setInt(1, -totalCost);
               updateUserBalanceStmt.setString(2, username);
               updateUserBalanceStmt.executeUpdate();
-              updateUserBalanceStmt.close();
-              conn.commit();
-              conn.setAutoCommit(true);
+              payConn.commit();
+              payConn.setAutoCommit(true);
+              noteReservationsWrite();
+              journalPayment(reservationId, fid1, fid2, totalCost);
               return "Paid reservation: " + reservationId + " remaining balance: " + balance + "\n";
           } else {
-              conn.rollback();
-              conn.setAutoCommit(true);
+              payConn.rollback();
+              payConn.setAutoCommit(true);
               return "Failed to retrieve user balance\n";
           }
     
@@ -497,9 +1231,10 @@ private boolean loggedIn;
     catch(SQLException e) {
       try {
         e.printStackTrace();
-        conn.rollback();
-        conn.setAutoCommit(true);
+        payConn.rollback();
+        payConn.setAutoCommit(true);
         if (isDeadlock(e)) {
+          CommandMetrics.global().recordDeadlockRetry(CommandMetrics.Operation.PAY);
           return transaction_pay(reservationId);
         }
         else {
@@ -513,111 +1248,253 @@ private boolean loggedIn;
     }
   }
 
-//HELPER METHOD
-  private int getDayOfNewReservation(int reservationId) {
-    try {
-      getDayStmt.setInt(1, reservationId);
-      ResultSet resultSet = getDayStmt.executeQuery();
-      if (resultSet.next()) {
-          return resultSet.getInt("day");
+  /**
+   * Pays for the reservation with PAY_SINGLE_STATEMENT_SQL.  The statement runs its own
+   * transaction on the server (rolled back there on any error), so the connection stays in
+   * autocommit mode; deadlocks are simply retried.
+   */
+  private String payInOneStatement(int reservationId) throws SQLException {
+    // the reservation has to be on the user's shard, and its ID says which shard it is on
+    int shard = shards.shardOf(username);
+    if (shards.shardOfReservation(reservationId) != shard) {
+      return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
+    }
+    while (true) {
+      try {
+        PreparedStatement payStmt =
+            onShard(shard, paySingleStatementStmt, PAY_SINGLE_STATEMENT_SQL);
+        payStmt.setInt(1, reservationId);
+        payStmt.setString(2, username);
+        try (ResultSet rs = payStmt.executeQuery()) {
+          rs.next();
+          int status = rs.getInt("status");
+          if (status == 1) {
+            noteReservationsWrite();
+            journalPayment(reservationId, rs.getInt("fid1"), fidOrNone(rs, "fid2"),
+                           rs.getInt("cost"));
+            return "Paid reservation: " + reservationId + " remaining balance: " + rs.getInt("balance") + "\n";
+          } else if (status == 0) {
+            return "User has only " + rs.getInt("balance") + " in account but itinerary costs " + rs.getInt("cost") + "\n";
+          }
+          return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
+        }
+      } catch (SQLException e) {
+        if (!isDeadlock(e)) {
+          throw e;
+        }
+        CommandMetrics.global().recordDeadlockRetry(CommandMetrics.Operation.PAY);
       }
-      return -1; 
-  } catch (SQLException e) {
-      e.printStackTrace();
-      return -1;
+    }
   }
-}
+
+  /**
+   * Journals a committed booking; the booking stands even if the journal can't be written
+   */
+  private void journalBooking(int rid, Itinerary itinerary) {
+    if (journal != null) {
+      try {
+        journal.appendBooking(rid, username, itinerary.flightOne.fid,
+                              itinerary.flightTwo != null ? itinerary.flightTwo.fid : -1,
+                              itinerary.getPrice());
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Journals a committed payment; the payment stands even if the journal can't be written
+   */
+  private void journalPayment(int rid, int fid1, int fid2, int amount) {
+    if (journal != null) {
+      try {
+        journal.appendPayment(rid, username, fid1, fid2, amount);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private static int fidOrNone(ResultSet rs, String column) throws SQLException {
+    int fid = rs.getInt(column);
+    return rs.wasNull() ? -1 : fid;
+  }
+
 //HELPER METHOD 
-  private void updateReservationStatus(int reservationId) {
+  private void updateReservationStatus(int shard, int reservationId) {
     try {
+        PreparedStatement updatePayStmt = onShard(shard, this.updatePayStmt, UPDATE_PAY_SQL);
         updatePayStmt.setInt(1, 1); // Set paid status to 1 (indicating paid)
-        updatePayStmt.setString(2, Integer.toString(reservationId)); // Set the reservation ID
+        updatePayStmt.setInt(2, reservationId); // Set the reservation ID
         updatePayStmt.executeUpdate();
-        updatePayStmt.close();
     } catch (SQLException e) {
         e.printStackTrace();
     }
 }
   /* See QueryAbstract.java for javadoc */
   public String transaction_reservations() {
-    try {
-      if (!loggedIn) {
-          return "Cannot view reservations, not logged in\n";
+    if (!loggedIn) {
+      return "Cannot view reservations, not logged in\n";
+    }
+    String key = reservationsCache != null ? ReservationsCache.key(tableSuffix, username) : null;
+    if (key != null) {
+      String cached = reservationsCache.get(key);
+      if (cached != null) {
+        return cached;
       }
-      conn.setAutoCommit(false);
-
-      retrieveReservationsStmt.setString(1, username);
-      ResultSet resultSet = retrieveReservationsStmt.executeQuery();
-      if (!resultSet.isBeforeFirst()) {
-        conn.rollback();
-        conn.setAutoCommit(true);
-        return "No reservations found\n";
+    }
+    long version = key != null ? reservationsCache.version(key) : 0;
+    // A single SELECT, so autocommit is enough to see a consistent set of reservations
+    while (true) {
+      try {
+        return routeRead(() -> {
+          String listing = listReservations();
+          // a replica may not have this user's latest writes yet
+          if (key != null && (readLease == null || shards.shardOf(username) != 0)) {
+            reservationsCache.put(key, listing, version);
+          }
+          return listing;
+        });
+      } catch (SQLException e) {
+        if (!isDeadlock(e)) {
+          e.printStackTrace();
+          return "Failed to retrieve reservations\n";
+        }
+        CommandMetrics.global().recordDeadlockRetry(CommandMetrics.Operation.RESERVATIONS);
       }
+    }
+  }
 
-
-    StringBuilder sb = new StringBuilder();
-
-    // Iterate through the reservations
-    while (resultSet.next()) {
+  private String listReservations() throws SQLException {
+    PreparedStatement stmt = forUserRead(username, retrieveReservationsStmt,
+                                         RETRIEVE_RESERVATIONS_SQL);
+    stmt.setString(1, username);
+    ResponseBuilder out = new ResponseBuilder();
+    try (ResultSet resultSet = stmt.executeQuery()) {
+      FlightDecoder first = null;
+      FlightDecoder second = null;
+      while (resultSet.next()) {
+        if (first == null) {
+          first = decoder(RETRIEVE_RESERVATIONS_SQL, RESERVED_FLIGHT1_COLUMNS, resultSet);
+          second = decoder(RETRIEVE_RESERVATIONS_SQL, RESERVED_FLIGHT2_COLUMNS, resultSet);
+        }
         String reservationId = resultSet.getString("rid");
         boolean paid = resultSet.getInt("paid") == 1;
-        Flight flight1 = createFlightFromResultSet(resultSet, 1);
-        Flight flight2 = createFlightFromResultSet(resultSet, 2);
+        Flight flight1 = first.read(resultSet);
+        Flight flight2 = second.readIfPresent(resultSet);
 
-        // Append reservation details to the string builder
-        sb.append("Reservation ").append(reservationId).append(" paid: ").append(paid).append(":\n");
-        sb.append(flight1.toString()).append("\n");
+        out.append("Reservation ").append(reservationId).append(" paid: ").append(paid).append(":\n");
+        out.append(flight1.line()).append('\n');
         if (flight2 != null) {
-            sb.append(flight2.toString()).append("\n");
+          out.append(flight2.line()).append('\n');
         }
+      }
     }
+    if (out.length() == 0) {
+      return "No reservations found\n";
+    }
+    return out.toString();
+  }
 
-    // Close the result set and statement
-    resultSet.close();
-    retrieveReservationsStmt.close();
-
-    // Return the formatted string
-    conn.commit();
-    conn.setAutoCommit(true);
-    return sb.toString();
-}
-    
-catch(SQLException e) {
-  try {
-    e.printStackTrace();
-    conn.rollback();
-    conn.setAutoCommit(true);
-    if (isDeadlock(e)) {
-      return transaction_reservations();
+  /**
+   * Runs a query whose rows are single flights with the FLIGHT_COLUMNS labels and hands each
+   * flight to {@code sink}
+   */
+  private void readFlights(String sql, PreparedStatement stmt, Consumer<Flight> sink)
+      throws SQLException {
+    try (ResultSet rs = stmt.executeQuery()) {
+      FlightDecoder decoder = null;
+      while (rs.next()) {
+        if (decoder == null) {
+          decoder = decoder(sql, FLIGHT_COLUMNS, rs);
+        }
+        sink.accept(decoder.read(rs));
+      }
     }
-    else {
-      return "Failed to retrieve reservations\n";
+  }
+
+  /**
+   * Sets up a search statement that is expected to return about {@code rows} rows: the driver
+   * fetches them in one go (up to MAX_FETCH_SIZE), and the query is cancelled if it runs longer
+   * than flightapp.search.timeout_secs
+   */
+  private PreparedStatement forSearch(PreparedStatement stmt, int rows) throws SQLException {
+    stmt.setFetchSize(Math.max(1, Math.min(rows, MAX_FETCH_SIZE)));
+    stmt.setQueryTimeout(searchTimeoutSecs);
+    return stmt;
+  }
+
+  /**
+   * The decoder for the flight labelled {@code columns} in the rows of {@code sql}, resolving
+   * the column positions from {@code rs} the first time the query returns a row
+   */
+  private FlightDecoder decoder(String sql, String[] columns, ResultSet rs) throws SQLException {
+    Map<String[], FlightDecoder> bySql =
+        decoders.computeIfAbsent(sql, k -> new IdentityHashMap<>());
+    FlightDecoder decoder = bySql.get(columns);
+    if (decoder == null) {
+      decoder = new FlightDecoder(rs, columns);
+      bySql.put(columns, decoder);
     }
+    return decoder;
   }
-  catch(SQLException ex) {
-    ex.printStackTrace();
-    return "Failed to retrieve reservations\n";
+
+  private static String[] withSuffix(String[] columns, String suffix) {
+    String[] suffixed = new String[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      suffixed[i] = columns[i] + suffix;
+    }
+    return suffixed;
   }
-}
-}
 
+  /**
+   * Reads one flight out of a row by column position.  The positions are looked up by label
+   * once per query, instead of on every getInt("...") call.
+   */
+  private class FlightDecoder {
+    private final int fid, day, carrier, flightNum, origin, dest, time, capacity, price;
+
+    /**
+     * @param columns the labels of the flight's fields, in Flight constructor order
+     */
+    FlightDecoder(ResultSet rs, String[] columns) throws SQLException {
+      fid = rs.findColumn(columns[0]);
+      day = rs.findColumn(columns[1]);
+      carrier = rs.findColumn(columns[2]);
+      flightNum = rs.findColumn(columns[3]);
+      origin = rs.findColumn(columns[4]);
+      dest = rs.findColumn(columns[5]);
+      time = rs.findColumn(columns[6]);
+      capacity = rs.findColumn(columns[7]);
+      price = rs.findColumn(columns[8]);
+    }
 
-  private Flight createFlightFromResultSet(ResultSet resultSet, int flightNumber) throws SQLException {
-    if (resultSet.getObject("fid" + flightNumber) == null) {
-        return null;
-    }
-    return new Flight(
-            resultSet.getInt("fid" + flightNumber),
-            resultSet.getInt("day_of_month" + flightNumber),
-            resultSet.getString("carrier_id" + flightNumber),
-            resultSet.getString("flight_num" + flightNumber),
-            resultSet.getString("origin_city" + flightNumber),
-            resultSet.getString("dest_city" + flightNumber),
-            resultSet.getInt("actual_time" + flightNumber),
-            resultSet.getInt("capacity" + flightNumber),
-            resultSet.getInt("price" + flightNumber)
-    );
-}
+    /**
+     * The shared copy of the row's flight from FlightCache, decoding the rest of the row only
+     * if it isn't cached
+     */
+    Flight read(ResultSet rs) throws SQLException {
+      int id = rs.getInt(fid);
+      int cap = rs.getInt(capacity);
+      Flight cached = FlightCache.global().get(id, cap);
+      if (cached != null) {
+        return cached;
+      }
+      return FlightCache.global().add(
+          new Flight(id, rs.getInt(day), rs.getString(carrier), rs.getString(flightNum),
+                     rs.getString(origin), rs.getString(dest), rs.getInt(time), cap,
+                     rs.getInt(price)));
+    }
+
+    /**
+     * Like read(), but returns null if the flight is missing from the row (eg the second
+     * flight of a direct reservation)
+     */
+    Flight readIfPresent(ResultSet rs) throws SQLException {
+      rs.getInt(fid);
+      return rs.wasNull() ? null : read(rs);
+    }
+  }
 
   /**
    * Utility function to determine whether an error was caused by a deadlock
@@ -627,20 +1504,29 @@ catch(SQLException e) {
   }
 
   /**
-   * A class to store information about a single flight
+   * Utility function to determine whether an error was a primary key or unique constraint
+   * violation
+   */
+  private static boolean isDuplicateKey(SQLException e) {
+    return e.getErrorCode() == 2627 || e.getErrorCode() == 2601;
+  }
+
+  /**
+   * A class to store information about a single flight.  Immutable, as instances are shared
+   * between sessions through FlightCache.
    *
    * TODO(hctang): move this into QueryAbstract
    */
-  class Flight {
-    public int fid;
-    public int dayOfMonth;
-    public String carrierId;
-    public String flightNum;
-    public String originCity;
-    public String destCity;
-    public int time;
-    public int capacity;
-    public int price;
+  static class Flight {
+    public final int fid;
+    public final int dayOfMonth;
+    public final String carrierId;
+    public final String flightNum;
+    public final String originCity;
+    public final String destCity;
+    public final int time;
+    public final int capacity;
+    public final int price;
 
     Flight(int id, int day, String carrier, String fnum, String origin, String dest, int tm,
            int cap, int pri) {
@@ -661,11 +1547,19 @@ catch(SQLException e) {
           + flightNum + " Origin: " + originCity + " Dest: " + destCity + " Duration: " + time
           + " Capacity: " + capacity + " Price: " + price;
     }
+
+    /**
+     * toString() as UTF-8, from FlightLines unless the capacity changed since it was rendered
+     */
+    byte[] line() {
+      return FlightLines.global().line(fid, capacity, this::toString);
+    }
   }
   
  public class Itinerary implements Comparable<Itinerary> {
     private final boolean directFlight;
     private final int time;
+    private final int price;
     private final Flight flightOne;
     private final Flight flightTwo;
     private int day; 
@@ -673,6 +1567,7 @@ catch(SQLException e) {
     public Itinerary(Flight flight) {
         this.directFlight = true;
         this.time = flight.time; 
+        this.price = flight.price;
         this.flightOne = flight;
         this.flightTwo = null;
         this.day = flight.dayOfMonth;
@@ -685,6 +1580,7 @@ catch(SQLException e) {
     public Itinerary(Flight flightOne, Flight flightTwo) {
         this.directFlight = false;
         this.time = flightOne.time + flightTwo.time;
+        this.price = flightOne.price + flightTwo.price;
         this.flightOne = flightOne;
         this.flightTwo = flightTwo;
         this.day = flightOne.dayOfMonth;
@@ -698,6 +1594,10 @@ catch(SQLException e) {
         return time;
     }
 
+    public int getPrice() {
+        return price;
+    }
+
     public Flight getFlightOne() {
         return flightOne;
     }
@@ -708,10 +1608,19 @@ catch(SQLException e) {
 
     @Override
     public String toString() {
-        if (directFlight) {
-            return "1 flight(s), " + time + " minutes\n" + flightOne.toString() + "\n";
-        } else {
-            return "2 flight(s), " + time + " minutes\n" + flightOne.toString() + "\n" + flightTwo.toString() + "\n";
+        ResponseBuilder out = new ResponseBuilder();
+        appendTo(out);
+        return out.toString();
+    }
+
+    /**
+     * Appends toString() to a response, copying the flights' cached lines
+     */
+    void appendTo(ResponseBuilder out) {
+        out.append(directFlight ? 1 : 2).append(" flight(s), ").append(time).append(" minutes\n");
+        out.append(flightOne.line()).append('\n');
+        if (!directFlight) {
+            out.append(flightTwo.line()).append('\n');
         }
     }
 
@@ -4,18 +4,62 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.sql.*;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public abstract class QueryAbstract {
   // DB Connection
   protected Connection conn;
 
-  // For checking for dangling transactions
+  // For checking for dangling transactions.  Asking the server for @@TRANCOUNT costs an extra
+  // round trip after every command, so it is only done when flightapp.check_trancount is set
+  // (eg by the tests); otherwise the connection's client-side autocommit state is checked.
   private static final String TRANCOUNT_SQL = "SELECT @@TRANCOUNT AS tran_count";
   private PreparedStatement tranCountStatement;
 
+  // Where the async operations run (AsyncExecutors.shared() unless set), and the last one
+  // submitted: a session's connection and search results can only be used by one operation at
+  // a time, so each async operation starts after the previous one finished
+  private Executor asyncExecutor;
+  private CompletableFuture<?> lastAsync = CompletableFuture.completedFuture(null);
+
+  private static final AtomicInteger NEXT_SESSION_ID = new AtomicInteger();
+
+  private static final long STREAM_IDLE_TIMEOUT_MS =
+      DBConnUtils.getIntProperty("flightapp.stream.idle_timeout_ms", 30000);
+
+  // Numbers the sessions of this process, eg for telling them apart in a TrafficCapture
+  private final int sessionId = NEXT_SESSION_ID.incrementAndGet();
+
+  // Who is on the other end of this session, see setClientSource()
+  private String clientSource = "session:" + sessionId;
+
   protected QueryAbstract() throws SQLException, IOException {
-    this.conn = DBConnUtils.openConnection();
-    tranCountStatement = conn.prepareStatement(TRANCOUNT_SQL);
+    this(DBConnUtils.openConnection());
+  }
+
+  /**
+   * A session on an already open connection, eg a fake one in a test
+   */
+  protected QueryAbstract(Connection conn) throws SQLException {
+    this.conn = conn;
+    setTranCountCheck(DBConnUtils.getBooleanProperty("flightapp.check_trancount", false));
+  }
+
+  /**
+   * Turns the server-side @@TRANCOUNT check after every command on or off
+   */
+  void setTranCountCheck(boolean enabled) throws SQLException {
+    if (enabled && tranCountStatement == null) {
+      tranCountStatement = conn.prepareStatement(TRANCOUNT_SQL);
+    } else if (!enabled && tranCountStatement != null) {
+      tranCountStatement.close();
+      tranCountStatement = null;
+    }
   }
 
   /**
@@ -25,6 +69,30 @@ public abstract class QueryAbstract {
     return conn;
   }
 
+  /**
+   * The user logged in on this session, or null
+   */
+  public String getLoggedInUser() {
+    return null;
+  }
+
+  public int getSessionId() {
+    return sessionId;
+  }
+
+  /**
+   * Tells the session who its client is, eg the remote address of a network client, so that
+   * login failures and admission control can be counted per client; by default every session
+   * is its own client
+   */
+  public void setClientSource(String source) {
+    clientSource = source;
+  }
+
+  public String getClientSource() {
+    return clientSource;
+  }
+
   /**
    * Closes the application-to-database connection
    */
@@ -59,15 +127,40 @@ public abstract class QueryAbstract {
    *         other errors, return "Login failed\n". Otherwise, return "Logged in as [username]\n".
    */
   public final String login(String username, String password) {
-    try {
-      return transaction_login(username, password);
-    } finally {
-      checkDanglingTransaction();
-    }
+    return instrument(CommandMetrics.Operation.LOGIN, () -> transaction_login(username, password));
   }
 
   public abstract String transaction_login(String username, String password);
 
+  /**
+   * Issues a token that lets a later session log in as the current user with resume(), without
+   * the password.
+   *
+   * @return If no user has logged in, then return "Cannot issue token, not logged in\n".
+   *         Otherwise, return "Session token: [token]\n".
+   */
+  public final String token() {
+    return instrument(CommandMetrics.Operation.TOKEN, () -> transaction_token());
+  }
+
+  public abstract String transaction_token();
+
+  /**
+   * Logs in as the user a token from token() was issued for, skipping the password check.
+   *
+   * @param token the token, as printed by token()
+   *
+   * @return If someone has already logged in, then return "User already logged in\n".  If the
+   *         token is invalid or expired, or its user was deleted or re-created since it was
+   *         issued, return "Resume failed\n".  Otherwise, return
+   *         "Resumed session as [username]\n".
+   */
+  public final String resume(String token) {
+    return instrument(CommandMetrics.Operation.RESUME, () -> transaction_resume(token));
+  }
+
+  public abstract String transaction_resume(String token);
+
   /**
    * Creates a new user within the system.
    *
@@ -79,11 +172,8 @@ public abstract class QueryAbstract {
    * @return either "Created user {@code username}\n" or "Failed to create user\n" if failed.
    */
   public final String createCustomer(String username, String password, int initAmount) {
-    try {
-      return transaction_createCustomer(username, password, initAmount);
-    } finally {
-      checkDanglingTransaction();
-    }
+    return instrument(CommandMetrics.Operation.CREATE,
+                      () -> transaction_createCustomer(username, password, initAmount));
   }
 
   public abstract String transaction_createCustomer(String username, String password,
@@ -121,18 +211,35 @@ public abstract class QueryAbstract {
    */
   public final String search(String originCity, String destinationCity, boolean directFlight,
                              int dayOfMonth, int numberOfItineraries) {
-    try {
-      return transaction_search(originCity, destinationCity, directFlight,
-                                dayOfMonth, numberOfItineraries);
-    } finally {
-      checkDanglingTransaction();
-    }
+    return instrument(CommandMetrics.Operation.SEARCH,
+                      () -> transaction_search(originCity, destinationCity, directFlight,
+                                               dayOfMonth, numberOfItineraries));
   }
 
   public abstract String transaction_search(String originCity, String destinationCity, 
                                             boolean directFlight, int dayOfMonth,
                                             int numberOfItineraries);
 
+  /**
+   * Same as {@link #search(String, String, boolean, int, int)}, but the itineraries are chosen
+   * and sorted according to {@code order} instead of always by total flight time.
+   *
+   * With {@link SearchOrder#PRICE}, the cheapest itineraries are returned sorted by total price
+   * (ties broken by total flight time).  With {@link SearchOrder#PARETO}, only itineraries for
+   * which no other itinerary is both faster and cheaper are returned, sorted by total flight
+   * time.  Output format and error messages are the same as for the time-ordered search.
+   */
+  public final String search(String originCity, String destinationCity, boolean directFlight,
+                             int dayOfMonth, int numberOfItineraries, SearchOrder order) {
+    return instrument(CommandMetrics.Operation.SEARCH,
+                      () -> transaction_search(originCity, destinationCity, directFlight,
+                                               dayOfMonth, numberOfItineraries, order));
+  }
+
+  public abstract String transaction_search(String originCity, String destinationCity,
+                                            boolean directFlight, int dayOfMonth,
+                                            int numberOfItineraries, SearchOrder order);
+
   /**
    * Reserves (but doesn't pay for) an itinerary generated from a previous search.
    *
@@ -154,11 +261,7 @@ public abstract class QueryAbstract {
    * @see #search()
    */
   public final String book(int itineraryId) {
-    try {
-      return transaction_book(itineraryId);
-    } finally {
-      checkDanglingTransaction();
-    }
+    return instrument(CommandMetrics.Operation.BOOK, () -> transaction_book(itineraryId));
   }
 
   public abstract String transaction_book(int itineraryId);
@@ -182,11 +285,7 @@ public abstract class QueryAbstract {
    * @see #book()
    */
   public final String pay(int reservationId) {
-    try {
-      return transaction_pay(reservationId);
-    } finally {
-      checkDanglingTransaction();
-    }
+    return instrument(CommandMetrics.Operation.PAY, () -> transaction_pay(reservationId));
   }
 
   public abstract String transaction_pay(int reservationId);
@@ -211,28 +310,178 @@ public abstract class QueryAbstract {
    * @see Query.Flight#toString()
    */
   public final String reservations() {
+    return instrument(CommandMetrics.Operation.RESERVATIONS, () -> transaction_reservations());
+  }
+
+  public abstract String transaction_reservations();
+
+  /**
+   * Runs one command: times it, checks for a dangling transaction afterwards, and records it in
+   * CommandMetrics, StatementTimer and a FlightEvents.Command event
+   */
+  private String instrument(CommandMetrics.Operation op, Supplier<String> command) {
+    long start = System.nanoTime();
+    StatementTimer.startCommand();
+    FlightEvents.Command event = FlightEvents.Command.start();
+    String response = null;
     try {
-      return transaction_reservations();
+      response = command.get();
+      return response;
     } finally {
       checkDanglingTransaction();
+      CommandMetrics.global().record(op, start, response);
+      event.finish(op, response, getLoggedInUser(), sessionId);
     }
   }
 
-  public abstract String transaction_reservations();
+  /**
+   * Runs this session's async operations on {@code executor} instead of the shared one
+   */
+  public synchronized void setAsyncExecutor(Executor executor) {
+    asyncExecutor = executor;
+  }
+
+  /**
+   * Asynchronous {@link #clearTablesWrap()}
+   */
+  public final CompletableFuture<Void> clearTablesAsync() {
+    return submit(() -> {
+      clearTablesWrap();
+      return null;
+    });
+  }
+
+  /**
+   * Asynchronous {@link #login(String, String)}
+   */
+  public final CompletableFuture<CommandResult> loginAsync(String username, String password) {
+    return submit(CommandMetrics.Operation.LOGIN, () -> login(username, password));
+  }
+
+  /**
+   * Asynchronous {@link #resume(String)}
+   */
+  public final CompletableFuture<CommandResult> resumeAsync(String token) {
+    return submit(CommandMetrics.Operation.RESUME, () -> resume(token));
+  }
+
+  /**
+   * Asynchronous {@link #createCustomer(String, String, int)}
+   */
+  public final CompletableFuture<CommandResult> createCustomerAsync(String username,
+                                                                    String password,
+                                                                    int initAmount) {
+    return submit(CommandMetrics.Operation.CREATE,
+                  () -> createCustomer(username, password, initAmount));
+  }
+
+  /**
+   * Asynchronous {@link #search(String, String, boolean, int, int)}
+   */
+  public final CompletableFuture<CommandResult> searchAsync(String originCity,
+                                                            String destinationCity,
+                                                            boolean directFlight, int dayOfMonth,
+                                                            int numberOfItineraries) {
+    return submit(CommandMetrics.Operation.SEARCH,
+                  () -> search(originCity, destinationCity, directFlight, dayOfMonth,
+                               numberOfItineraries));
+  }
+
+  /**
+   * Asynchronous {@link #search(String, String, boolean, int, int, SearchOrder)}
+   */
+  public final CompletableFuture<CommandResult> searchAsync(String originCity,
+                                                            String destinationCity,
+                                                            boolean directFlight, int dayOfMonth,
+                                                            int numberOfItineraries,
+                                                            SearchOrder order) {
+    return submit(CommandMetrics.Operation.SEARCH,
+                  () -> search(originCity, destinationCity, directFlight, dayOfMonth,
+                               numberOfItineraries, order));
+  }
+
+  /**
+   * Asynchronous {@link #book(int)}; itinerary ids refer to the last search submitted before
+   * this call
+   */
+  public final CompletableFuture<CommandResult> bookAsync(int itineraryId) {
+    return submit(CommandMetrics.Operation.BOOK, () -> book(itineraryId));
+  }
+
+  /**
+   * Asynchronous {@link #pay(int)}
+   */
+  public final CompletableFuture<CommandResult> payAsync(int reservationId) {
+    return submit(CommandMetrics.Operation.PAY, () -> pay(reservationId));
+  }
+
+  /**
+   * Asynchronous {@link #reservations()}
+   */
+  public final CompletableFuture<CommandResult> reservationsAsync() {
+    return submit(CommandMetrics.Operation.RESERVATIONS, this::reservations);
+  }
+
+  private CompletableFuture<CommandResult> submit(CommandMetrics.Operation op,
+                                                  Supplier<String> command) {
+    return submit(() -> new CommandResult(op, command.get()));
+  }
+
+  /**
+   * Queues {@code command} to run on the executor once the previously submitted operation is
+   * done, whether it succeeded or not.  The caller gets a copy of the command's future, so
+   * cancelling or completing it doesn't let the next operation start while this one runs.
+   */
+  private synchronized <T> CompletableFuture<T> submit(Supplier<T> command) {
+    CompletableFuture<T> result =
+        lastAsync.handle((r, e) -> null).thenApplyAsync(v -> command.get(), asyncExecutor());
+    lastAsync = result;
+    return result.thenApply(r -> r);
+  }
+
+  /**
+   * Like submit(), for an operation that streams its results: {@code open} and the source it
+   * returns run on the executor once the previously submitted operation is done, and the next
+   * async operation waits until the stream completes or is cancelled.  A stream that isn't
+   * subscribed to, or whose subscriber stops requesting, is cancelled after
+   * flightapp.stream.idle_timeout_ms (default 30000, 0 for never) so that it doesn't hold its
+   * result set open and the later async operations of this session back forever.
+   */
+  protected final synchronized <T> Flow.Publisher<T> stream(
+      Callable<PullPublisher.Source<T>> open) {
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    PullPublisher<T> publisher = new PullPublisher<>(asyncExecutor(), lastAsync, open, done,
+                                                     STREAM_IDLE_TIMEOUT_MS);
+    lastAsync = done;
+    return publisher;
+  }
+
+  private synchronized Executor asyncExecutor() {
+    if (asyncExecutor == null) {
+      asyncExecutor = AsyncExecutors.shared();
+    }
+    return asyncExecutor;
+  }
 
   /**
    * Throw IllegalStateException if transaction not completely complete, rollback.
    *
+   * Every transaction in Query is opened with conn.setAutoCommit(false) and closed by a commit
+   * or rollback followed by conn.setAutoCommit(true), so a connection that is still out of
+   * autocommit mode has a dangling transaction.  The JDBC driver tracks that mode locally, so
+   * this check doesn't touch the server.  With flightapp.check_trancount the server's
+   * @@TRANCOUNT is checked as well, which also catches transactions opened in SQL text.
    */
   protected void checkDanglingTransaction() throws IllegalStateException {
     try {
-      try (ResultSet rs = tranCountStatement.executeQuery()) {
-        rs.next();
-        int count = rs.getInt("tran_count");
-        if (count > 0) {
+      try {
+        if (tranCountStatement != null) {
+          checkServerTranCount();
+        } else if (!conn.getAutoCommit()) {
+          conn.rollback();
           throw new IllegalStateException(
-              "\nTransaction not fully commited/rolledback. Number of transactions currently"
-              + " in process: " + count
+              "\nTransaction not fully commited/rolledback: the connection was left with"
+              + " autocommit off, so the open transaction has been rolled back."
               + "\nImportant: transactions must committed or rolledback before returning from"
               + " a method.  Example: flight is full; you must conn.rollback() before returning"
               + " the error string.\n");
@@ -244,4 +493,19 @@ public abstract class QueryAbstract {
       throw new IllegalStateException("Database error", e);
     }
   }
+
+  private void checkServerTranCount() throws SQLException {
+    try (ResultSet rs = tranCountStatement.executeQuery()) {
+      rs.next();
+      int count = rs.getInt("tran_count");
+      if (count > 0) {
+        throw new IllegalStateException(
+            "\nTransaction not fully commited/rolledback. Number of transactions currently"
+            + " in process: " + count
+            + "\nImportant: transactions must committed or rolledback before returning from"
+            + " a method.  Example: flight is full; you must conn.rollback() before returning"
+            + " the error string.\n");
+      }
+    }
+  }
 }
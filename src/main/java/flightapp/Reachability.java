@@ -0,0 +1,224 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Which (origin, destination) city pairs have any direct or one-stop itinerary on each day.
+ *
+ * Built from Flights, it lets a search that can't possibly match answer "No flights match your
+ * selection" without going to the database.  Cities are numbered and every day keeps two bit
+ * matrices indexed by (origin, destination): one for direct flights (canceled or not, like
+ * DIRECT_FLIGHT_SQL) and one for one-stop itineraries over non-canceled legs (like
+ * INDIRECT_FLIGHT_SQL); with ~350 cities the whole month takes about 1MB.  Unlike a Bloom filter
+ * the matrices are exact for the Flights rows they were built from, so they have no false
+ * positives or negatives until Flights changes.  The shared filter is then rebuilt as soon as
+ * FlightsWatcher notices the change; until the new matrices replace the old ones, searches that
+ * only became possible with the change are still answered with no flights.
+ *
+ * City names are compared the way the database's default collation does: case-insensitively
+ * and ignoring trailing spaces.  Enabled with flightapp.search.reachability=true.
+ */
+public class Reachability {
+  // Days of the month are 1..31
+  private static final int DAYS = 32;
+
+  private static final String CITY_PAIRS_SQL =
+      "SELECT day_of_month, origin_city, dest_city, "
+      + "MAX(CASE WHEN canceled = 0 THEN 1 ELSE 0 END) AS has_open "
+      + "FROM Flights GROUP BY day_of_month, origin_city, dest_city";
+
+  private static Reachability shared;
+
+  /**
+   * The filter shared by every session in this process, loaded from the primary on first use
+   * and reloaded whenever FlightsWatcher sees Flights change
+   */
+  public static synchronized Reachability shared() throws SQLException, IOException {
+    if (shared == null) {
+      // watch before loading, so that no change after the load can go unnoticed
+      FlightsWatcher watcher = FlightsWatcher.shared();
+      try (Connection conn = DBConnUtils.openConnection()) {
+        shared = load(conn);
+      }
+      watcher.addListener(shared::reload);
+    }
+    return shared;
+  }
+
+  /**
+   * Reads every distinct (day, origin, destination) of Flights
+   */
+  public static Reachability load(Connection conn) throws SQLException {
+    Builder builder = new Builder();
+    try (PreparedStatement stmt = conn.prepareStatement(CITY_PAIRS_SQL);
+         ResultSet rs = stmt.executeQuery()) {
+      while (rs.next()) {
+        builder.add(rs.getInt("day_of_month"), rs.getString("origin_city"),
+                    rs.getString("dest_city"), rs.getInt("has_open") == 1);
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * The city numbering and the matrices built with it, replaced together on a reload
+   */
+  private static class Matrices {
+    final Map<String, Integer> cityIds;
+    final int words;         // longs per matrix row
+    final long[][] direct;   // [day][origin * words + dest / 64]
+    final long[][] oneStop;
+
+    Matrices(Map<String, Integer> cityIds, long[][] direct, long[][] oneStop) {
+      this.cityIds = cityIds;
+      this.words = wordsPerRow(cityIds.size());
+      this.direct = direct;
+      this.oneStop = oneStop;
+    }
+
+    boolean isSet(long[] matrix, int row, int col) {
+      return matrix.length > 0 && (matrix[row * words + (col >>> 6)] & (1L << col)) != 0;
+    }
+  }
+
+  private volatile Matrices matrices;
+
+  private Reachability(Matrices matrices) {
+    this.matrices = matrices;
+  }
+
+  /**
+   * Rebuilds the matrices from the current Flights rows; searches keep using the old ones
+   * until the new ones are complete
+   */
+  public void reload(Connection conn) throws SQLException {
+    matrices = load(conn).matrices;
+  }
+
+  /**
+   * False if a search with these parameters is certain to find no itineraries
+   */
+  public boolean mayHaveItineraries(String originCity, String destinationCity,
+                                    boolean directFlight, int dayOfMonth) {
+    Matrices m = matrices;
+    Integer origin = m.cityIds.get(normalize(originCity));
+    Integer dest = m.cityIds.get(normalize(destinationCity));
+    if (origin == null || dest == null || dayOfMonth < 0 || dayOfMonth >= DAYS) {
+      return false;
+    }
+    return m.isSet(m.direct[dayOfMonth], origin, dest)
+        || (!directFlight && m.isSet(m.oneStop[dayOfMonth], origin, dest));
+  }
+
+  /**
+   * The number of distinct cities
+   */
+  public int cityCount() {
+    return matrices.cityIds.size();
+  }
+
+  /**
+   * The normalized names of all cities, eg for sampling searches
+   */
+  List<String> cities() {
+    return new ArrayList<>(matrices.cityIds.keySet());
+  }
+
+  /**
+   * Approximate heap footprint of the bit matrices and the city map, in bytes
+   */
+  public long memoryBytes() {
+    Matrices m = matrices;
+    long bytes = 0;
+    for (int day = 0; day < DAYS; day++) {
+      bytes += 8L * (m.direct[day].length + m.oneStop[day].length);
+    }
+    // map entry, key string and boxed id per city, give or take
+    return bytes + m.cityIds.size() * 120L;
+  }
+
+  static String normalize(String city) {
+    int end = city.length();
+    while (end > 0 && city.charAt(end - 1) == ' ') {
+      end--;
+    }
+    return city.substring(0, end).toLowerCase(Locale.ROOT);
+  }
+
+  private static int wordsPerRow(int cities) {
+    return (cities + 63) >>> 6;
+  }
+
+  /**
+   * Collects the city pairs and computes the one-stop matrices from them
+   */
+  static class Builder {
+    private final Map<String, Integer> cityIds = new HashMap<>();
+    private final List<List<int[]>> pairs = new ArrayList<>();  // per day: {origin, dest, open}
+
+    Builder() {
+      for (int day = 0; day < DAYS; day++) {
+        pairs.add(new ArrayList<>());
+      }
+    }
+
+    /**
+     * Records that some flight goes from origin to dest on the day; {@code open} if at least
+     * one of them isn't canceled
+     */
+    Builder add(int dayOfMonth, String originCity, String destCity, boolean open) {
+      if (dayOfMonth >= 0 && dayOfMonth < DAYS) {
+        pairs.get(dayOfMonth).add(new int[] {id(originCity), id(destCity), open ? 1 : 0});
+      }
+      return this;
+    }
+
+    private int id(String city) {
+      return cityIds.computeIfAbsent(normalize(city), k -> cityIds.size());
+    }
+
+    Reachability build() {
+      int cities = cityIds.size();
+      int words = wordsPerRow(cities);
+      long[][] direct = new long[DAYS][];
+      long[][] oneStop = new long[DAYS][];
+      for (int day = 0; day < DAYS; day++) {
+        if (pairs.get(day).isEmpty()) {
+          direct[day] = new long[0];
+          oneStop[day] = new long[0];
+          continue;
+        }
+        direct[day] = new long[cities * words];
+        long[] open = new long[cities * words];
+        for (int[] pair : pairs.get(day)) {
+          direct[day][pair[0] * words + (pair[1] >>> 6)] |= 1L << pair[1];
+          if (pair[2] == 1) {
+            open[pair[0] * words + (pair[1] >>> 6)] |= 1L << pair[1];
+          }
+        }
+
+        // one-stop row of o = OR of the open rows of every city o has an open leg to
+        oneStop[day] = new long[cities * words];
+        for (int o = 0; o < cities; o++) {
+          for (int m = 0; m < cities; m++) {
+            if ((open[o * words + (m >>> 6)] & (1L << m)) != 0) {
+              for (int w = 0; w < words; w++) {
+                oneStop[day][o * words + w] |= open[m * words + w];
+              }
+            }
+          }
+        }
+      }
+      return new Reachability(new Matrices(new HashMap<>(cityIds), direct, oneStop));
+    }
+  }
+}
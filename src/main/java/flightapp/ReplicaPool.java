@@ -0,0 +1,267 @@
+package flightapp;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed-size pool of read-only connections to one or more read replicas.
+ *
+ * Query borrows a connection for each read-only transaction (search, reservations and the
+ * login lookup) so that read traffic doesn't compete with bookings and payments for the
+ * primary's locks.  Each pooled connection keeps the statements prepared on it, so a borrowed
+ * connection only pays for the prepare the first time it runs a given query.
+ *
+ * Reads are gated on commit positions for read-your-writes: before its first read after a
+ * write, a session asks commitPosition() for the primary's last commit LSN, and passes it to
+ * read(), which only uses a replica that has redone its log up to there.  The positions come
+ * from sys.dm_hadr_database_replica_states, so the replicas are expected to be Always On
+ * availability group secondaries and the login needs VIEW SERVER STATE.  Whether the primary
+ * reports positions is found out once per pool: if it doesn't, commitPosition() stops asking
+ * and returns PRIMARY_ONLY, so a session that wrote reads from the primary from then on, and
+ * read() sends those reads there without borrowing a replica connection.
+ *
+ * Configured with flightapp.replica_urls, a comma-separated list of servers (or full JDBC URLs)
+ * that share the primary's database name and credentials, and flightapp.replica.pool_size
+ * (default 4), the number of connections opened round-robin over those servers.
+ */
+public class ReplicaPool implements AutoCloseable {
+  // How long a session waits for a free replica connection before reading from the primary
+  private static final long ACQUIRE_TIMEOUT_MS = 50;
+
+  // The last commit in the primary's log, and how far a secondary has redone its log
+  static final String PRIMARY_POSITION_SQL =
+      "SELECT last_commit_lsn FROM sys.dm_hadr_database_replica_states "
+      + "WHERE is_local = 1 AND database_id = DB_ID()";
+  static final String REPLICA_POSITION_SQL =
+      "SELECT last_redone_lsn FROM sys.dm_hadr_database_replica_states "
+      + "WHERE is_local = 1 AND database_id = DB_ID()";
+
+  /**
+   * A position past any LSN (which has at most 25 digits), for writes whose position is unknown
+   */
+  public static final BigDecimal PRIMARY_ONLY = BigDecimal.TEN.pow(30);
+
+  /**
+   * A read-only transaction, run on {@code lease}'s connection, or on the primary if it's null
+   */
+  public interface Read<T> {
+    T run(Lease lease) throws SQLException;
+  }
+
+  private static ReplicaPool shared;
+  private static boolean sharedLoaded;
+
+  /**
+   * The pool shared by every session in this process, or null if no replicas are configured
+   */
+  public static synchronized ReplicaPool shared() throws SQLException, IOException {
+    if (!sharedLoaded) {
+      String urls = DBConnUtils.getProperty("flightapp.replica_urls", null);
+      if (urls != null) {
+        shared = new ReplicaPool(Arrays.asList(urls.split("\\s*,\\s*")),
+                                 DBConnUtils.getIntProperty("flightapp.replica.pool_size", 4));
+      }
+      sharedLoaded = true;
+    }
+    return shared;
+  }
+
+  private final List<String> serverURLs;
+  private final ConnectionOpener opener;
+  private final BlockingQueue<Lease> idle;
+  private final List<Lease> all = new ArrayList<>();
+  // Whether the primary reports commit positions; null until commitPosition() first asks
+  private volatile Boolean primaryReportsPositions;
+
+  public ReplicaPool(List<String> serverURLs, int size) {
+    this(serverURLs, size, DBConnUtils::openConnection);
+  }
+
+  ReplicaPool(List<String> serverURLs, int size, ConnectionOpener opener) {
+    if (serverURLs.isEmpty() || size < 1) {
+      throw new IllegalArgumentException("need at least one replica and one connection");
+    }
+    this.serverURLs = new ArrayList<>(serverURLs);
+    this.opener = opener;
+    this.idle = new ArrayBlockingQueue<>(size);
+    for (int i = 0; i < size; i++) {
+      Lease lease = new Lease(this.serverURLs.get(i % this.serverURLs.size()));
+      all.add(lease);
+      idle.add(lease);
+    }
+  }
+
+  /**
+   * Borrows a connection, or returns null if none becomes free within a few milliseconds (the
+   * caller should then read from the primary).  The lease must be closed to give it back.
+   */
+  public Lease acquire() {
+    FlightEvents.ConnectionAcquire event = FlightEvents.ConnectionAcquire.start();
+    Lease lease = null;
+    try {
+      lease = idle.poll(ACQUIRE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      return lease;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } finally {
+      event.finish(lease != null ? lease.serverURL : null, true, lease != null);
+    }
+  }
+
+  /**
+   * The position of the last commit on {@code primary}, to pass to read() so that later reads
+   * see it; PRIMARY_ONLY if the primary doesn't report one, without asking again once it
+   * didn't report one the first time
+   */
+  public BigDecimal commitPosition(Connection primary) {
+    if (Boolean.FALSE.equals(primaryReportsPositions)) {
+      return PRIMARY_ONLY;
+    }
+    BigDecimal position = null;
+    try (PreparedStatement stmt = primary.prepareStatement(PRIMARY_POSITION_SQL);
+         ResultSet rs = stmt.executeQuery()) {
+      position = rs.next() ? rs.getBigDecimal(1) : null;
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+    if (primaryReportsPositions == null) {
+      primaryReportsPositions = position != null;
+      if (position == null) {
+        System.err.println("The primary reports no commit position (not in an availability "
+                           + "group, or no VIEW SERVER STATE); reads after a write go to the "
+                           + "primary");
+      }
+    }
+    return position != null ? position : PRIMARY_ONLY;
+  }
+
+  /**
+   * Runs {@code read} on a replica that has redone the log up to {@code minPosition} (any
+   * replica if it's null), or on the primary if no such replica connection is free.  If the
+   * replica fails, its connection is discarded and {@code read} runs again on the primary.
+   */
+  public <T> T read(BigDecimal minPosition, Read<T> read) throws SQLException {
+    if (minPosition != null && minPosition.compareTo(PRIMARY_ONLY) >= 0) {
+      return read.run(null);
+    }
+    Lease lease = acquire();
+    if (lease != null && minPosition != null && !lease.reached(minPosition)) {
+      lease.close();
+      lease = null;
+    }
+    if (lease == null) {
+      return read.run(null);
+    }
+    try {
+      return read.run(lease);
+    } catch (SQLException e) {
+      e.printStackTrace();
+      lease.discard();
+      return read.run(null);
+    } finally {
+      lease.close();
+    }
+  }
+
+  @Override
+  public void close() throws SQLException {
+    for (Lease lease : all) {
+      lease.discard();
+    }
+  }
+
+  /**
+   * A borrowed replica connection
+   */
+  public class Lease implements AutoCloseable {
+    private final String serverURL;
+    private Connection conn;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    // the highest position this replica was seen at; positions only go up
+    private BigDecimal knownPosition;
+
+    private Lease(String serverURL) {
+      this.serverURL = serverURL;
+    }
+
+    /**
+     * Returns {@code sql} prepared on this connection, opening the connection if needed
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement stmt = statements.get(sql);
+      if (stmt == null) {
+        stmt = connection().prepareStatement(sql);
+        statements.put(sql, stmt);
+      }
+      return stmt;
+    }
+
+    /**
+     * Whether this replica has redone the log up to {@code position}, asking it only if it
+     * wasn't already seen there
+     */
+    boolean reached(BigDecimal position) {
+      if (knownPosition == null || knownPosition.compareTo(position) < 0) {
+        try (ResultSet rs = prepare(REPLICA_POSITION_SQL).executeQuery()) {
+          BigDecimal current = rs.next() ? rs.getBigDecimal(1) : null;
+          if (current != null && (knownPosition == null || current.compareTo(knownPosition) > 0)) {
+            knownPosition = current;
+          }
+        } catch (SQLException e) {
+          e.printStackTrace();
+          discard();
+          return false;
+        }
+      }
+      return knownPosition != null && knownPosition.compareTo(position) >= 0;
+    }
+
+    private Connection connection() throws SQLException {
+      if (conn == null) {
+        try {
+          conn = opener.open(serverURL);
+        } catch (IOException e) {
+          throw new SQLException("Cannot read dbconn.properties", e);
+        }
+        conn.setReadOnly(true);
+      }
+      return conn;
+    }
+
+    /**
+     * Closes the connection after an error; it is reopened the next time the lease is used
+     */
+    public void discard() {
+      statements.clear();
+      if (conn != null) {
+        try {
+          conn.close();
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+        conn = null;
+      }
+    }
+
+    /**
+     * Gives the connection back to the pool
+     */
+    @Override
+    public void close() {
+      idle.add(this);
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package flightapp;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide cache of each user's rendered reservations listing, so that repeated
+ * "reservations" commands don't have to run RETRIEVE_RESERVATIONS_SQL again.
+ *
+ * A listing is cached the first time it's read and dropped whenever a session of this process
+ * books or pays on the user's behalf, so a user always sees their own writes.  Writes made by
+ * other processes aren't seen, which is why the cache is off unless
+ * flightapp.reservations_cache=true: only turn it on when a user's sessions all go through the
+ * one process.  Usernames are case-insensitive, as in the database.
+ *
+ * The cache is bounded by the approximate heap footprint of its listings,
+ * flightapp.reservations_cache.max_bytes (default 64MB), evicting the least recently used ones.
+ */
+public class ReservationsCache {
+  // Per-key overhead of the map entry, key and string headers, give or take
+  private static final int ENTRY_OVERHEAD_BYTES = 150;
+
+  private static final int VERSION_STRIPES = 1024;
+
+  private static ReservationsCache shared;
+
+  /**
+   * The cache shared by every session in this process
+   */
+  public static synchronized ReservationsCache shared() {
+    if (shared == null) {
+      shared = new ReservationsCache(DBConnUtils.getIntProperty(
+          "flightapp.reservations_cache.max_bytes", 64 * 1024 * 1024));
+    }
+    return shared;
+  }
+
+  private final long maxBytes;
+  private long bytes;
+  private final LinkedHashMap<String, String> listings = new LinkedHashMap<>(16, 0.75f, true);
+
+  // Bumped by every invalidation of a key hashing to the stripe; a listing read from the
+  // database is only cached if its stripe didn't change while it was being read
+  private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+  public ReservationsCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * The cache key of {@code username}'s reservations in the Reservations_[tableSuffix] table
+   */
+  public static String key(String tableSuffix, String username) {
+    return tableSuffix + "/" + username.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * The cached listing, or null if it has to be read from the database
+   */
+  public synchronized String get(String key) {
+    return listings.get(key);
+  }
+
+  /**
+   * To be called before reading {@code key}'s listing from the database; pass the result to
+   * put() along with the listing
+   */
+  public long version(String key) {
+    return versions.get(stripe(key));
+  }
+
+  /**
+   * Caches a listing read from the database, unless {@code key} was invalidated since
+   * {@code version} was taken (the listing may predate that write)
+   */
+  public synchronized void put(String key, String listing, long version) {
+    if (versions.get(stripe(key)) != version) {
+      return;
+    }
+    remove(key);
+    long size = sizeOf(key, listing);
+    if (size > maxBytes) {
+      return;
+    }
+    listings.put(key, listing);
+    bytes += size;
+    Iterator<Map.Entry<String, String>> lru = listings.entrySet().iterator();
+    while (bytes > maxBytes) {
+      Map.Entry<String, String> eldest = lru.next();
+      bytes -= sizeOf(eldest.getKey(), eldest.getValue());
+      lru.remove();
+    }
+  }
+
+  /**
+   * Drops {@code key}'s listing; called after every write to the user's reservations
+   */
+  public synchronized void invalidate(String key) {
+    versions.incrementAndGet(stripe(key));
+    remove(key);
+  }
+
+  /**
+   * Drops every listing, eg after the reservation tables were cleared
+   */
+  public synchronized void clear() {
+    for (int i = 0; i < VERSION_STRIPES; i++) {
+      versions.incrementAndGet(i);
+    }
+    listings.clear();
+    bytes = 0;
+  }
+
+  public synchronized int size() {
+    return listings.size();
+  }
+
+  public synchronized long bytes() {
+    return bytes;
+  }
+
+  private void remove(String key) {
+    String old = listings.remove(key);
+    if (old != null) {
+      bytes -= sizeOf(key, old);
+    }
+  }
+
+  private static long sizeOf(String key, String listing) {
+    return ENTRY_OVERHEAD_BYTES + 2L * (key.length() + listing.length());
+  }
+
+  private static int stripe(String key) {
+    return Math.floorMod(key.hashCode(), VERSION_STRIPES);
+  }
+}
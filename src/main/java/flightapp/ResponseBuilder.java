@@ -0,0 +1,113 @@
+package flightapp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds a command's response as UTF-8 bytes.
+ *
+ * Pre-rendered flight lines (see FlightLines) are appended with a single array copy, and the
+ * small pieces around them (labels, itinerary numbers, times) are written straight into the
+ * buffer without creating intermediate Strings.  Not thread-safe; a response is built by one
+ * session.
+ */
+public class ResponseBuilder {
+  private byte[] buf;
+  private int len;
+
+  public ResponseBuilder() {
+    this(256);
+  }
+
+  public ResponseBuilder(int initialCapacity) {
+    buf = new byte[Math.max(initialCapacity, 16)];
+  }
+
+  /**
+   * Appends already-encoded UTF-8 bytes
+   */
+  public ResponseBuilder append(byte[] bytes) {
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, buf, len, bytes.length);
+    len += bytes.length;
+    return this;
+  }
+
+  public ResponseBuilder append(String s) {
+    ensureCapacity(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c >= 0x80) {
+        // not ASCII; let the JDK encode the rest
+        return append(s.substring(i).getBytes(StandardCharsets.UTF_8));
+      }
+      buf[len++] = (byte) c;
+    }
+    return this;
+  }
+
+  public ResponseBuilder append(char c) {
+    return c < 0x80 ? appendByte((byte) c) : append(String.valueOf(c));
+  }
+
+  /**
+   * Appends the decimal digits of {@code value}
+   */
+  public ResponseBuilder append(int value) {
+    if (value == Integer.MIN_VALUE) {
+      return append(Integer.toString(value));
+    }
+    ensureCapacity(11);
+    if (value < 0) {
+      buf[len++] = '-';
+      value = -value;
+    }
+    int start = len;
+    do {
+      buf[len++] = (byte) ('0' + value % 10);
+      value /= 10;
+    } while (value != 0);
+    // digits were written least significant first
+    for (int i = start, j = len - 1; i < j; i++, j--) {
+      byte tmp = buf[i];
+      buf[i] = buf[j];
+      buf[j] = tmp;
+    }
+    return this;
+  }
+
+  public ResponseBuilder append(boolean value) {
+    return append(value ? "true" : "false");
+  }
+
+  public int length() {
+    return len;
+  }
+
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buf, len);
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(buf, 0, len);
+  }
+
+  @Override
+  public String toString() {
+    return new String(buf, 0, len, StandardCharsets.UTF_8);
+  }
+
+  private ResponseBuilder appendByte(byte b) {
+    ensureCapacity(1);
+    buf[len++] = b;
+    return this;
+  }
+
+  private void ensureCapacity(int extra) {
+    if (len + extra > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package flightapp;
+
+/**
+ * The orderings a search can return its itineraries in.
+ */
+public enum SearchOrder {
+  /**
+   * Shortest total flight time first (the default).
+   */
+  TIME,
+
+  /**
+   * Cheapest total price first, ties broken by total flight time.
+   */
+  PRICE,
+
+  /**
+   * Only itineraries that are not dominated on both time and price by another itinerary,
+   * ordered by total flight time.
+   */
+  PARETO;
+
+  /**
+   * Parses the sort mode given on the command line, eg "price".
+   *
+   * @return null if the name isn't a known sort mode
+   */
+  public static SearchOrder parse(String name) {
+    for (SearchOrder order : values()) {
+      if (order.name().equalsIgnoreCase(name)) {
+        return order;
+      }
+    }
+    return null;
+  }
+}
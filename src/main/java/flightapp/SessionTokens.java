@@ -0,0 +1,140 @@
+package flightapp;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signed, expiring session tokens, so that a reconnecting client can resume its login with
+ * "resume [token]" instead of sending its password through 65536 PBKDF2 iterations again.
+ *
+ * A token is base64url("[expiry]:[username]") + "." + base64url(HMAC-SHA256 of the same text,
+ * the table suffix and the user's stored state).  The state is the user's salted password hash
+ * from the Users table, whose salt is new for every created user, so a token stops working in
+ * every process as soon as its user's row is deleted (eg by clearTables) or replaced by one
+ * with the same name; checking it costs one read of the row instead of the PBKDF2 hash.  The
+ * key is flightapp.session.secret (base64, at least 32 bytes) when every process should accept
+ * every other's tokens, otherwise a random key that lives as long as this process.  Tokens
+ * expire after flightapp.session.ttl_secs (default 3600) seconds.
+ */
+public class SessionTokens {
+  private static final String ALGORITHM = "HmacSHA256";
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+  private static SessionTokens shared;
+
+  /**
+   * The tokens issued and accepted by this process
+   */
+  public static synchronized SessionTokens shared() {
+    if (shared == null) {
+      String secret = DBConnUtils.getProperty("flightapp.session.secret", null);
+      shared = new SessionTokens(secret != null ? Base64.getDecoder().decode(secret) : null,
+                                 DBConnUtils.getIntProperty("flightapp.session.ttl_secs", 3600));
+    }
+    return shared;
+  }
+
+  /**
+   * Reads the stored state tokens of a user are bound to, or null if there's no such user
+   */
+  public interface UserState {
+    byte[] of(String username) throws SQLException;
+  }
+
+  private final long ttlSecs;
+  private final ThreadLocal<Mac> macs;
+
+  /**
+   * @param key the HMAC key, or null for a random one
+   */
+  public SessionTokens(byte[] key, long ttlSecs) {
+    if (key == null) {
+      key = new byte[32];
+      new SecureRandom().nextBytes(key);
+    } else if (key.length < 32) {
+      throw new IllegalArgumentException("flightapp.session.secret must be at least 32 bytes");
+    }
+    SecretKeySpec spec = new SecretKeySpec(key, ALGORITHM);
+    this.ttlSecs = ttlSecs;
+    // Mac isn't thread-safe, and initializing one costs more than using it
+    this.macs = ThreadLocal.withInitial(() -> {
+      try {
+        Mac mac = Mac.getInstance(ALGORITHM);
+        mac.init(spec);
+        return mac;
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+  }
+
+  /**
+   * A token for {@code username}'s session on the Users_[tableSuffix] table, bound to the
+   * user's current {@code userState}
+   */
+  public String issue(String tableSuffix, String username, byte[] userState) {
+    return issue(tableSuffix, username, userState, System.currentTimeMillis() / 1000);
+  }
+
+  String issue(String tableSuffix, String username, byte[] userState, long nowSecs) {
+    byte[] payload = ((nowSecs + ttlSecs) + ":" + username).getBytes(StandardCharsets.UTF_8);
+    return ENCODER.encodeToString(payload) + "."
+        + ENCODER.encodeToString(sign(tableSuffix, userState, payload));
+  }
+
+  /**
+   * The username the token was issued for, or null if it is malformed, forged, expired, for
+   * other tables, or its user's state (read through {@code users} once the token is otherwise
+   * well-formed and unexpired) is gone or changed
+   */
+  public String verify(String tableSuffix, String token, UserState users) throws SQLException {
+    return verify(tableSuffix, token, users, System.currentTimeMillis() / 1000);
+  }
+
+  String verify(String tableSuffix, String token, UserState users, long nowSecs)
+      throws SQLException {
+    int dot = token.indexOf('.');
+    if (dot < 0) {
+      return null;
+    }
+    byte[] payload;
+    byte[] signature;
+    try {
+      payload = DECODER.decode(token.substring(0, dot));
+      signature = DECODER.decode(token.substring(dot + 1));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+
+    String text = new String(payload, StandardCharsets.UTF_8);
+    int colon = text.indexOf(':');
+    try {
+      if (colon < 0 || Long.parseLong(text.substring(0, colon)) <= nowSecs) {
+        return null;
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    String username = text.substring(colon + 1);
+    byte[] userState = users.of(username);
+    if (userState == null
+        || !MessageDigest.isEqual(signature, sign(tableSuffix, userState, payload))) {
+      return null;
+    }
+    return username;
+  }
+
+  private byte[] sign(String tableSuffix, byte[] userState, byte[] payload) {
+    Mac mac = macs.get();
+    mac.update((tableSuffix + ":" + userState.length + ":").getBytes(StandardCharsets.UTF_8));
+    mac.update(userState);
+    return mac.doFinal(payload);
+  }
+}
@@ -0,0 +1,139 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One session's connections to the databases that users and their reservations are
+ * partitioned over.
+ *
+ * Shard 0 is the primary database (flightapp.server_url); flightapp.shard_urls lists the
+ * servers (or full JDBC URLs) of shards 1, 2, ..., which share the primary's database name and
+ * credentials.  Every shard has its own Users/Reservations tables from createTables.sql and its
+ * own copy of the Flights table.
+ *
+ * A user lives on the shard picked by the hash of their lower-cased username, and so do all of
+ * their reservations.  Reservation IDs are allocated per shard as shard+1, shard+1+N,
+ * shard+1+2N, ... for N shards, so the shard of a reservation is (rid - 1) % N.  With a single
+ * shard this is the usual 1, 2, 3, ...
+ *
+ * Booking only reads the Flights table for a flight's capacity, which every shard has the same
+ * copy of, so no booking has to look at more than one shard and sharding never changes a
+ * booking's result.  Query runs every booking and payment on the user's shard, through that
+ * shard's BookingPipeline when bookings are pipelined.
+ */
+public class Shards implements AutoCloseable {
+  private final List<String> serverURLs;
+  private final String tableSuffix;
+  private final ConnectionOpener opener;
+  private final Connection[] connections;
+  private final List<Map<String, PreparedStatement>> statements = new ArrayList<>();
+
+  /**
+   * The shard servers from flightapp.shard_urls, not counting the primary
+   */
+  public static List<String> configuredURLs() {
+    String urls = DBConnUtils.getProperty("flightapp.shard_urls", null);
+    if (urls == null) {
+      return Collections.emptyList();
+    }
+    return Arrays.asList(urls.split("\\s*,\\s*"));
+  }
+
+  /**
+   * @param primary    the session's connection to the primary, used as shard 0
+   * @param serverURLs the servers of shards 1, 2, ...; connections to them are opened lazily
+   */
+  public Shards(Connection primary, List<String> serverURLs, String tableSuffix) {
+    this(primary, serverURLs, tableSuffix, DBConnUtils::openConnection);
+  }
+
+  Shards(Connection primary, List<String> serverURLs, String tableSuffix,
+         ConnectionOpener opener) {
+    this.serverURLs = new ArrayList<>(serverURLs);
+    this.tableSuffix = tableSuffix;
+    this.opener = opener;
+    this.connections = new Connection[serverURLs.size() + 1];
+    connections[0] = primary;
+    for (int i = 0; i < connections.length; i++) {
+      statements.add(new HashMap<>());
+    }
+  }
+
+  /**
+   * The number of shards, including the primary
+   */
+  public int count() {
+    return connections.length;
+  }
+
+  /**
+   * The shard that {@code username}'s user row and reservations live on
+   */
+  public int shardOf(String username) {
+    return Math.floorMod(username.toLowerCase().hashCode(), count());
+  }
+
+  /**
+   * The shard that reservation {@code rid} was booked on
+   */
+  public int shardOfReservation(int rid) {
+    return Math.floorMod(rid - 1, count());
+  }
+
+  /**
+   * The server of {@code shard}, or null for the primary
+   */
+  public String serverURL(int shard) {
+    return shard == 0 ? null : serverURLs.get(shard - 1);
+  }
+
+  /**
+   * The connection to {@code shard}, opened on first use
+   */
+  public Connection connection(int shard) throws SQLException {
+    if (connections[shard] == null) {
+      try {
+        connections[shard] = opener.open(serverURLs.get(shard - 1));
+      } catch (IOException e) {
+        throw new SQLException("Cannot read dbconn.properties", e);
+      }
+    }
+    return connections[shard];
+  }
+
+  /**
+   * Returns one of Query's canned queries prepared against {@code shard}'s tables, preparing it
+   * on first use
+   */
+  public PreparedStatement prepare(int shard, String sql) throws SQLException {
+    PreparedStatement stmt = statements.get(shard).get(sql);
+    if (stmt == null) {
+      stmt = connection(shard).prepareStatement(DBConnUtils.withTableSuffix(sql, tableSuffix));
+      statements.get(shard).put(sql, stmt);
+    }
+    return stmt;
+  }
+
+  /**
+   * Closes the connections to every shard but the primary, which belongs to the session
+   */
+  @Override
+  public void close() throws SQLException {
+    for (int shard = 1; shard < connections.length; shard++) {
+      if (connections[shard] != null) {
+        connections[shard].close();
+        connections[shard] = null;
+      }
+      statements.get(shard).clear();
+    }
+  }
+}
@@ -0,0 +1,269 @@
+package flightapp;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Times the statements run on the connections opened by DBConnUtils, to find out which of the
+ * SQL statements are slow and how many round trips each command takes.
+ *
+ * wrap() puts a java.lang.reflect.Proxy around a Connection, and around the statements and
+ * result sets it hands out.  Every execute call is one round trip: it is timed into a latency
+ * histogram per SQL text (see format()), and counted, along with the rows fetched through
+ * ResultSet.next(), for the command running on the calling thread: startCommand() zeroes the
+ * counts when a command starts, and CommandMetrics collects them per operation with
+ * takeCommandStats() when it ends.  Statements run on another thread for a command (by the
+ * BookingPipeline writer) are handed back to it and added with addToCommand().  Executes that
+ * take at least flightapp.sql_timing.slow_ms (default 100) milliseconds, whether they succeed
+ * or fail, are written with their bound parameters to flightapp.sql_timing.slow_log (default
+ * standard error); for executeBatch() those are only the parameters of the last row added
+ * with addBatch().  Only the execute call itself is timed, so for queries that is the time to
+ * the first rows.  Enabled with flightapp.sql_timing=true.
+ */
+public class StatementTimer {
+  private static final StatementTimer SHARED =
+      DBConnUtils.getBooleanProperty("flightapp.sql_timing", false) ? fromSettings() : null;
+
+  /**
+   * The timer of this process, or null if it's turned off
+   */
+  public static StatementTimer shared() {
+    return SHARED;
+  }
+
+  private static StatementTimer fromSettings() {
+    String file = DBConnUtils.getProperty("flightapp.sql_timing.slow_log", null);
+    PrintWriter slowLog;
+    try {
+      slowLog = file != null ? new PrintWriter(new FileWriter(file, true), true)
+                             : new PrintWriter(System.err, true);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot open flightapp.sql_timing.slow_log " + file, e);
+    }
+    return new StatementTimer(
+        DBConnUtils.getIntProperty("flightapp.sql_timing.slow_ms", 100) * 1000000L, slowLog);
+  }
+
+  /**
+   * Round trips and rows of the statements run by one command
+   */
+  public static class CommandStats {
+    static final CommandStats NONE = new CommandStats(0, 0);
+
+    public final long roundTrips;
+    public final long rowsFetched;
+
+    CommandStats(long roundTrips, long rowsFetched) {
+      this.roundTrips = roundTrips;
+      this.rowsFetched = rowsFetched;
+    }
+  }
+
+  // round trips and rows fetched by this thread since the last startCommand() or
+  // takeCommandStats()
+  private static final ThreadLocal<long[]> THREAD_COUNTS =
+      ThreadLocal.withInitial(() -> new long[2]);
+
+  /**
+   * Starts counting for a command on this thread, dropping anything left over from before (eg
+   * from a command that threw before its counts were taken)
+   */
+  public static void startCommand() {
+    long[] counts = THREAD_COUNTS.get();
+    counts[0] = 0;
+    counts[1] = 0;
+  }
+
+  /**
+   * Counts {@code stats}, run on another thread on behalf of this thread's command
+   */
+  public static void addToCommand(CommandStats stats) {
+    long[] counts = THREAD_COUNTS.get();
+    counts[0] += stats.roundTrips;
+    counts[1] += stats.rowsFetched;
+  }
+
+  /**
+   * The round trips and rows of this thread since the last call, ie of the command that just
+   * finished on it
+   */
+  public static CommandStats takeCommandStats() {
+    long[] counts = THREAD_COUNTS.get();
+    CommandStats stats = new CommandStats(counts[0], counts[1]);
+    counts[0] = 0;
+    counts[1] = 0;
+    return stats;
+  }
+
+  private final long slowNanos;
+  private final PrintWriter slowLog;
+  private final Map<String, LatencyHistogram> bySql = new ConcurrentHashMap<>();
+
+  public StatementTimer(long slowNanos, PrintWriter slowLog) {
+    this.slowNanos = slowNanos;
+    this.slowLog = slowLog;
+  }
+
+  /**
+   * A connection that times every statement run through it on {@code conn}
+   */
+  public Connection wrap(Connection conn) {
+    return proxy(Connection.class, (proxy, method, args) -> {
+      Object result = invoke(conn, method, args);
+      if (result instanceof Statement) {
+        String sql = args != null && args.length > 0 && args[0] instanceof String
+            ? (String) args[0] : null;
+        return wrapStatement((Statement) result, method.getReturnType(), sql);
+      }
+      return result;
+    });
+  }
+
+  /**
+   * One line per SQL text, most total time first
+   */
+  public String format() {
+    List<Map.Entry<String, LatencyHistogram.Snapshot>> entries = new ArrayList<>();
+    for (Map.Entry<String, LatencyHistogram> entry : bySql.entrySet()) {
+      entries.add(Map.entry(entry.getKey(), entry.getValue().snapshot()));
+    }
+    entries.sort(Comparator.comparingDouble(
+        (Map.Entry<String, LatencyHistogram.Snapshot> e) ->
+            e.getValue().getMeanNanos() * e.getValue().getCount()).reversed());
+
+    StringBuilder out = new StringBuilder();
+    for (Map.Entry<String, LatencyHistogram.Snapshot> entry : entries) {
+      LatencyHistogram.Snapshot snap = entry.getValue();
+      String sql = entry.getKey().replaceAll("\\s+", " ");
+      out.append(String.format("count=%d total=%.1fms p50=%.2fms p99=%.2fms max=%.2fms  %s%n",
+                               snap.getCount(), snap.getMeanNanos() * snap.getCount() / 1e6,
+                               snap.valueAtPercentile(50) / 1e6,
+                               snap.valueAtPercentile(99) / 1e6, snap.getMaxNanos() / 1e6,
+                               sql.length() > 100 ? sql.substring(0, 100) + "..." : sql));
+    }
+    return out.toString();
+  }
+
+  private Object wrapStatement(Statement stmt, Class<?> type, String preparedSql) {
+    Class<?> iface = CallableStatement.class.isAssignableFrom(type) ? CallableStatement.class
+        : PreparedStatement.class.isAssignableFrom(type) ? PreparedStatement.class
+        : Statement.class;
+    // bound parameters by index, for the slow query log
+    Map<Integer, Object> params = new TreeMap<>();
+    return proxy(iface, (proxy, method, args) -> {
+      String name = method.getName();
+      if (name.startsWith("execute")) {
+        String sql = args != null && args.length > 0 && args[0] instanceof String
+            ? (String) args[0] : preparedSql;
+        long start = System.nanoTime();
+        Object result;
+        try {
+          result = invoke(stmt, method, args);
+        } finally {
+          // failed executes are round trips too, and a slow one is worth logging
+          recordExecute(sql, System.nanoTime() - start, params);
+        }
+        return result instanceof ResultSet ? wrapResultSet((ResultSet) result) : result;
+      } else if (name.equals("getResultSet") || name.equals("getGeneratedKeys")) {
+        Object result = invoke(stmt, method, args);
+        return result != null ? wrapResultSet((ResultSet) result) : null;
+      } else if (name.startsWith("set") && args != null && args.length >= 2
+                 && args[0] instanceof Integer) {
+        params.put((Integer) args[0], name.equals("setNull") ? null : args[1]);
+      } else if (name.equals("clearParameters")) {
+        params.clear();
+      }
+      return invoke(stmt, method, args);
+    });
+  }
+
+  private ResultSet wrapResultSet(ResultSet rs) {
+    return proxy(ResultSet.class, (proxy, method, args) -> {
+      Object result = invoke(rs, method, args);
+      if (method.getName().equals("next") && Boolean.TRUE.equals(result)) {
+        THREAD_COUNTS.get()[1]++;
+      }
+      return result;
+    });
+  }
+
+  private void recordExecute(String sql, long nanos, Map<Integer, Object> params) {
+    THREAD_COUNTS.get()[0]++;
+    String key = sql != null ? sql : "(batch)";
+    bySql.computeIfAbsent(key, k -> new LatencyHistogram()).recordValue(nanos);
+    if (nanos >= slowNanos) {
+      StringBuilder line = new StringBuilder();
+      line.append(Instant.now()).append(String.format(" %.2fms ", nanos / 1e6))
+          .append(key.replaceAll("\\s+", " "));
+      if (!params.isEmpty()) {
+        line.append(" [");
+        String separator = "";
+        for (Map.Entry<Integer, Object> param : params.entrySet()) {
+          line.append(separator).append(param.getKey()).append('=')
+              .append(describe(param.getValue()));
+          separator = ", ";
+        }
+        line.append(']');
+      }
+      synchronized (slowLog) {
+        slowLog.println(line);
+      }
+    }
+  }
+
+  private static String describe(Object value) {
+    if (value == null) {
+      return "NULL";
+    } else if (value instanceof String) {
+      return "'" + value + "'";
+    } else if (value instanceof byte[]) {
+      // password salts and hashes
+      return "<" + ((byte[]) value).length + " bytes>";
+    }
+    return String.valueOf(value);
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static <T> T proxy(Class<T> iface, InvocationHandler handler) {
+    return iface.cast(Proxy.newProxyInstance(
+        StatementTimer.class.getClassLoader(), new Class<?>[] {iface}, (proxy, method, args) -> {
+          // a proxy is only equal to itself, not to what it wraps
+          switch (method.getName()) {
+            case "equals":
+              return args.length == 1 && proxy == args[0];
+            case "hashCode":
+              if (args == null) {
+                return System.identityHashCode(proxy);
+              }
+              break;
+            default:
+              break;
+          }
+          return handler.invoke(proxy, method, args);
+        }));
+  }
+}
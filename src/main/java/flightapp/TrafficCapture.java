@@ -0,0 +1,334 @@
+package flightapp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the commands that reach FlightService.execute, so that production traffic can be
+ * replayed against a test database (see TrafficReplay in the tests).
+ *
+ * Every command is recorded with its session (QueryAbstract.getSessionId()), when it started
+ * and how long it took, in microseconds since the capture started.  Recording only hands the
+ * record to a bounded queue; a background thread writes them to the capture file, and records
+ * that find the queue full (flightapp.capture.queue, default 65536) are dropped and counted
+ * rather than slowing commands down.  The writer thread replaces passwords and session tokens
+ * with a salted hash before writing a record, so commands don't pay for it: the same password
+ * still hashes the same within one capture (so failed logins stay failed on replay), but can't
+ * be read back from the file.
+ *
+ * The file is a header (magic, version, start time in epoch millis) followed by records of
+ * varint session, varint start, varint duration and the command as modified UTF-8.  Enabled
+ * by setting flightapp.capture.file.
+ */
+public class TrafficCapture implements Closeable {
+  private static final int MAGIC = 0x464c4350;  // "FLCP"
+  private static final int VERSION = 1;
+  private static final int SALT_BYTES = 16;
+
+  private static final TrafficCapture SHARED = fromSettings();
+
+  /**
+   * The capture of this process, or null if flightapp.capture.file isn't set
+   */
+  public static TrafficCapture shared() {
+    return SHARED;
+  }
+
+  private static TrafficCapture fromSettings() {
+    String file = DBConnUtils.getProperty("flightapp.capture.file", null);
+    if (file == null) {
+      return null;
+    }
+    TrafficCapture capture;
+    try {
+      capture = new TrafficCapture(Paths.get(file),
+                                   DBConnUtils.getIntProperty("flightapp.capture.queue", 65536));
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        capture.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }));
+    return capture;
+  }
+
+  /**
+   * One captured command
+   */
+  public static class Record {
+    public final int session;
+    public final long startMicros;
+    public final long durationMicros;
+    public final String command;
+
+    Record(int session, long startMicros, long durationMicros, String command) {
+      this.session = session;
+      this.startMicros = startMicros;
+      this.durationMicros = durationMicros;
+      this.command = command;
+    }
+  }
+
+  /**
+   * A command waiting for the writer, not yet redacted
+   */
+  private static class Pending {
+    final int session;
+    final long startMicros;
+    final long durationMicros;
+    final String command;
+    final String[] tokens;
+
+    Pending(int session, long startMicros, long durationMicros, String command,
+            String[] tokens) {
+      this.session = session;
+      this.startMicros = startMicros;
+      this.durationMicros = durationMicros;
+      this.command = command;
+      this.tokens = tokens;
+    }
+  }
+
+  private final DataOutputStream out;
+  private final BlockingQueue<Pending> queue;
+  private final Thread writer;
+  private final byte[] salt = new byte[SALT_BYTES];
+  private final MessageDigest digest;  // used under out's lock
+  private final long startNanos = System.nanoTime();
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile boolean closed;
+
+  public TrafficCapture(Path file, int queueCapacity) throws IOException {
+    new SecureRandom().nextBytes(salt);
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeLong(System.currentTimeMillis());
+    queue = new ArrayBlockingQueue<>(queueCapacity);
+    writer = new Thread(this::writeLoop, "flightapp-traffic-capture");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Records that {@code session} ran {@code command} from {@code startNanos} to
+   * {@code endNanos} (System.nanoTime())
+   */
+  public void record(int session, String command, long startNanos, long endNanos) {
+    record(session, command, FlightService.tokenize(command.trim()), startNanos, endNanos);
+  }
+
+  /**
+   * Same as record(session, command, startNanos, endNanos), for a command that was already
+   * split with FlightService.tokenize(); {@code tokens} must not be changed afterwards
+   */
+  public void record(int session, String command, String[] tokens, long startNanos,
+                     long endNanos) {
+    if (closed) {
+      return;
+    }
+    Pending record = new Pending(session,
+                                 TimeUnit.NANOSECONDS.toMicros(
+                                     Math.max(startNanos - this.startNanos, 0)),
+                                 TimeUnit.NANOSECONDS.toMicros(endNanos - startNanos),
+                                 command, tokens);
+    if (!queue.offer(record)) {
+      dropped.incrementAndGet();
+    }
+  }
+
+  /**
+   * How many records were dropped because the writer fell behind
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Writes out what is queued and closes the file
+   */
+  @Override
+  public void close() throws IOException {
+    // not interrupted: that would close the file's channel under a write
+    closed = true;
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (out) {
+      drain();
+      out.close();
+    }
+  }
+
+  /**
+   * The command with the passwords of login/create and the token of resume hashed, given the
+   * command's tokens
+   */
+  private String redact(String command, String[] tokens) {
+    if (tokens.length == 0) {
+      return command;
+    }
+    int secret;
+    switch (tokens[0]) {
+      case "login":
+      case "create":
+        secret = 2;
+        break;
+      case "resume":
+        secret = 1;
+        break;
+      default:
+        return command;
+    }
+    if (tokens.length <= secret) {
+      return command;
+    }
+    tokens = tokens.clone();
+    tokens[secret] = hash(tokens[secret]);
+
+    StringBuilder redacted = new StringBuilder();
+    for (String token : tokens) {
+      if (redacted.length() > 0) {
+        redacted.append(' ');
+      }
+      // keep multi-word arguments (eg city names) one token
+      if (token.isEmpty() || token.chars().anyMatch(Character::isWhitespace)) {
+        redacted.append('"').append(token).append('"');
+      } else {
+        redacted.append(token);
+      }
+    }
+    return redacted.toString();
+  }
+
+  private String hash(String secret) {
+    digest.update(salt);
+    byte[] hash = digest.digest(secret.getBytes(StandardCharsets.UTF_8));
+    StringBuilder hex = new StringBuilder("h");
+    for (int i = 0; i < 8; i++) {
+      hex.append(String.format("%02x", hash[i]));
+    }
+    return hex.toString();
+  }
+
+  private void writeLoop() {
+    try {
+      while (!closed) {
+        Pending record;
+        try {
+          record = queue.poll(100, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          return;
+        }
+        synchronized (out) {
+          if (record != null) {
+            write(record);
+            drain();
+          }
+          out.flush();
+        }
+      }
+    } catch (IOException e) {
+      closed = true;
+      e.printStackTrace();
+    }
+  }
+
+  private void drain() throws IOException {
+    Pending record;
+    while ((record = queue.poll()) != null) {
+      write(record);
+    }
+  }
+
+  private void write(Pending record) throws IOException {
+    writeVarLong(out, record.session);
+    writeVarLong(out, record.startMicros);
+    writeVarLong(out, record.durationMicros);
+    try {
+      out.writeUTF(redact(record.command, record.tokens));
+    } catch (UTFDataFormatException e) {
+      // longer than 64KB, which no valid command is
+      out.writeUTF("");
+    }
+  }
+
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7fL) != 0) {
+      out.writeByte((int) (value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  /**
+   * Reads every record of a capture file, in the order they finished
+   */
+  public static List<Record> read(Path file) throws IOException {
+    List<Record> records = new ArrayList<>();
+    try (DataInputStream in =
+             new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException(file + " is not a traffic capture");
+      }
+      in.readLong();
+      while (true) {
+        int session;
+        try {
+          session = (int) readVarLong(in);
+        } catch (EOFException e) {
+          break;
+        }
+        try {
+          records.add(new Record(session, readVarLong(in), readVarLong(in), in.readUTF()));
+        } catch (EOFException e) {
+          // the process died in the middle of a write
+          break;
+        }
+      }
+    }
+    return records;
+  }
+}
@@ -0,0 +1,104 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class AdmissionControlTest extends TestCase {
+  public AdmissionControlTest() { }
+
+  private static final CommandMetrics.Operation LOGIN = CommandMetrics.Operation.LOGIN;
+
+  private static AdmissionControl control(AdmissionControl.Limits limits, int maxKeys) {
+    Map<CommandMetrics.Operation, AdmissionControl.Limits> map =
+        new EnumMap<>(CommandMetrics.Operation.class);
+    map.put(LOGIN, limits);
+    return new AdmissionControl(map, 0, maxKeys);
+  }
+
+  @Test
+  public void testBucketsAllowTheBurstThenTheRate() {
+    AdmissionControl.Limits limits = new AdmissionControl.Limits(10, 3, 0);
+    AdmissionControl control = control(limits, 100);
+    long now = 1_000_000_000L;
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0, control.take(LOGIN, "alice", limits, now));
+    }
+    long wait = control.take(LOGIN, "alice", limits, now);
+    assertEquals(100_000_000L, wait);
+    // other users have their own buckets
+    assertEquals(0, control.take(LOGIN, "bob", limits, now));
+
+    // one token per 100ms comes back
+    assertEquals(0, control.take(LOGIN, "alice", limits, now + wait));
+    assertTrue(control.take(LOGIN, "alice", limits, now + wait) > 0);
+  }
+
+  @Test
+  public void testRejectionsAreImmediateResponses() {
+    AdmissionControl control = control(new AdmissionControl.Limits(1, 1, 0), 100);
+    assertNull(control.admit(LOGIN, "Alice"));
+    String rejection = control.admit(LOGIN, "ALICE");
+    assertNotNull(rejection);
+    assertTrue(rejection, rejection.startsWith("Too many login requests, retry in "));
+    // operations without limits are always let through
+    assertNull(control.admit(CommandMetrics.Operation.SEARCH, "alice"));
+  }
+
+  @Test
+  public void testConcurrencyIsLimitedPerOperation() {
+    AdmissionControl control = control(new AdmissionControl.Limits(0, 0, 2), 100);
+    assertNull(control.admit(LOGIN, "a"));
+    assertNull(control.admit(LOGIN, "b"));
+    assertEquals("Server busy, retry later\n", control.admit(LOGIN, "c"));
+    control.release(LOGIN);
+    assertNull(control.admit(LOGIN, "c"));
+  }
+
+  @Test
+  public void testFullBucketsAreDroppedWhenThereAreTooMany() {
+    AdmissionControl.Limits limits = new AdmissionControl.Limits(1000, 1, 0);
+    AdmissionControl control = control(limits, 10);
+    long now = 0;
+    for (int i = 0; i < 1000; i++) {
+      now += 1_000_000;  // 1ms, so every earlier bucket is full again
+      control.take(LOGIN, "user" + i, limits, now);
+      assertTrue(control.bucketCount(LOGIN) <= 11);
+    }
+  }
+
+  @Test
+  public void testSweepingDoesBoundedWorkPerNewBucket() {
+    AdmissionControl.Limits limits = new AdmissionControl.Limits(1000, 1, 0);
+    AdmissionControl control = control(limits, 10);
+    // the sweeps while these are added find nothing full
+    for (int i = 0; i < 500; i++) {
+      control.take(LOGIN, "user" + i, limits, 0);
+    }
+    assertEquals(500, control.bucketCount(LOGIN));
+
+    // once they're all full again, each new bucket drops at most a batch of them
+    long later = 1_000_000_000L;
+    control.take(LOGIN, "late0", limits, later);
+    assertTrue(control.bucketCount(LOGIN) >= 500 - AdmissionControl.SWEEP_BATCH);
+    for (int i = 1; i < 20; i++) {
+      control.take(LOGIN, "late" + i, limits, later);
+    }
+    assertTrue(control.bucketCount(LOGIN) < 40);
+  }
+
+  @Test
+  public void testRatesBelowOnePerSecond() {
+    AdmissionControl.Limits limits = new AdmissionControl.Limits(0.5, 1, 0);
+    AdmissionControl control = control(limits, 100);
+    assertEquals(0, control.take(LOGIN, "alice", limits, 0));
+    assertEquals(2_000_000_000L, control.take(LOGIN, "alice", limits, 0));
+    assertEquals(0, control.take(LOGIN, "alice", limits, 2_000_000_000L));
+  }
+}
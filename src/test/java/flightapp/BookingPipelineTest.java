@@ -0,0 +1,37 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class BookingPipelineTest extends TestCase {
+  public BookingPipelineTest() { }
+
+  @Test
+  public void testABatchThatKeepsDeadlockingFailsAfterMaxAttempts() throws Exception {
+    FakeDatabase db = new FakeDatabase()
+        .answer("MAX(rid)", Collections.singletonList(FakeDatabase.row("maxRid", 0)))
+        .fail("INSERT INTO Reservations_test", new SQLException("deadlock", "40001", 1205));
+    try (BookingPipeline pipeline = new BookingPipeline(8, 0, "test", db.connection(), 0, 1)) {
+      BookingPipeline.Result result =
+          pipeline.submit("alice", 1, null, 1).get(10, TimeUnit.SECONDS);
+      assertEquals(BookingPipeline.Status.FAILED, result.status);
+      assertEquals(BookingPipeline.MAX_ATTEMPTS,
+                   db.executions("INSERT INTO Reservations_test").size());
+      assertEquals(0, db.commits.get());
+    }
+  }
+
+  @Test
+  public void testClosedPipelinesFailNewBookings() throws Exception {
+    FakeDatabase db = new FakeDatabase();
+    BookingPipeline pipeline = new BookingPipeline(8, 0, "test", db.connection(), 0, 1);
+    pipeline.close();
+    assertEquals(BookingPipeline.Status.FAILED,
+                 pipeline.submit("alice", 1, null, 1).get(10, TimeUnit.SECONDS).status);
+  }
+}
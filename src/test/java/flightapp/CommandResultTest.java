@@ -0,0 +1,46 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.OptionalInt;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class CommandResultTest extends TestCase {
+  public CommandResultTest() { }
+
+  @Test
+  public void testBookAndPayValuesAreParsed() {
+    CommandResult booked = new CommandResult(CommandMetrics.Operation.BOOK,
+                                             "Booked flight(s), reservation ID: 12\n");
+    assertTrue(booked.succeeded());
+    assertEquals(OptionalInt.of(12), booked.reservationId());
+    assertEquals(OptionalInt.empty(), booked.balance());
+
+    CommandResult paid = new CommandResult(CommandMetrics.Operation.PAY,
+                                           "Paid reservation: 12 remaining balance: 860\n");
+    assertTrue(paid.succeeded());
+    assertEquals(OptionalInt.of(12), paid.reservationId());
+    assertEquals(OptionalInt.of(860), paid.balance());
+  }
+
+  @Test
+  public void testFailuresHaveNoValues() {
+    CommandResult full = new CommandResult(CommandMetrics.Operation.BOOK, "Booking failed\n");
+    assertFalse(full.succeeded());
+    assertEquals(OptionalInt.empty(), full.reservationId());
+
+    CommandResult poor = new CommandResult(CommandMetrics.Operation.PAY,
+                                           "User has only 10 in account but itinerary costs 200\n");
+    assertFalse(poor.succeeded());
+    assertEquals(OptionalInt.empty(), poor.reservationId());
+    assertEquals(OptionalInt.empty(), poor.balance());
+
+    CommandResult none = new CommandResult(CommandMetrics.Operation.SEARCH,
+                                           "No flights match your selection\n");
+    assertTrue(none.succeeded());
+    assertEquals("No flights match your selection\n", none.getText());
+  }
+}
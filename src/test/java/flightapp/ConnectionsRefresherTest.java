@@ -0,0 +1,68 @@
+package flightapp;
+
+import static flightapp.FakeDatabase.row;
+import static org.junit.Assert.assertEquals;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class ConnectionsRefresherTest extends TestCase {
+  public ConnectionsRefresherTest() { }
+
+  /**
+   * Flights has days 1 and 2; days 1 (unchanged), 2 (changed) and 3 (gone) were refreshed
+   */
+  private static FakeDatabase database() {
+    return new FakeDatabase()
+        .answer("FROM Flights GROUP BY day_of_month", Arrays.asList(
+            row("day_of_month", 1, "flights_checksum", "aa"),
+            row("day_of_month", 2, "flights_checksum", "bb")))
+        .answer("FROM FlightConnectionDays", Arrays.asList(
+            row("day_of_month", 1, "flights_checksum", "aa"),
+            row("day_of_month", 2, "flights_checksum", "b0"),
+            row("day_of_month", 3, "flights_checksum", "cc")));
+  }
+
+  private static List<Object> days(FakeDatabase db, String sqlPart) {
+    return db.executions(sqlPart).stream().map(e -> e.params.get(0)).sorted()
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  public void testOnlyChangedDaysAreRebuiltAndMissingDaysRemoved() throws SQLException {
+    FakeDatabase db = database();
+    assertEquals(2, new ConnectionsRefresher(db.connection()).refresh(false));
+
+    assertEquals(Arrays.asList(2), days(db, "INSERT INTO FlightConnections"));
+    assertEquals(Arrays.asList(2, 3), days(db, "DELETE FROM FlightConnections "));
+    assertEquals(Arrays.asList(3), days(db, "DELETE FROM FlightConnectionDays"));
+    assertEquals(Arrays.asList(2, "bb"), db.executions("MERGE FlightConnectionDays").get(0).params);
+    assertEquals(2, db.commits.get());
+  }
+
+  @Test
+  public void testFullRebuildsEveryDay() throws SQLException {
+    FakeDatabase db = database();
+    assertEquals(3, new ConnectionsRefresher(db.connection()).refresh(true));
+
+    assertEquals(Arrays.asList(1, 2), days(db, "INSERT INTO FlightConnections"));
+    assertEquals(Arrays.asList(3), days(db, "DELETE FROM FlightConnectionDays"));
+  }
+
+  @Test
+  public void testAFailedDayIsRolledBack() {
+    FakeDatabase db = database().fail("INSERT INTO FlightConnections", new SQLException("full"));
+    try {
+      new ConnectionsRefresher(db.connection()).refresh(false);
+      fail("refresh should have failed");
+    } catch (SQLException e) {
+      assertEquals("full", e.getMessage());
+    }
+    assertEquals(1, db.rollbacks.get());
+    assertEquals(0, db.commits.get());
+  }
+}
@@ -0,0 +1,288 @@
+package flightapp;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * A stand-in for a database server in tests that have none: its connections record every
+ * statement executed on them, and answer queries with canned rows picked by a piece of their
+ * SQL.  Statements nothing was set up for return no rows and update one row.
+ */
+class FakeDatabase {
+  /**
+   * One executed statement, with its bound parameters in order
+   */
+  static class Execution {
+    final String sql;
+    final List<Object> params;
+
+    Execution(String sql, List<Object> params) {
+      this.sql = sql;
+      this.params = params;
+    }
+
+    @Override
+    public String toString() {
+      return sql + " " + params;
+    }
+  }
+
+  final List<Execution> executed = Collections.synchronizedList(new ArrayList<>());
+  final AtomicInteger commits = new AtomicInteger();
+  final AtomicInteger rollbacks = new AtomicInteger();
+  private final Map<String, Function<List<Object>, List<Map<String, Object>>>> answers =
+      Collections.synchronizedMap(new LinkedHashMap<>());
+  private final Map<String, SQLException> failures =
+      Collections.synchronizedMap(new LinkedHashMap<>());
+
+  /**
+   * Answers the queries whose SQL contains {@code sqlPart} with {@code rows}
+   */
+  FakeDatabase answer(String sqlPart, List<Map<String, Object>> rows) {
+    return answer(sqlPart, params -> rows);
+  }
+
+  /**
+   * Answers the queries whose SQL contains {@code sqlPart} with the rows computed from their
+   * parameters
+   */
+  FakeDatabase answer(String sqlPart, Function<List<Object>, List<Map<String, Object>>> rows) {
+    answers.put(sqlPart, rows);
+    return this;
+  }
+
+  /**
+   * Fails the statements whose SQL contains {@code sqlPart} with {@code error}
+   */
+  FakeDatabase fail(String sqlPart, SQLException error) {
+    failures.put(sqlPart, error);
+    return this;
+  }
+
+  /**
+   * One result row, from alternating column labels and values
+   */
+  static Map<String, Object> row(Object... labelsAndValues) {
+    Map<String, Object> row = new LinkedHashMap<>();
+    for (int i = 0; i < labelsAndValues.length; i += 2) {
+      row.put((String) labelsAndValues[i], labelsAndValues[i + 1]);
+    }
+    return row;
+  }
+
+  /**
+   * The executed statements whose SQL contains {@code sqlPart}
+   */
+  List<Execution> executions(String sqlPart) {
+    synchronized (executed) {
+      return executed.stream().filter(e -> e.sql.contains(sqlPart)).collect(Collectors.toList());
+    }
+  }
+
+  boolean ran(String sqlPart) {
+    return !executions(sqlPart).isEmpty();
+  }
+
+  Connection connection() {
+    return proxy(Connection.class, (method, args) -> {
+      switch (method.getName()) {
+        case "prepareStatement":
+        case "prepareCall":
+          return statement(PreparedStatement.class, (String) args[0]);
+        case "createStatement":
+          return statement(Statement.class, null);
+        case "commit":
+          commits.incrementAndGet();
+          return null;
+        case "rollback":
+          rollbacks.incrementAndGet();
+          return null;
+        default:
+          return null;
+      }
+    });
+  }
+
+  private <T> T statement(Class<T> iface, String preparedSql) {
+    Map<Integer, Object> params = new TreeMap<>();
+    List<List<Object>> batch = new ArrayList<>();
+    return proxy(iface, (method, args) -> {
+      String name = method.getName();
+      String sql = args != null && args.length > 0 && args[0] instanceof String
+          ? (String) args[0] : preparedSql;
+      switch (name) {
+        case "executeQuery":
+          return resultSet(run(sql, new ArrayList<>(params.values())));
+        case "executeUpdate":
+        case "executeLargeUpdate":
+          run(sql, new ArrayList<>(params.values()));
+          return name.equals("executeUpdate") ? (Object) 1 : (Object) 1L;
+        case "execute":
+          run(sql, new ArrayList<>(params.values()));
+          return false;
+        case "addBatch":
+          batch.add(new ArrayList<>(params.values()));
+          return null;
+        case "executeBatch":
+          int[] counts = new int[batch.size()];
+          for (int i = 0; i < batch.size(); i++) {
+            run(sql, batch.get(i));
+            counts[i] = 1;
+          }
+          batch.clear();
+          return counts;
+        case "clearBatch":
+          batch.clear();
+          return null;
+        case "clearParameters":
+          params.clear();
+          return null;
+        default:
+          if (name.startsWith("set") && args != null && args.length >= 2
+              && args[0] instanceof Integer) {
+            params.put((Integer) args[0], name.equals("setNull") ? null : args[1]);
+          }
+          return null;
+      }
+    });
+  }
+
+  private List<Map<String, Object>> run(String sql, List<Object> params) throws SQLException {
+    executed.add(new Execution(sql, params));
+    synchronized (failures) {
+      for (Map.Entry<String, SQLException> failure : failures.entrySet()) {
+        if (sql.contains(failure.getKey())) {
+          throw failure.getValue();
+        }
+      }
+    }
+    synchronized (answers) {
+      for (Map.Entry<String, Function<List<Object>, List<Map<String, Object>>>> answer
+               : answers.entrySet()) {
+        if (sql.contains(answer.getKey())) {
+          return answer.getValue().apply(params);
+        }
+      }
+    }
+    return Collections.emptyList();
+  }
+
+  private static ResultSet resultSet(List<Map<String, Object>> rows) {
+    List<String> labels = rows.isEmpty() ? Collections.emptyList()
+                                         : new ArrayList<>(rows.get(0).keySet());
+    int[] cursor = {-1};
+    Object[] last = {null};
+    return proxy(ResultSet.class, (method, args) -> {
+      String name = method.getName();
+      if (name.equals("next")) {
+        return ++cursor[0] < rows.size();
+      } else if (name.equals("wasNull")) {
+        return last[0] == null;
+      } else if (name.equals("findColumn")) {
+        return column(labels, (String) args[0]);
+      } else if (name.startsWith("get") && args != null && args.length == 1
+                 && !name.equals("getMetaData")) {
+        int column = args[0] instanceof Integer ? (Integer) args[0]
+                                                : column(labels, (String) args[0]);
+        Object value = rows.get(cursor[0]).get(labels.get(column - 1));
+        last[0] = value;
+        return convert(value, method.getReturnType());
+      }
+      return null;
+    });
+  }
+
+  private static int column(List<String> labels, String label) throws SQLException {
+    for (int i = 0; i < labels.size(); i++) {
+      if (labels.get(i).equalsIgnoreCase(label)) {
+        return i + 1;
+      }
+    }
+    throw new SQLException("No column " + label + " in " + labels);
+  }
+
+  private static Object convert(Object value, Class<?> type) {
+    if (value == null) {
+      return type.isPrimitive() ? defaultValue(type) : null;
+    } else if (type == int.class || type == Integer.class) {
+      return ((Number) value).intValue();
+    } else if (type == long.class || type == Long.class) {
+      return ((Number) value).longValue();
+    } else if (type == BigDecimal.class) {
+      return value instanceof BigDecimal ? value : new BigDecimal(value.toString());
+    } else if (type == String.class) {
+      return value.toString();
+    } else if (type == boolean.class) {
+      return value instanceof Boolean ? value : ((Number) value).intValue() != 0;
+    }
+    return value;
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    } else if (type == long.class) {
+      return 0L;
+    } else if (type == double.class) {
+      return 0.0;
+    } else if (type == float.class) {
+      return 0.0f;
+    } else if (type == short.class) {
+      return (short) 0;
+    } else if (type == byte.class) {
+      return (byte) 0;
+    } else if (type == char.class) {
+      return (char) 0;
+    }
+    return 0;
+  }
+
+  private interface Handler {
+    Object invoke(Method method, Object[] args) throws Throwable;
+  }
+
+  private static <T> T proxy(Class<T> iface, Handler handler) {
+    return iface.cast(Proxy.newProxyInstance(
+        FakeDatabase.class.getClassLoader(), new Class<?>[] {iface}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "equals":
+              return proxy == args[0];
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "toString":
+              return iface.getSimpleName() + "@" + System.identityHashCode(proxy);
+            default:
+              break;
+          }
+          Object result = handler.invoke(method, args);
+          if (result == null && method.getReturnType().isPrimitive()
+              && method.getReturnType() != void.class) {
+            return defaultValue(method.getReturnType());
+          }
+          return result;
+        }));
+  }
+
+  @Override
+  public String toString() {
+    synchronized (executed) {
+      return Arrays.toString(executed.toArray());
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class FlightCacheTest extends TestCase {
+  public FlightCacheTest() { }
+
+  private static Query.Flight flight(int fid, int capacity) {
+    return new Query.Flight(fid, 1, "AS", "24", "Seattle WA", "Boston MA", 300, capacity, 140);
+  }
+
+  @Test
+  public void testFlightsAreSharedUntilCapacityChanges() {
+    FlightCache cache = new FlightCache(10);
+    Query.Flight flight = cache.add(flight(1, 5));
+    assertSame(flight, cache.get(1, 5));
+    assertNull(cache.get(1, 4));
+    assertNull(cache.get(2, 5));
+
+    Query.Flight changed = cache.add(flight(1, 4));
+    assertSame(changed, cache.get(1, 4));
+    assertNull(cache.get(1, 5));
+  }
+
+  @Test
+  public void testRecentlyUsedFlightsSurviveEviction() {
+    FlightCache cache = new FlightCache(4);
+    Query.Flight hot = cache.add(flight(0, 1));
+    for (int fid = 1; fid < 100; fid++) {
+      cache.add(flight(fid, 1));
+      assertSame(hot, cache.get(0, 1));
+      assertEquals(true, cache.size() <= 4);
+    }
+    assertNull(cache.get(1, 1));
+  }
+
+  @Test
+  public void testStaleFlightsAreNotPromoted() {
+    FlightCache cache = new FlightCache(4);
+    Query.Flight flight = cache.add(flight(0, 5));
+    cache.add(flight(1, 1));  // the young generation is full, so both are now old
+
+    assertNull(cache.get(0, 4));
+    assertEquals(2, cache.size());
+    assertSame(flight, cache.get(0, 5));
+    assertEquals(3, cache.size());
+  }
+
+  @Test
+  public void testClearDropsEveryGeneration() {
+    FlightCache cache = new FlightCache(4);
+    for (int fid = 0; fid < 3; fid++) {
+      cache.add(flight(fid, 1));
+    }
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertNull(cache.get(0, 1));
+    assertNull(cache.get(2, 1));
+  }
+}
@@ -0,0 +1,83 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class FlightEventsTest extends TestCase {
+  public FlightEventsTest() { }
+
+  private static List<RecordedEvent> record(Runnable work) throws IOException {
+    Path file = Files.createTempFile("flightapp", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("flightapp.Command").withoutThreshold();
+      recording.enable("flightapp.DeadlockRetry");
+      recording.enable("flightapp.PasswordHash").withoutThreshold();
+      recording.start();
+      work.run();
+      recording.stop();
+      recording.dump(file);
+      return RecordingFile.readAllEvents(file).stream()
+          .filter(e -> e.getEventType().getName().startsWith("flightapp."))
+          .collect(Collectors.toList());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testEventsAreRecordedWithTheirFields() throws IOException {
+    List<RecordedEvent> events = record(() -> {
+      FlightEvents.Command command = FlightEvents.Command.start();
+      PasswordUtils.saltAndHashPassword("hunter2");
+      command.finish(CommandMetrics.Operation.CREATE, "Created user alice\n", null, 7);
+      CommandMetrics.global().recordDeadlockRetry(CommandMetrics.Operation.BOOK);
+    });
+
+    List<String> names = events.stream().map(e -> e.getEventType().getName())
+        .collect(Collectors.toList());
+    assertTrue(names.toString(), names.contains("flightapp.PasswordHash"));
+    assertTrue(names.toString(), names.contains("flightapp.DeadlockRetry"));
+
+    RecordedEvent command = events.stream()
+        .filter(e -> e.getEventType().getName().equals("flightapp.Command"))
+        .findFirst().get();
+    assertEquals("create", command.getString("operation"));
+    assertEquals("success", command.getString("outcome"));
+    assertEquals(7, command.getInt("session"));
+    assertEquals(19, command.getInt("responseLength"));
+
+    RecordedEvent hash = events.stream()
+        .filter(e -> e.getEventType().getName().equals("flightapp.PasswordHash"))
+        .findFirst().get();
+    assertEquals(65536, hash.getInt("iterations"));
+    assertTrue(command.getDuration().compareTo(hash.getDuration()) >= 0);
+  }
+
+  @Test
+  public void testNothingIsRecordedWhenDisabled() throws IOException {
+    Path file = Files.createTempFile("flightapp", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.disable("flightapp.Command");
+      recording.start();
+      FlightEvents.Command command = FlightEvents.Command.start();
+      command.finish(CommandMetrics.Operation.LOGIN, "Login failed\n", null, 1);
+      recording.stop();
+      recording.dump(file);
+      assertTrue(RecordingFile.readAllEvents(file).stream()
+                 .noneMatch(e -> e.getEventType().getName().equals("flightapp.Command")));
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
@@ -74,7 +74,7 @@ public class FlightServiceTest {
   /**
    * See usage for detailed comments.
    */
-  private static final String BARRIER_COMMAND = "barrier";
+  static final String BARRIER_COMMAND = "barrier";
 
   /**
    * Denotes private test.  The detailed output from these private tests is hidden
@@ -86,7 +86,8 @@ public class FlightServiceTest {
   /**
    * The list of tests whose output is private.
    */
-  private static final Set<String> PRIVATE_TEST_LIST = new HashSet<>();
+  private static final Set<String> PRIVATE_TEST_LIST =
+      Collections.synchronizedSet(new HashSet<>());
 
   /**
    * The Java property name used to toggle whether the detailed output from private tests
@@ -203,6 +204,16 @@ public class FlightServiceTest {
    * @throws Exception
    */
   static List<Session> parse(String filename) throws IOException, SQLException {
+    return parse(filename, DBConnUtils.DEFAULT_TABLE_SUFFIX);
+  }
+
+  /**
+   * Like parse(filename), but the sessions use the tables with the given suffix (see
+   * ParallelCaseRunner).
+   */
+  static List<Session> parse(String filename, String tableSuffix)
+    throws IOException, SQLException
+  {
     List<Session> sessions = new ArrayList<>();  // recall that a session is a single
                                                  // terminal that's executing commands
                                                  // against our database
@@ -240,7 +251,7 @@ public class FlightServiceTest {
           // A single session's list of possible results has finished; record the current
           // result and finalize the entire session.
           currResults.add(partialResult);
-          sessions.add(new Session(new Query(), currCmds, currResults));
+          sessions.add(new Session(new Query(tableSuffix), currCmds, currResults));
 
           partialResult = "";
           currCmds = new ArrayList<>();
@@ -316,6 +327,38 @@ public class FlightServiceTest {
     return sessions;
   }
 
+  /**
+   * Parse only the commands of each session in a test case, ignoring the expected results.
+   * Unlike parse(), this doesn't open any connections; it's used to replay test cases as load
+   * (see LoadDriver).
+   *
+   * @param filename test case's path and file name
+   * @return one list of commands per session, in file order
+   */
+  static List<List<String>> parseCommands(String filename) throws IOException {
+    List<List<String>> sessions = new ArrayList<>();
+    List<String> currCmds = new ArrayList<>();
+    boolean isCmd = true;
+
+    try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+      String l;
+      while ((l = reader.readLine()) != null) {
+        if (l.startsWith(COMMENTS) || l.trim().isEmpty()) {
+          continue;
+        } else if (l.startsWith(DELIMITER)) {
+          if (!isCmd) {
+            sessions.add(currCmds);
+            currCmds = new ArrayList<>();
+          }
+          isCmd = !isCmd;
+        } else if (isCmd) {
+          currCmds.add(l.split(COMMENTS, 2)[0].trim());
+        }
+      }
+    }
+    return sessions;
+  }
+
   /**
    * Creates the thread pool to execute test cases with multiple sessions.
    */
@@ -471,21 +514,13 @@ public class FlightServiceTest {
         }
       }
 
-      // For each possible outcome, check if each session matches the respective output
-      // for the given outcome
-      // TODO(hctang): dafuq with this comment
-      boolean passed = false;
+      boolean passed = matchesAnOutcome(sessions, outputs);
       Map<Integer, List<String>> outcomes = new HashMap<Integer, List<String>>();
       for (int i = 0; i < sessions.get(0).results().size(); ++i) {
-        boolean isSame = true;
-        for (int j = 0; j < sessions.size(); ++j) {
-          isSame = isSame && outputs.get(j).equals(sessions.get(j).results().get(i));
-          if (!outcomes.containsKey(i)) {
-            outcomes.put(i, new ArrayList<String>());
-          }
-          outcomes.get(i).add(sessions.get(j).results().get(i));
+        outcomes.put(i, new ArrayList<String>());
+        for (Session sess : sessions) {
+          outcomes.get(i).add(sess.results().get(i));
         }
-        passed = passed || isSame;
       }
 
       // Print the result and debugging info (if applicable) under the assertion
@@ -524,6 +559,27 @@ public class FlightServiceTest {
     }
   }
 
+  /**
+   * Whether, for some possible outcome of the test case, every session's output matches that
+   * session's expected result for the outcome.
+   */
+  static boolean matchesAnOutcome(List<Session> sessions, List<String> outputs) {
+    for (int i = 0; i < sessions.get(0).results().size(); ++i) {
+      boolean isSame = true;
+      for (int j = 0; j < sessions.size(); ++j) {
+        isSame = isSame && outputs.get(j).equals(sessions.get(j).results().get(i));
+      }
+      if (isSame) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static boolean isPrivate(String file) {
+    return PRIVATE_TEST_LIST.contains(file);
+  }
+
   public static String formatOutput(List<String> output) {
     StringBuilder sb = new StringBuilder();
     int i = 0;
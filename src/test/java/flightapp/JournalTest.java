@@ -0,0 +1,131 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class JournalTest extends TestCase {
+  public JournalTest() { }
+
+  private static List<Journal.Entry> readAll(Path dir) throws IOException {
+    List<Journal.Entry> entries = new ArrayList<>();
+    try (Journal.Reader reader = Journal.read(dir)) {
+      Journal.Entry entry;
+      while ((entry = reader.next()) != null) {
+        entries.add(entry);
+      }
+    }
+    return entries;
+  }
+
+  private static List<Path> files(Path dir) throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.sorted().collect(Collectors.toList());
+    }
+  }
+
+  private static void delete(Path dir) throws IOException {
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path p : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+        Files.delete(p);
+      }
+    }
+  }
+
+  @Test
+  public void testEntriesAreReadBackInOrderAcrossSegments() throws IOException {
+    Path dir = Files.createTempDirectory("journal");
+    try {
+      try (Journal journal = new Journal(dir, 512, 10)) {
+        for (int i = 0; i < 50; i++) {
+          assertEquals(2 * i + 1, journal.appendBooking(i, "user" + i, 100 + i, -1, 10 * i));
+          journal.appendPayment(i, "user" + i, 100 + i, 200 + i, 10 * i);
+        }
+      }
+      assertTrue(files(dir).size() > 1);
+
+      List<Journal.Entry> entries = readAll(dir);
+      assertEquals(100, entries.size());
+      for (int i = 0; i < 50; i++) {
+        Journal.Entry booking = entries.get(2 * i);
+        Journal.Entry payment = entries.get(2 * i + 1);
+        assertEquals(Journal.Entry.Type.BOOKING, booking.type);
+        assertEquals(2 * i + 1, booking.seq);
+        assertEquals(i, booking.rid);
+        assertEquals("user" + i, booking.username);
+        assertEquals(100 + i, booking.fid1);
+        assertEquals(-1, booking.fid2);
+        assertEquals(10 * i, booking.amount);
+        assertEquals(Journal.Entry.Type.PAYMENT, payment.type);
+        assertEquals(200 + i, payment.fid2);
+      }
+    } finally {
+      delete(dir);
+    }
+  }
+
+  @Test
+  public void testReopeningCutsOffATornEntryAndContinuesTheSequence() throws IOException {
+    Path dir = Files.createTempDirectory("journal");
+    try {
+      try (Journal journal = new Journal(dir, 1 << 20, 10)) {
+        journal.appendBooking(1, "alice", 1, -1, 100);
+        journal.appendBooking(2, "bob", 2, 3, 200);
+      }
+      // a crash in the middle of writing the second entry
+      Path segment = files(dir).get(0);
+      try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+        channel.truncate(channel.size() - 3);
+      }
+      assertEquals(1, readAll(dir).size());
+
+      try (Journal journal = new Journal(dir, 1 << 20, 10)) {
+        assertEquals(2, journal.appendPayment(1, "alice", 1, -1, 100));
+      }
+      List<Journal.Entry> entries = readAll(dir);
+      assertEquals(2, entries.size());
+      assertEquals("alice", entries.get(1).username);
+      assertEquals(Journal.Entry.Type.PAYMENT, entries.get(1).type);
+    } finally {
+      delete(dir);
+    }
+  }
+
+  @Test
+  public void testCorruptEntryEndsTheSegment() throws IOException {
+    Path dir = Files.createTempDirectory("journal");
+    try {
+      try (Journal journal = new Journal(dir, 1 << 20, 10)) {
+        journal.appendBooking(1, "alice", 1, -1, 100);
+        journal.appendBooking(2, "bob", 2, -1, 200);
+      }
+      Path segment = files(dir).get(0);
+      byte[] bytes = Files.readAllBytes(segment);
+      bytes[bytes.length - 1] ^= 1;
+      Files.write(segment, bytes);
+
+      List<Journal.Entry> entries = readAll(dir);
+      assertEquals(1, entries.size());
+      assertEquals(1, entries.get(0).rid);
+      try (Journal.Reader reader = Journal.read(dir)) {
+        reader.next();
+        assertNull(reader.next());
+      }
+    } finally {
+      delete(dir);
+    }
+  }
+}
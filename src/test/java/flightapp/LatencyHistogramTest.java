@@ -0,0 +1,72 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class LatencyHistogramTest extends TestCase {
+  public LatencyHistogramTest() { }
+
+  @Test
+  public void testBucketsCoverEveryValue() {
+    // Every value must land in a bucket whose upper bound is at least the value, and the
+    // previous bucket must end just below it.
+    long[] values = {0, 1, 127, 128, 129, 255, 256, 1000, 123456, 987654321L,
+                     LatencyHistogram.HIGHEST_TRACKABLE_VALUE};
+    for (long value : values) {
+      int index = LatencyHistogram.indexFor(value);
+      assertTrue(value <= LatencyHistogram.highestValueIn(index));
+      if (index > 0) {
+        assertTrue(value > LatencyHistogram.highestValueIn(index - 1));
+      }
+    }
+  }
+
+  @Test
+  public void testPercentilesAreWithinPrecision() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long i = 1; i <= 10000; i++) {
+      histogram.recordValue(i * 1000);  // 1us .. 10ms
+    }
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+    assertEquals(10000, snapshot.getCount());
+    assertEquals(10000000, snapshot.getMaxNanos());
+    assertWithinPrecision(5000000, snapshot.valueAtPercentile(50));
+    assertWithinPrecision(9900000, snapshot.valueAtPercentile(99));
+    assertWithinPrecision(9990000, snapshot.valueAtPercentile(99.9));
+    assertEquals(10000000, snapshot.valueAtPercentile(100));
+  }
+
+  @Test
+  public void testEmptyAndReset() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.snapshot().valueAtPercentile(99));
+
+    histogram.recordValue(42);
+    histogram.reset();
+    assertEquals(0, histogram.snapshot().getCount());
+  }
+
+  @Test
+  public void testSnapshotsCanBeCombined() {
+    LatencyHistogram fast = new LatencyHistogram();
+    LatencyHistogram slow = new LatencyHistogram();
+    for (int i = 0; i < 99; i++) {
+      fast.recordValue(1000);
+    }
+    slow.recordValue(1000000);
+
+    LatencyHistogram.Snapshot combined = fast.snapshot().add(slow.snapshot());
+    assertEquals(100, combined.getCount());
+    assertWithinPrecision(1000, combined.valueAtPercentile(99));
+    assertEquals(1000000, combined.valueAtPercentile(100));
+  }
+
+  private static void assertWithinPrecision(long expected, long actual) {
+    assertTrue("expected ~" + expected + " but was " + actual,
+               Math.abs(actual - expected) <= expected / 64);
+  }
+}
@@ -0,0 +1,433 @@
+package flightapp;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Load generator built on the same session model as FlightServiceTest: every session is its
+ * own Query (ie, its own terminal and connection) driven through FlightService.execute.
+ *
+ * Sessions either replay test case files (cases=<dir or file>), or run a synthetic mix of
+ * commands (mix=search:60,...) as a freshly created user.  A replayed case runs all of its
+ * terminals at once, each on its own Query, honouring its barriers; usernames are made unique
+ * per run of the case, so its terminals still share users with each other but not with other
+ * runs.  At the end it reports throughput, per-command latency
+ * percentiles, failures, deadlock retries and any violated capacity/balance invariants.
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=flightapp.LoadDriver \
+ *       -Dexec.args="sessions=2000 duration=60 rampup=20 think=50 mix=search:60,book:15,pay:10,reservations:15"
+ *
+ * The user and reservation tables are cleared first unless clear=false is given.
+ */
+public class LoadDriver {
+  private static final String DEFAULT_MIX = "search:60,book:15,pay:10,reservations:15";
+
+  // Routes with plenty of direct and one-stop flights for the synthetic search commands
+  private static final String[][] ROUTES = {
+    {"Seattle WA", "Boston MA"}, {"Boston MA", "Los Angeles CA"},
+    {"Kahului HI", "Los Angeles CA"}, {"New York NY", "Chicago IL"},
+    {"Chicago IL", "San Francisco CA"}, {"Atlanta GA", "Denver CO"}
+  };
+
+  private static final int INITIAL_BALANCE = 100000;
+  private static final int MAX_USERNAME_LENGTH = 20;
+  private static final long BARRIER_TIMEOUT_SECS = 30;
+
+  private final int sessions;
+  private final long durationNanos;
+  private final long rampUpNanos;
+  private final long thinkMillis;
+  private final List<List<List<String>>> cases;
+  private final TreeMap<Integer, String> mix = new TreeMap<>();  // cumulative weight -> command
+  private final int mixTotal;
+
+  private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+  private final Map<String, AtomicLong> failures = new ConcurrentHashMap<>();
+  private final Map<String, Integer> initialBalances = new ConcurrentHashMap<>();
+  private final AtomicInteger sessionErrors = new AtomicInteger();
+  private final AtomicInteger malformedCreates = new AtomicInteger();
+  // runs the second and later terminals of multi-terminal cases
+  private final ExecutorService terminals = Executors.newCachedThreadPool();
+
+  LoadDriver(int sessions, long durationSecs, long rampUpSecs, long thinkMillis,
+             List<List<List<String>>> cases, String mixSpec) {
+    this.sessions = sessions;
+    this.durationNanos = TimeUnit.SECONDS.toNanos(durationSecs);
+    this.rampUpNanos = TimeUnit.SECONDS.toNanos(rampUpSecs);
+    this.thinkMillis = thinkMillis;
+    this.cases = cases;
+
+    int total = 0;
+    for (String entry : mixSpec.split(",")) {
+      String[] parts = entry.split(":");
+      total += Integer.parseInt(parts[1]);
+      mix.put(total, parts[0].trim());
+    }
+    this.mixTotal = total;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      String[] kv = arg.split("=", 2);
+      options.put(kv[0], kv.length > 1 ? kv[1] : "true");
+    }
+
+    List<List<List<String>>> cases = new ArrayList<>();
+    if (options.containsKey("cases")) {
+      for (String file : caseFiles(options.get("cases"))) {
+        cases.add(FlightServiceTest.parseCommands(file));
+      }
+      System.out.println("Loaded " + cases.size() + " test cases");
+    }
+
+    LoadDriver driver = new LoadDriver(
+        Integer.parseInt(options.getOrDefault("sessions", "100")),
+        Long.parseLong(options.getOrDefault("duration", "30")),
+        Long.parseLong(options.getOrDefault("rampup", "5")),
+        Long.parseLong(options.getOrDefault("think", "0")),
+        cases, options.getOrDefault("mix", DEFAULT_MIX));
+
+    if (Boolean.parseBoolean(options.getOrDefault("clear", "true"))) {
+      QueryBenchmark.clearTables();
+    }
+    CommandMetrics.startDumpFromSettings();
+    driver.run();
+  }
+
+  /**
+   * Runs every session to completion, then prints the report
+   */
+  void run() throws Exception {
+    Map<CommandMetrics.Operation, CommandMetrics.OperationSnapshot> before =
+        CommandMetrics.global().snapshot();
+    ExecutorService pool = Executors.newFixedThreadPool(sessions);
+    long begin = System.nanoTime();
+    long deadline = begin + rampUpNanos + durationNanos;
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < sessions; i++) {
+        int session = i;
+        long startAt = begin + rampUpNanos * i / sessions;
+        futures.add(pool.submit(() -> {
+          sleepUntil(startAt);
+          runSession(session, deadline);
+          return null;
+        }));
+      }
+      for (Future<?> f : futures) {
+        f.get();
+      }
+    } finally {
+      pool.shutdown();
+      terminals.shutdown();
+    }
+    long elapsed = System.nanoTime() - begin;
+
+    report(elapsed, before, CommandMetrics.global().snapshot());
+    checkInvariants();
+  }
+
+  /**
+   * Runs one session until the deadline.  Case sessions replay whole cases, one after the
+   * other, each run with new usernames; synthetic sessions log in once and loop over the mix.
+   */
+  private void runSession(int session, long deadline) {
+    int round = 0;
+    while (System.nanoTime() < deadline) {
+      String tag = "_" + Integer.toString(session, 36) + "_" + Integer.toString(round++, 36);
+      if (cases.isEmpty()) {
+        runTerminal(Collections.emptyList(), tag, null, deadline);
+      } else {
+        runCase(cases.get(Math.floorMod(session + round, cases.size())), tag);
+      }
+    }
+  }
+
+  /**
+   * Runs every terminal of a case at once, with the same tag so that terminals sharing a user
+   * in the case file share it here too.  Started cases run to the end, as a terminal that
+   * stopped early would leave the others waiting at their barriers.
+   */
+  private void runCase(List<List<String>> scripts, String tag) {
+    CyclicBarrier barrier = new CyclicBarrier(scripts.size());
+    List<Future<?>> others = new ArrayList<>();
+    for (int i = 1; i < scripts.size(); i++) {
+      List<String> script = scripts.get(i);
+      others.add(terminals.submit(() -> runTerminal(script, tag, barrier, Long.MAX_VALUE)));
+    }
+    runTerminal(scripts.get(0), tag, barrier, Long.MAX_VALUE);
+    for (Future<?> other : others) {
+      try {
+        other.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        sessionErrors.incrementAndGet();
+        e.getCause().printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Runs one terminal on a Query of its own: the script of a case terminal, or the synthetic
+   * mix if the script is empty
+   */
+  private void runTerminal(List<String> script, String tag, CyclicBarrier barrier,
+                           long deadline) {
+    try {
+      Query q = new Query();
+      try {
+        if (script.isEmpty()) {
+          runSynthetic(q, "load" + tag, deadline);
+        }
+        for (String cmd : script) {
+          if (cmd.equals(FlightServiceTest.BARRIER_COMMAND)) {
+            await(barrier);
+          } else {
+            execute(q, uniqueUsernames(cmd, tag));
+            think();
+          }
+        }
+      } finally {
+        q.closeConnection();
+      }
+    } catch (SQLException | IOException e) {
+      sessionErrors.incrementAndGet();
+      e.printStackTrace();
+      if (barrier != null) {
+        // let the other terminals of the case past their barriers
+        barrier.reset();
+      }
+    }
+  }
+
+  private void await(CyclicBarrier barrier) {
+    try {
+      barrier.await(BARRIER_TIMEOUT_SECS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (BrokenBarrierException | TimeoutException e) {
+      // another terminal failed; carry on without it
+    }
+  }
+
+  private void runSynthetic(Query q, String username, long deadline) {
+    execute(q, "create " + username + " pw " + INITIAL_BALANCE);
+    execute(q, "login " + username + " pw");
+    List<Integer> unpaid = new ArrayList<>();
+    boolean searched = false;
+
+    while (System.nanoTime() < deadline) {
+      Random random = ThreadLocalRandom.current();
+      String command = mix.higherEntry(random.nextInt(mixTotal)).getValue();
+      if (command.equals("book") && !searched) {
+        command = "search";
+      } else if (command.equals("pay") && unpaid.isEmpty()) {
+        command = "reservations";
+      }
+
+      switch (command) {
+        case "search":
+          String[] route = ROUTES[random.nextInt(ROUTES.length)];
+          execute(q, String.format("search \"%s\" \"%s\" %d %d 5", route[0], route[1],
+                                   random.nextInt(2), 1 + random.nextInt(28)));
+          searched = true;
+          break;
+        case "book":
+          String response = execute(q, "book " + random.nextInt(5));
+          if (response.startsWith("Booked flight(s)")) {
+            unpaid.add(Integer.parseInt(response.substring(response.lastIndexOf(' ') + 1).trim()));
+          }
+          break;
+        case "pay":
+          execute(q, "pay " + unpaid.remove(unpaid.size() - 1));
+          break;
+        default:
+          execute(q, command);
+      }
+      think();
+    }
+  }
+
+  /**
+   * Executes and times one command, keyed by its first word
+   */
+  private String execute(Query q, String command) {
+    String name = command.split("\\s+", 2)[0];
+    long start = System.nanoTime();
+    String response = FlightService.execute(q, command);
+    latencies.computeIfAbsent(name, k -> new LatencyHistogram())
+        .recordValue(System.nanoTime() - start);
+
+    CommandMetrics.Operation op = CommandMetrics.Operation.forCommand(name);
+    if (op != null && op.outcomeOf(response) == CommandMetrics.Outcome.FAILURE) {
+      failures.computeIfAbsent(name, k -> new AtomicLong()).incrementAndGet();
+    }
+    if (op == CommandMetrics.Operation.CREATE && response.startsWith("Created user")) {
+      String[] tokens = command.split("\\s+");
+      try {
+        initialBalances.put(tokens[1].toLowerCase(), Integer.parseInt(tokens[3]));
+      } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+        // the user's balance just isn't checked
+        malformedCreates.incrementAndGet();
+      }
+    }
+    return response;
+  }
+
+  /**
+   * Makes the usernames in create/login commands unique to one run of a case
+   */
+  static String uniqueUsernames(String cmd, String tag) {
+    String[] tokens = cmd.split("\\s+");
+    if (tokens.length > 1 && (tokens[0].equals("create") || tokens[0].equals("login"))) {
+      String name = tokens[1];
+      name = name.substring(0, Math.min(name.length(), MAX_USERNAME_LENGTH - tag.length())) + tag;
+      tokens[1] = name;
+      return String.join(" ", tokens);
+    }
+    return cmd;
+  }
+
+  private void think() {
+    if (thinkMillis > 0) {
+      sleepUntil(System.nanoTime()
+                 + TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(2 * thinkMillis)));
+    }
+  }
+
+  private static void sleepUntil(long nanoTime) {
+    long remaining;
+    while ((remaining = nanoTime - System.nanoTime()) > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void report(long elapsedNanos,
+                      Map<CommandMetrics.Operation, CommandMetrics.OperationSnapshot> before,
+                      Map<CommandMetrics.Operation, CommandMetrics.OperationSnapshot> after) {
+    long total = 0;
+    System.out.println();
+    System.out.println(String.format("%-14s %9s %9s %10s %10s %10s %10s", "command", "count",
+                                     "failed", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+    for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+      LatencyHistogram.Snapshot snap = entry.getValue().snapshot();
+      total += snap.getCount();
+      AtomicLong failed = failures.get(entry.getKey());
+      System.out.println(String.format("%-14s %9d %9d %10.2f %10.2f %10.2f %10.2f",
+                                       entry.getKey(), snap.getCount(),
+                                       failed == null ? 0 : failed.get(),
+                                       snap.valueAtPercentile(50) / 1e6,
+                                       snap.valueAtPercentile(99) / 1e6,
+                                       snap.valueAtPercentile(99.9) / 1e6,
+                                       snap.getMaxNanos() / 1e6));
+    }
+
+    long deadlocks = 0;
+    for (CommandMetrics.Operation op : CommandMetrics.Operation.values()) {
+      deadlocks += after.get(op).getCount(CommandMetrics.Outcome.DEADLOCK_RETRY)
+          - before.get(op).getCount(CommandMetrics.Outcome.DEADLOCK_RETRY);
+    }
+    System.out.println();
+    System.out.println(String.format("%d sessions, %d commands in %.1fs: %.1f commands/s",
+                                     sessions, total, elapsedNanos / 1e9,
+                                     total / (elapsedNanos / 1e9)));
+    System.out.println("Deadlock retries: " + deadlocks);
+    System.out.println("Sessions that hit errors: " + sessionErrors.get());
+    System.out.println("Unparsable create commands (balances not checked): "
+                       + malformedCreates.get());
+  }
+
+  /**
+   * Checks that no flight is overbooked, no balance went negative, and every user created by
+   * this run has exactly its initial balance minus what it paid for.
+   */
+  private void checkInvariants() throws SQLException, IOException {
+    try (Connection conn = DBConnUtils.openConnection();
+         Statement stmt = conn.createStatement()) {
+      int overbooked = 0;
+      try (ResultSet rs = stmt.executeQuery(
+               "SELECT f.fid FROM Reservations_yshubber r JOIN Flights f "
+               + "ON f.fid = r.DirectFlightId OR f.fid = r.IndirectFlightId "
+               + "GROUP BY f.fid, f.capacity HAVING COUNT(*) > f.capacity")) {
+        while (rs.next()) {
+          overbooked++;
+        }
+      }
+
+      int negative = 0;
+      int mismatched = 0;
+      try (ResultSet rs = stmt.executeQuery(
+               "SELECT u.username, u.balance, "
+               + "COALESCE(SUM(CASE WHEN r.paid = 1 THEN f1.price + COALESCE(f2.price, 0) END), 0) AS spent "
+               + "FROM Users_yshubber u LEFT JOIN Reservations_yshubber r ON r.userId = u.username "
+               + "LEFT JOIN Flights f1 ON r.DirectFlightId = f1.fid "
+               + "LEFT JOIN Flights f2 ON r.IndirectFlightId = f2.fid "
+               + "GROUP BY u.username, u.balance")) {
+        while (rs.next()) {
+          int balance = rs.getInt("balance");
+          if (balance < 0) {
+            negative++;
+          }
+          Integer initial = initialBalances.get(rs.getString("username").toLowerCase());
+          if (initial != null && initial - rs.getInt("spent") != balance) {
+            mismatched++;
+          }
+        }
+      }
+
+      System.out.println("Invariant violations: " + overbooked + " overbooked flights, "
+                         + negative + " negative balances, "
+                         + mismatched + " balances not matching payments");
+    }
+  }
+
+  private static List<String> caseFiles(String paths) throws IOException {
+    List<String> files = new ArrayList<>();
+    for (String path : paths.split(":")) {
+      try (Stream<Path> walk = Files.walk(Paths.get(path), 5, FileVisitOption.FOLLOW_LINKS)) {
+        files.addAll(walk.filter(Files::isRegularFile)
+                     .map(Path::toString)
+                     .filter(p -> p.endsWith(".test.txt"))
+                     .sorted()
+                     .collect(Collectors.toList()));
+      }
+    }
+    return files;
+  }
+}
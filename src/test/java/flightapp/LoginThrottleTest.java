@@ -0,0 +1,68 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class LoginThrottleTest extends TestCase {
+  public LoginThrottleTest() { }
+
+  private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+
+  @Test
+  public void testSketchNeverUndercountsAndRarelyOvercounts() {
+    DecayingSketch sketch = new DecayingSketch(4, 1 << 16, HOUR);
+    long now = System.nanoTime();
+    for (int i = 0; i < 20; i++) {
+      sketch.add("victim", now);
+    }
+    // far more distinct keys than counters per row
+    for (int i = 0; i < 100000; i++) {
+      sketch.add("guess" + i, now);
+    }
+    assertTrue(sketch.estimate("victim", now) >= 20);
+    int overcounted = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (sketch.estimate("never-tried" + i, now) >= 10) {
+        overcounted++;
+      }
+    }
+    assertTrue("overcounted " + overcounted, overcounted < 50);
+    assertEquals(4L * 4 * 65536, sketch.memoryBytes());
+  }
+
+  @Test
+  public void testCountsHalveEveryHalfLife() {
+    long start = System.nanoTime();
+    DecayingSketch sketch = new DecayingSketch(4, 1024, 1000, start);
+    for (int i = 0; i < 16; i++) {
+      sketch.add("alice", start);
+    }
+    assertEquals(16, sketch.estimate("alice", start));
+    assertEquals(8, sketch.estimate("alice", start + 1000));
+    assertEquals(2, sketch.estimate("alice", start + 3000));
+    assertEquals(0, sketch.estimate("alice", start + 100000));
+  }
+
+  @Test
+  public void testUsersAndSourcesAreThrottledAfterTooManyFailures() {
+    LoginThrottle throttle = new LoginThrottle(3, 5, 1024, HOUR);
+    for (int i = 0; i < 3; i++) {
+      assertFalse(throttle.isThrottled("Alice", "client1"));
+      throttle.recordFailure("Alice", "client" + i);
+    }
+    assertTrue(throttle.isThrottled("ALICE", "client9"));
+    assertFalse(throttle.isThrottled("bob", "client9"));
+
+    // one source trying many usernames
+    for (int i = 0; i < 5; i++) {
+      throttle.recordFailure("user" + i, "stuffer");
+    }
+    assertTrue(throttle.isThrottled("carol", "stuffer"));
+    assertFalse(throttle.isThrottled("carol", "client9"));
+  }
+}
@@ -0,0 +1,193 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the FlightServiceTest cases on several workers at once.
+ *
+ * Every worker gets its own Users/Reservations tables, named with the suffix
+ * "[base]_w[i]" (base is DBConnUtils.getTableSuffix(), or the default suffix), created from
+ * createTables.sql with the table names rewritten, one worker after the other before any case
+ * runs.  Workers take cases off a shared queue, clear
+ * their own tables and run the case's sessions exactly like FlightServiceTest.runTest() does,
+ * so cases on different workers never see each other's users or reservations.  Run it with
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *       -Dexec.mainClass=flightapp.ParallelCaseRunner -Dexec.args="workers=4 cases=cases/"
+ *
+ * cases= takes the same colon-separated list of files and directories as -Dtest.cases.  Prints
+ * one PASS/FAIL line per case and exits with status 1 if any case failed.
+ */
+public class ParallelCaseRunner {
+  private static final int DEFAULT_WORKERS = 4;
+
+  // Same limits as FlightServiceTest
+  private static final int MAX_SESSIONS = 5;
+  private static final int RESPONSE_WAIT_SECS = 60;
+
+  public static void main(String[] args) throws Exception {
+    int workers = DEFAULT_WORKERS;
+    for (String arg : args) {
+      if (arg.startsWith("workers=")) {
+        workers = Integer.parseInt(arg.substring("workers=".length()));
+      } else if (arg.startsWith("cases=")) {
+        System.setProperty("test.cases", arg.substring("cases=".length()));
+      } else {
+        System.out.println("Usage: ParallelCaseRunner [workers=N] [cases=path[:path...]]");
+        return;
+      }
+    }
+    if (System.getProperty("test.cases") == null) {
+      System.setProperty("test.cases", "cases");
+    }
+
+    Collection<String> files = FlightServiceTest.files();
+    ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>(files);
+    Map<String, String> failures = new TreeMap<>();
+    String base = DBConnUtils.getTableSuffix() != null ? DBConnUtils.getTableSuffix()
+                                                       : DBConnUtils.DEFAULT_TABLE_SUFFIX;
+
+    long begin = System.nanoTime();
+    List<Worker> workerList = new ArrayList<>();
+    for (int w = 0; w < workers; w++) {
+      workerList.add(new Worker(base + "_w" + w));
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(workers);
+    try {
+      // One worker at a time: createTables.sql also creates the objects that every worker
+      // shares (the Flights indexes and the connections tables) if they don't exist yet, and
+      // concurrent runs would race to create them
+      for (Worker worker : workerList) {
+        worker.createTables();
+      }
+      List<Future<?>> futures = new ArrayList<>();
+      for (Worker worker : workerList) {
+        futures.add(pool.submit(() -> {
+          worker.drain(queue, failures);
+          return null;
+        }));
+      }
+      for (Future<?> f : futures) {
+        f.get();
+      }
+    } finally {
+      pool.shutdown();
+      for (Worker worker : workerList) {
+        worker.dropTables();
+      }
+    }
+
+    for (Map.Entry<String, String> failure : failures.entrySet()) {
+      System.out.println();
+      System.out.println(failure.getValue());
+    }
+    System.out.println(String.format("%d cases, %d failed, on %d workers in %.1fs",
+                                     files.size(), failures.size(), workers,
+                                     (System.nanoTime() - begin) / 1e9));
+    System.exit(failures.isEmpty() ? 0 : 1);
+  }
+
+  /**
+   * Runs cases against one suffixed set of tables
+   */
+  private static class Worker {
+    private final String suffix;
+    private final ExecutorService sessions = Executors.newFixedThreadPool(MAX_SESSIONS);
+
+    Worker(String suffix) {
+      this.suffix = suffix;
+    }
+
+    void createTables() throws SQLException, IOException {
+      try (Connection conn = DBConnUtils.openConnection()) {
+        TestUtils.dropTablesWithOptionalSuffix(conn, suffix);
+        TestUtils.runCreateTables(conn, suffix);
+      }
+    }
+
+    void dropTables() throws SQLException, IOException {
+      sessions.shutdown();
+      try (Connection conn = DBConnUtils.openConnection()) {
+        TestUtils.dropTablesWithOptionalSuffix(conn, suffix);
+      }
+    }
+
+    void drain(ConcurrentLinkedQueue<String> queue, Map<String, String> failures)
+        throws Exception {
+      try {
+        String file;
+        while ((file = queue.poll()) != null) {
+          String failure = runCase(file);
+          System.out.println((failure == null ? "PASS " : "FAIL ") + file);
+          if (failure != null) {
+            synchronized (failures) {
+              failures.put(file, failure);
+            }
+          }
+        }
+      } finally {
+        sessions.shutdown();
+      }
+    }
+
+    /**
+     * Runs one case on this worker's tables; returns null if it passed, or a description of
+     * the failure
+     */
+    private String runCase(String file) throws Exception {
+      Query cleaner = new Query(suffix);
+      try {
+        cleaner.clearTables();
+      } finally {
+        cleaner.closeConnection();
+      }
+
+      List<FlightServiceTest.Session> parsed;
+      try {
+        parsed = FlightServiceTest.parse(file, suffix);
+      } catch (IllegalArgumentException e) {
+        return "Failed: " + file + ". " + e.getMessage();
+      }
+      try {
+        List<Future<String>> futures = new ArrayList<>();
+        for (FlightServiceTest.Session sess : parsed) {
+          futures.add(sessions.submit(sess));
+        }
+        List<String> outputs = new ArrayList<>();
+        for (Future<String> f : futures) {
+          try {
+            outputs.add(f.get(RESPONSE_WAIT_SECS * futures.size(), TimeUnit.SECONDS));
+          } catch (TimeoutException e) {
+            return "Failed: " + file + ". Timed out!";
+          }
+        }
+
+        if (FlightServiceTest.matchesAnOutcome(parsed, outputs)) {
+          return null;
+        }
+        if (FlightServiceTest.isPrivate(file)) {
+          return "Failed: " + file + ". No output since this test is private.";
+        }
+        return "Failed: " + file + ". Actual outcome was: \n"
+            + FlightServiceTest.formatOutput(outputs);
+      } finally {
+        for (FlightServiceTest.Session sess : parsed) {
+          sess.shutdown();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class PullPublisherTest extends TestCase {
+  public PullPublisherTest() { }
+
+  private static final Executor DIRECT = Runnable::run;
+
+  /**
+   * Counts up to {@code count}, remembering how far it was read
+   */
+  private static class Counter implements PullPublisher.Source<Integer> {
+    final int count;
+    int produced;
+    volatile boolean closed;
+
+    Counter(int count) {
+      this.count = count;
+    }
+
+    @Override
+    public Integer next() {
+      return produced < count ? produced++ : null;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  private static class Recorder implements Flow.Subscriber<Integer> {
+    final List<Integer> items = new ArrayList<>();
+    Flow.Subscription subscription;
+    boolean completed;
+    volatile Throwable error;
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(Integer item) {
+      items.add(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      error = throwable;
+    }
+
+    @Override
+    public void onComplete() {
+      completed = true;
+    }
+  }
+
+  @Test
+  public void testItemsArePulledOnlyAsRequested() {
+    Counter source = new Counter(100);
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    Recorder recorder = new Recorder();
+    new PullPublisher<>(DIRECT, CompletableFuture.completedFuture(null), () -> source, done)
+        .subscribe(recorder);
+    assertEquals(0, source.produced);
+
+    recorder.subscription.request(3);
+    assertEquals(List.of(0, 1, 2), recorder.items);
+    assertEquals(3, source.produced);
+
+    recorder.subscription.cancel();
+    assertTrue(source.closed);
+    assertTrue(done.isDone());
+    assertFalse(recorder.completed);
+  }
+
+  @Test
+  public void testRequestsFromOnNextKeepTheStreamGoing() {
+    Counter source = new Counter(5);
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    Recorder recorder = new Recorder() {
+      @Override
+      public void onNext(Integer item) {
+        super.onNext(item);
+        subscription.request(1);
+      }
+    };
+    new PullPublisher<>(DIRECT, CompletableFuture.completedFuture(null), () -> source, done)
+        .subscribe(recorder);
+    recorder.subscription.request(1);
+    assertEquals(List.of(0, 1, 2, 3, 4), recorder.items);
+    assertTrue(recorder.completed);
+    assertTrue(source.closed);
+    assertTrue(done.isDone());
+  }
+
+  @Test
+  public void testNothingIsReadBeforeThePreviousOperationFinishes() {
+    Counter source = new Counter(2);
+    CompletableFuture<Void> previous = new CompletableFuture<>();
+    Recorder recorder = new Recorder();
+    new PullPublisher<>(DIRECT, previous, () -> source, new CompletableFuture<>())
+        .subscribe(recorder);
+    recorder.subscription.request(Long.MAX_VALUE);
+    assertEquals(0, source.produced);
+
+    previous.completeExceptionally(new IllegalStateException("failed command"));
+    assertEquals(List.of(0, 1), recorder.items);
+    assertTrue(recorder.completed);
+  }
+
+  @Test
+  public void testInvalidRequestsAndSecondSubscribersFail() {
+    Counter source = new Counter(2);
+    PullPublisher<Integer> publisher = new PullPublisher<>(
+        DIRECT, CompletableFuture.completedFuture(null), () -> source, new CompletableFuture<>());
+    Recorder recorder = new Recorder();
+    publisher.subscribe(recorder);
+    recorder.subscription.request(0);
+    assertTrue(recorder.error instanceof IllegalArgumentException);
+
+    Recorder second = new Recorder();
+    publisher.subscribe(second);
+    assertTrue(second.error instanceof IllegalStateException);
+  }
+
+  @Test
+  public void testStalledSubscribersAreTimedOut() throws Exception {
+    Counter source = new Counter(100);
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    Recorder recorder = new Recorder();
+    new PullPublisher<>(DIRECT, CompletableFuture.completedFuture(null), () -> source, done, 50)
+        .subscribe(recorder);
+    recorder.subscription.request(2);
+    assertEquals(List.of(0, 1), recorder.items);
+
+    // the subscriber never asks for more
+    done.get(5, TimeUnit.SECONDS);
+    assertTrue(source.closed);
+    for (int i = 0; i < 100 && recorder.error == null; i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(String.valueOf(recorder.error), recorder.error instanceof TimeoutException);
+    assertEquals(2, source.produced);
+  }
+
+  @Test
+  public void testUnsubscribedPublishersLetTheNextOperationGo() throws Exception {
+    CompletableFuture<Void> previous = new CompletableFuture<>();
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    PullPublisher<Integer> publisher =
+        new PullPublisher<>(DIRECT, previous, () -> new Counter(1), done, 20);
+    Thread.sleep(100);
+    // still waiting for the previous operation
+    assertFalse(done.isDone());
+
+    previous.complete(null);
+    done.get(5, TimeUnit.SECONDS);
+    Recorder late = new Recorder();
+    publisher.subscribe(late);
+    assertTrue(late.error instanceof IllegalStateException);
+  }
+}
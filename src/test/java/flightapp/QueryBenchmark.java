@@ -0,0 +1,609 @@
+package flightapp;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Latency benchmarks for individual Query code paths, run against the database configured in
+ * dbconn.properties.  Not part of the test suite; run it with
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *       -Dexec.mainClass=flightapp.QueryBenchmark -Dexec.args="<scenario> [iterations]"
+ *
+ * Each scenario prints one line per variant it compares.  Scenarios that write data start by
+ * clearing the user and reservation tables, so don't point this at a database you care about.
+ *
+ * None of the scenarios has been run yet: they were written without access to a database and
+ * have only been compiled.  So there are no recorded results, and none of the variants they
+ * compare is known to be faster than another until their numbers are collected on a real
+ * server.
+ */
+public class QueryBenchmark {
+  private static final int DEFAULT_ITERATIONS = 1000;
+  private static final int WARMUP_ITERATIONS = 50;
+
+  // A route with both direct and one-stop itineraries in the Flights data
+  static final String SEARCH_COMMAND = "search \"Seattle WA\" \"Boston MA\" 0 1 10";
+
+  public static void main(String[] args) throws Exception {
+    String scenario = args.length > 0 ? args[0] : "";
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+
+    switch (scenario) {
+      case "trancount":
+        benchmarkTranCount(iterations);
+        break;
+      case "decode":
+        benchmarkDecode(iterations, args.length > 2 ? Integer.parseInt(args[2]) : 100000);
+        break;
+      case "onestop":
+        benchmarkConnections(iterations);
+        break;
+      case "reach":
+        benchmarkReachability(iterations);
+        break;
+      case "flyweight":
+        benchmarkFlyweight(iterations, args.length > 2 ? Integer.parseInt(args[2]) : 200);
+        break;
+      case "pay":
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        benchmarkPay(iterations, threads);
+        break;
+      case "book":
+        benchmarkBook(Math.min(iterations, MAX_BOOKINGS_PER_USER));
+        break;
+      case "shards":
+        benchmarkShards(iterations, args.length > 2 ? Integer.parseInt(args[2]) : 8);
+        break;
+      case "stream":
+        benchmarkStream(iterations);
+        break;
+      case "async":
+        benchmarkAsync(iterations, args.length > 2 ? Integer.parseInt(args[2]) : 256);
+        break;
+      default:
+        System.out.println("Usage: QueryBenchmark <scenario> [iterations]");
+        System.out.println("Scenarios:");
+        System.out.println("  trancount  search latency with the client-side vs @@TRANCOUNT"
+                           + " dangling transaction check");
+        System.out.println("  decode     per-row cost of reading flights by column label vs by"
+                           + " index, [iterations] reads of [rows] rows");
+        System.out.println("  onestop    one-stop search latency with the Flights self-join vs"
+                           + " FlightConnections (run ConnectionsRefresher first)");
+        System.out.println("  reach      footprint and false-positive rate of the search"
+                           + " reachability filter over [iterations] random searches");
+        System.out.println("  flyweight  heap held by [iterations] sessions each holding the"
+                           + " same [rows] flights, with and without FlightCache");
+        System.out.println("  pay        pay latency with the single-statement vs"
+                           + " multi-statement payment, [iterations] per thread, [threads]");
+        System.out.println("  book       booking throughput with direct inserts vs the"
+                           + " group-commit pipeline, at 1/8/64 concurrent bookers");
+        System.out.println("  shards     create/book/pay throughput on 1..N of the shards in"
+                           + " flightapp.shard_urls, [iterations] per thread, [threads]");
+        System.out.println("  stream     time to the first and to the last itinerary of searches"
+                           + " for 1..1000 itineraries, search vs searchStream");
+        System.out.println("  async      search throughput of [sessions] sessions using the"
+                           + " async API on 16 platform threads vs virtual threads");
+        return;
+    }
+  }
+
+  /**
+   * Times a search with the client-side dangling-transaction check and with the @@TRANCOUNT
+   * one.
+   */
+  static void benchmarkTranCount(int iterations) throws Exception {
+    Query q = new Query();
+    try {
+      q.setTranCountCheck(true);
+      time("search, @@TRANCOUNT check", iterations,
+           i -> FlightService.execute(q, SEARCH_COMMAND));
+      q.setTranCountCheck(false);
+      time("search, client-side check", iterations,
+           i -> FlightService.execute(q, SEARCH_COMMAND));
+    } finally {
+      q.closeConnection();
+    }
+  }
+
+  private static final String DECODE_SQL =
+      "SELECT TOP (?) fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, "
+      + "actual_time, capacity, price FROM Flights ORDER BY fid";
+
+  /**
+   * Reads the same large Flights result set decoding every row by column label (as Query used
+   * to) and by column index (as Query.FlightDecoder does), and prints the time per row.  Both
+   * times include the driver's row fetching.
+   */
+  static void benchmarkDecode(int iterations, int rows) throws Exception {
+    Query q = new Query();
+    try (PreparedStatement stmt = q.getConnection().prepareStatement(DECODE_SQL)) {
+      stmt.setInt(1, rows);
+      stmt.setFetchSize(1000);
+      long byLabel = 0;
+      long byIndex = 0;
+      long decoded = 0;
+      long checksum = 0;
+      for (int i = 0; i < iterations + WARMUP_ITERATIONS / 10; i++) {
+        boolean measured = i >= WARMUP_ITERATIONS / 10;
+        try (ResultSet rs = stmt.executeQuery()) {
+          long start = System.nanoTime();
+          while (rs.next()) {
+            checksum += rs.getInt("fid") + rs.getInt("day_of_month")
+                + rs.getString("carrier_id").length() + rs.getString("flight_num").length()
+                + rs.getString("origin_city").length() + rs.getString("dest_city").length()
+                + rs.getInt("actual_time") + rs.getInt("capacity") + rs.getInt("price");
+          }
+          if (measured) {
+            byLabel += System.nanoTime() - start;
+          }
+        }
+        try (ResultSet rs = stmt.executeQuery()) {
+          long start = System.nanoTime();
+          while (rs.next()) {
+            decoded += measured ? 1 : 0;
+            checksum += rs.getInt(1) + rs.getInt(2) + rs.getString(3).length()
+                + rs.getString(4).length() + rs.getString(5).length() + rs.getString(6).length()
+                + rs.getInt(7) + rs.getInt(8) + rs.getInt(9);
+          }
+          if (measured) {
+            byIndex += System.nanoTime() - start;
+          }
+        }
+      }
+      System.out.println(String.format("decode by label: %.1fns/row", byLabel / (double) decoded));
+      System.out.println(String.format("decode by index: %.1fns/row", byIndex / (double) decoded));
+      System.out.println("(checksum " + checksum + ")");
+    } finally {
+      q.closeConnection();
+    }
+  }
+
+  /**
+   * Times one-stop searches with the Flights self-join and with a seek on the precomputed
+   * connections.
+   */
+  static void benchmarkConnections(int iterations) throws Exception {
+    Query q = new Query();
+    try {
+      q.setUseConnectionsTable(false);
+      time("search, Flights self-join", iterations,
+           i -> FlightService.execute(q, SEARCH_COMMAND));
+      q.setUseConnectionsTable(true);
+      time("search, FlightConnections", iterations,
+           i -> FlightService.execute(q, SEARCH_COMMAND));
+    } finally {
+      q.closeConnection();
+    }
+  }
+
+  /**
+   * Loads the reachability filter, then runs random one-stop searches between known cities
+   * against the database and counts how often the filter let through a search that found
+   * nothing (false positives) or blocked one that found something (which would be a bug).
+   */
+  static void benchmarkReachability(int iterations) throws Exception {
+    Query q = new Query();
+    try {
+      long start = System.nanoTime();
+      Reachability reachability = Reachability.load(q.getConnection());
+      System.out.println(String.format("%d cities, ~%.1fKB, loaded in %.1fs",
+                                       reachability.cityCount(),
+                                       reachability.memoryBytes() / 1024.0,
+                                       (System.nanoTime() - start) / 1e9));
+
+      List<String> cities = reachability.cities();
+      Random random = new Random(42);
+      int passed = 0;
+      int falsePositives = 0;
+      int falseNegatives = 0;
+      LatencyHistogram unfiltered = new LatencyHistogram();
+      for (int i = 0; i < iterations; i++) {
+        String origin = cities.get(random.nextInt(cities.size()));
+        String dest = cities.get(random.nextInt(cities.size()));
+        int day = 1 + random.nextInt(31);
+        boolean maybe = reachability.mayHaveItineraries(origin, dest, false, day);
+
+        long t = System.nanoTime();
+        String result = q.search(origin, dest, false, day, 1);
+        unfiltered.recordValue(System.nanoTime() - t);
+        boolean found = result.startsWith("Itinerary");
+        if (maybe) {
+          passed++;
+          if (!found) {
+            falsePositives++;
+          }
+        } else if (found) {
+          falseNegatives++;
+        }
+      }
+      System.out.println(String.format(
+          "%d searches: %d let through, %d short-circuited; false positives %d (%.2f%%),"
+          + " false negatives %d; unfiltered search p50=%.3fms",
+          iterations, passed, iterations - passed, falsePositives,
+          100.0 * falsePositives / Math.max(passed, 1), falseNegatives,
+          unfiltered.snapshot().valueAtPercentile(50) / 1e6));
+    } finally {
+      q.closeConnection();
+    }
+  }
+
+  /**
+   * Reads [rows] flights once, then has [sessions] simulated sessions each decode and keep all
+   * of them, either as private copies (with their own strings, as the driver returns) or through
+   * a FlightCache, and prints the heap retained in each case.
+   */
+  static void benchmarkFlyweight(int sessions, int rows) throws Exception {
+    List<Object[]> raw = new ArrayList<>();
+    Query q = new Query();
+    try (PreparedStatement stmt = q.getConnection().prepareStatement(DECODE_SQL)) {
+      stmt.setInt(1, rows);
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          raw.add(new Object[] {rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4),
+                                rs.getString(5), rs.getString(6), rs.getInt(7), rs.getInt(8),
+                                rs.getInt(9)});
+        }
+      }
+    } finally {
+      q.closeConnection();
+    }
+
+    for (boolean shared : new boolean[] {false, true}) {
+      FlightCache cache = new FlightCache(raw.size() * 2);
+      long before = usedHeap();
+      List<List<Query.Flight>> held = new ArrayList<>();
+      for (int s = 0; s < sessions; s++) {
+        List<Query.Flight> flights = new ArrayList<>(raw.size());
+        for (Object[] row : raw) {
+          Query.Flight flight = shared ? cache.get((int) row[0], (int) row[7]) : null;
+          if (flight == null) {
+            flight = new Query.Flight((int) row[0], (int) row[1], new String((String) row[2]),
+                                      new String((String) row[3]), new String((String) row[4]),
+                                      new String((String) row[5]), (int) row[6], (int) row[7],
+                                      (int) row[8]);
+            if (shared) {
+              cache.add(flight);
+            }
+          }
+          flights.add(flight);
+        }
+        held.add(flights);
+      }
+      long retained = usedHeap() - before;
+      System.out.println(String.format("%s: %.1fMB retained by %d sessions x %d flights",
+                                       shared ? "FlightCache" : "per-session copies",
+                                       retained / (1024.0 * 1024.0), held.size(), raw.size()));
+    }
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * Every thread repeatedly creates a fresh user, books a flight and pays for it; only the pay
+   * command is timed, with the single-statement and with the multi-statement pay path.
+   */
+  static void benchmarkPay(int iterations, int threads) throws Exception {
+    for (boolean singleStatement : new boolean[] {false, true}) {
+      clearTables();
+      LatencyHistogram histogram = new LatencyHistogram();
+      AtomicInteger failedBookings = new AtomicInteger();
+      long elapsed = runConcurrently(threads, iterations, (thread, i) -> {
+        Query q = new Query();
+        try {
+          q.setSingleStatementPay(singleStatement);
+          String user = "pay" + thread + "_" + i;
+          FlightService.execute(q, "create " + user + " pw 100000");
+          FlightService.execute(q, "login " + user + " pw");
+          // spread the bookings over days and itineraries so flights don't fill up
+          FlightService.execute(q, "search \"Seattle WA\" \"Boston MA\" 0 "
+                                   + (i % MAX_BOOKINGS_PER_USER + 1) + " 10");
+          String booked = FlightService.execute(q, "book " + (thread % 10));
+          if (!booked.startsWith("Booked")) {
+            // nothing to pay for; counted rather than timed
+            failedBookings.incrementAndGet();
+            return;
+          }
+          String rid = booked.substring(booked.lastIndexOf(' ') + 1).trim();
+
+          long start = System.nanoTime();
+          FlightService.execute(q, "pay " + rid);
+          histogram.recordValue(System.nanoTime() - start);
+        } finally {
+          q.closeConnection();
+        }
+      });
+      String label = (singleStatement ? "pay, single statement" : "pay, multi-statement")
+          + " x" + threads;
+      System.out.println(format(label, histogram.snapshot(), elapsed)
+                         + " failed bookings=" + failedBookings.get());
+    }
+  }
+
+  // Users can book at most one reservation per day of the month
+  private static final int MAX_BOOKINGS_PER_USER = 28;
+
+  /**
+   * Each booker is one logged-in user booking one itinerary per day, so only the book command
+   * is timed.  Compares plain autocommitted inserts with the group-commit pipeline at several
+   * batch settings.
+   */
+  static void benchmarkBook(int bookingsPerUser) throws Exception {
+    int[][] pipelineSettings = {{0, 0}, {16, 1}, {64, 2}, {256, 5}};  // {batch size, linger ms}
+    for (int bookers : new int[] {1, 8, 64}) {
+      for (int[] setting : pipelineSettings) {
+        clearTables();
+        BookingPipeline pipeline = setting[0] == 0 ? null
+                                                   : new BookingPipeline(setting[0], setting[1]);
+        List<Query> sessions = new ArrayList<>();
+        try {
+          for (int b = 0; b < bookers; b++) {
+            Query q = new Query();
+            sessions.add(q);
+            q.setBookingPipeline(pipeline);
+            FlightService.execute(q, "create book" + b + " pw 100000");
+            FlightService.execute(q, "login book" + b + " pw");
+          }
+
+          LatencyHistogram histogram = new LatencyHistogram();
+          long elapsed = runConcurrently(bookers, bookingsPerUser, (booker, i) -> {
+            Query q = sessions.get(booker);
+            // spread bookers over the ten returned itineraries so flights don't fill up
+            FlightService.execute(q, "search \"Seattle WA\" \"Boston MA\" 0 " + (i + 1) + " 10");
+            long start = System.nanoTime();
+            FlightService.execute(q, "book " + (booker % 10));
+            histogram.recordValue(System.nanoTime() - start);
+          });
+          String label = setting[0] == 0
+              ? "book, direct insert x" + bookers
+              : "book, pipeline " + setting[0] + "/" + setting[1] + "ms x" + bookers;
+          System.out.println(format(label, histogram.snapshot(), elapsed));
+        } finally {
+          for (Query q : sessions) {
+            q.closeConnection();
+          }
+          if (pipeline != null) {
+            pipeline.close();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Every thread repeatedly creates a fresh user who books and pays for one flight, first with
+   * the primary alone and then with each additional configured shard.
+   */
+  static void benchmarkShards(int iterations, int threads) throws Exception {
+    List<String> urls = Shards.configuredURLs();
+    for (int n = 1; n <= urls.size() + 1; n++) {
+      List<String> used = urls.subList(0, n - 1);
+      clearTables();
+      long elapsed = runConcurrently(threads, iterations, (thread, i) -> {
+        Query q = new Query();
+        try {
+          q.setShards(new Shards(q.getConnection(), used, DBConnUtils.DEFAULT_TABLE_SUFFIX));
+          String user = "shard" + thread + "_" + i;
+          FlightService.execute(q, "create " + user + " pw 100000");
+          FlightService.execute(q, "login " + user + " pw");
+          FlightService.execute(q, "search \"Seattle WA\" \"Boston MA\" 0 "
+                                   + (i % MAX_BOOKINGS_PER_USER + 1) + " 10");
+          String booked = FlightService.execute(q, "book " + (thread % 10));
+          if (booked.startsWith("Booked")) {
+            FlightService.execute(q, "pay " + booked.substring(booked.lastIndexOf(' ') + 1).trim());
+          }
+        } finally {
+          q.closeConnection();
+        }
+      });
+      System.out.println(String.format("%-40s %.1f users/s", n + " shard(s) x" + threads,
+                                       threads * iterations / (elapsed / 1e9)));
+    }
+  }
+
+  /**
+   * Compares, for growing itinerary counts, when the first and the last itinerary of a one-stop
+   * search are available with search() (both when the whole response is) and searchStream().
+   */
+  static void benchmarkStream(int iterations) throws Exception {
+    Query q = new Query();
+    try {
+      for (int count : new int[] {1, 10, 100, 1000}) {
+        LatencyHistogram blocking = new LatencyHistogram();
+        LatencyHistogram firstStreamed = new LatencyHistogram();
+        LatencyHistogram lastStreamed = new LatencyHistogram();
+        long searchNanos = 0;
+        long streamNanos = 0;
+        for (int i = 0; i < iterations + WARMUP_ITERATIONS; i++) {
+          boolean measured = i >= WARMUP_ITERATIONS;
+          long start = System.nanoTime();
+          q.search("Seattle WA", "Boston MA", false, 1 + i % 28, count);
+          long searched = System.nanoTime() - start;
+
+          long[] first = {0};
+          CompletableFuture<Void> done = new CompletableFuture<>();
+          long streamStart = System.nanoTime();
+          q.searchStream("Seattle WA", "Boston MA", false, 1 + i % 28, count)
+              .subscribe(new Flow.Subscriber<Query.Itinerary>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                  subscription.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(Query.Itinerary item) {
+                  if (first[0] == 0) {
+                    first[0] = System.nanoTime() - streamStart;
+                  }
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                  done.completeExceptionally(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                  done.complete(null);
+                }
+              });
+          done.join();
+          if (measured) {
+            blocking.recordValue(searched);
+            firstStreamed.recordValue(first[0]);
+            lastStreamed.recordValue(System.nanoTime() - streamStart);
+            searchNanos += searched;
+            streamNanos += System.nanoTime() - streamStart;
+          }
+        }
+        System.out.println(format("search " + count + ", whole response", blocking.snapshot(),
+                                  searchNanos));
+        System.out.println(format("stream " + count + ", first itinerary",
+                                  firstStreamed.snapshot(), streamNanos));
+        System.out.println(format("stream " + count + ", last itinerary",
+                                  lastStreamed.snapshot(), streamNanos));
+      }
+    } finally {
+      q.closeConnection();
+    }
+  }
+
+  /**
+   * Keeps one searchAsync() in flight per session, [iterations] per session, and prints the
+   * throughput along with the peak number of live threads, first with a small fixed pool and
+   * then (on JDK 21+) with a virtual thread per operation.
+   */
+  static void benchmarkAsync(int iterations, int sessionCount) throws Exception {
+    List<Query> sessions = new ArrayList<>();
+    try {
+      for (int s = 0; s < sessionCount; s++) {
+        sessions.add(new Query());
+      }
+      ExecutorService[] executors = {
+        AsyncExecutors.newFixedThreadPool(16), AsyncExecutors.newVirtualThreadExecutor()
+      };
+      String[] labels = {"async, 16 platform threads", "async, virtual threads"};
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      for (int e = 0; e < executors.length; e++) {
+        if (executors[e] == null) {
+          System.out.println(labels[e] + ": not supported by this JDK");
+          continue;
+        }
+        threads.resetPeakThreadCount();
+        long begin = System.nanoTime();
+        List<CompletableFuture<CommandResult>> last = new ArrayList<>();
+        for (Query q : sessions) {
+          q.setAsyncExecutor(executors[e]);
+          CompletableFuture<CommandResult> f = null;
+          for (int i = 0; i < iterations; i++) {
+            // each session's operations run one after the other anyway
+            f = q.searchAsync("Seattle WA", "Boston MA", false, 1 + i % 28, 10);
+          }
+          last.add(f);
+        }
+        CompletableFuture.allOf(last.toArray(new CompletableFuture<?>[0])).join();
+        long elapsed = System.nanoTime() - begin;
+        System.out.println(String.format("%-40s %.1f searches/s, peak %d live threads",
+                                         labels[e] + " x" + sessionCount,
+                                         sessionCount * iterations / (elapsed / 1e9),
+                                         threads.getPeakThreadCount()));
+        executors[e].shutdown();
+      }
+    } finally {
+      for (Query q : sessions) {
+        q.closeConnection();
+      }
+    }
+  }
+
+  /**
+   * One iteration of a concurrent benchmark
+   */
+  interface Task {
+    void run(int thread, int iteration) throws Exception;
+  }
+
+  /**
+   * Runs {@code task} {@code iterations} times on each of {@code threads} threads and returns
+   * the wall-clock time taken, in nanoseconds.
+   */
+  static long runConcurrently(int threads, int iterations, Task task) throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      long begin = System.nanoTime();
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        int thread = t;
+        futures.add(pool.submit(() -> {
+          for (int i = 0; i < iterations; i++) {
+            task.run(thread, i);
+          }
+          return null;
+        }));
+      }
+      for (Future<?> f : futures) {
+        f.get();
+      }
+      return System.nanoTime() - begin;
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  static void clearTables() throws Exception {
+    Query q = new Query();
+    try {
+      q.clearTables();
+    } finally {
+      q.closeConnection();
+    }
+  }
+
+  /**
+   * Runs {@code op} for some warmup iterations, then times {@code iterations} more and prints
+   * the latency distribution.
+   */
+  static LatencyHistogram.Snapshot time(String label, int iterations, IntConsumer op) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      op.accept(i);
+    }
+    LatencyHistogram histogram = new LatencyHistogram();
+    long begin = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      long start = System.nanoTime();
+      op.accept(i);
+      histogram.recordValue(System.nanoTime() - start);
+    }
+    long elapsed = System.nanoTime() - begin;
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    System.out.println(format(label, snapshot, elapsed));
+    return snapshot;
+  }
+
+  static String format(String label, LatencyHistogram.Snapshot snapshot, long elapsedNanos) {
+    return String.format("%-40s n=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms %.1f ops/s",
+                         label, snapshot.getCount(), snapshot.getMeanNanos() / 1e6,
+                         snapshot.valueAtPercentile(50) / 1e6,
+                         snapshot.valueAtPercentile(99) / 1e6,
+                         snapshot.getMaxNanos() / 1e6,
+                         snapshot.getCount() / (Math.max(elapsedNanos, 1) / 1e9));
+  }
+}
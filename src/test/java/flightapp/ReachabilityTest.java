@@ -0,0 +1,102 @@
+package flightapp;
+
+import static flightapp.FakeDatabase.row;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class ReachabilityTest extends TestCase {
+  public ReachabilityTest() { }
+
+  @Test
+  public void testDirectAndOneStop() {
+    Reachability r = new Reachability.Builder()
+        .add(1, "Seattle WA", "Chicago IL", true)
+        .add(1, "Chicago IL", "Boston MA", true)
+        .add(2, "Seattle WA", "Boston MA", true)
+        .build();
+
+    assertTrue(r.mayHaveItineraries("Seattle WA", "Chicago IL", true, 1));
+    assertFalse(r.mayHaveItineraries("Seattle WA", "Boston MA", true, 1));
+    assertTrue(r.mayHaveItineraries("Seattle WA", "Boston MA", false, 1));
+    assertTrue(r.mayHaveItineraries("Seattle WA", "Boston MA", true, 2));
+    // legs on different days don't connect, and direction matters
+    assertFalse(r.mayHaveItineraries("Seattle WA", "Boston MA", false, 3));
+    assertFalse(r.mayHaveItineraries("Boston MA", "Seattle WA", false, 1));
+  }
+
+  @Test
+  public void testCanceledLegsOnlyCountForDirectFlights() {
+    Reachability r = new Reachability.Builder()
+        .add(5, "Seattle WA", "Chicago IL", false)
+        .add(5, "Chicago IL", "Boston MA", true)
+        .build();
+
+    assertTrue(r.mayHaveItineraries("Seattle WA", "Chicago IL", true, 5));
+    assertFalse(r.mayHaveItineraries("Seattle WA", "Boston MA", false, 5));
+  }
+
+  @Test
+  public void testCityNamesMatchLikeTheDatabase() {
+    Reachability r = new Reachability.Builder().add(1, "Seattle WA", "Chicago IL", true).build();
+
+    assertTrue(r.mayHaveItineraries("seattle wa", "CHICAGO IL  ", true, 1));
+    assertFalse(r.mayHaveItineraries("Seattle", "Chicago IL", true, 1));
+    assertFalse(r.mayHaveItineraries("Seattle WA", "Chicago IL", true, 40));
+  }
+
+  @Test
+  public void testManyCities() {
+    // more than 64 cities, so rows span several words
+    Reachability.Builder builder = new Reachability.Builder();
+    for (int i = 0; i < 199; i++) {
+      builder.add(7, "City" + i, "City" + (i + 1), true);
+    }
+    Reachability r = builder.build();
+
+    assertTrue(r.mayHaveItineraries("City0", "City2", false, 7));
+    assertTrue(r.mayHaveItineraries("City150", "City152", false, 7));
+    assertFalse(r.mayHaveItineraries("City0", "City3", false, 7));
+    assertFalse(r.mayHaveItineraries("City199", "City0", false, 7));
+  }
+
+  @Test
+  public void testReloadedWhenTheWatcherSeesFlightsChange() throws SQLException, IOException {
+    AtomicReference<List<Map<String, Object>>> pairs = new AtomicReference<>(
+        Collections.singletonList(row("day_of_month", 1, "origin_city", "Seattle WA",
+                                      "dest_city", "Chicago IL", "has_open", 1)));
+    AtomicInteger checksum = new AtomicInteger(17);
+    FakeDatabase db = new FakeDatabase()
+        .answer("FROM Flights GROUP BY", params -> pairs.get())
+        .answer("CHECKSUM_AGG",
+                params -> Collections.singletonList(row("flights", 1, "checksum",
+                                                        checksum.get())));
+    FlightsWatcher watcher = new FlightsWatcher(url -> db.connection(), db.connection());
+    Reachability r = Reachability.load(db.connection());
+    watcher.addListener(r::reload);
+
+    pairs.set(Arrays.asList(
+        row("day_of_month", 1, "origin_city", "Seattle WA", "dest_city", "Chicago IL",
+            "has_open", 1),
+        row("day_of_month", 1, "origin_city", "Chicago IL", "dest_city", "Boston MA",
+            "has_open", 1)));
+    // the reloaded pairs aren't read until the checksum changes
+    assertFalse(watcher.check());
+    assertFalse(r.mayHaveItineraries("Seattle WA", "Boston MA", false, 1));
+
+    checksum.set(42);
+    assertTrue(watcher.check());
+    assertTrue(r.mayHaveItineraries("Seattle WA", "Boston MA", false, 1));
+    assertFalse(watcher.check());
+  }
+}
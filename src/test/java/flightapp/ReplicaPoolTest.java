@@ -0,0 +1,201 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class ReplicaPoolTest extends TestCase {
+  public ReplicaPoolTest() { }
+
+  /**
+   * A fake replica: reports its redo position, and fails every other query while it's down
+   */
+  private static class FakeReplica {
+    volatile BigDecimal position;
+    volatile boolean down;
+    final AtomicInteger opens = new AtomicInteger();
+    final AtomicInteger positionQueries = new AtomicInteger();
+    final AtomicInteger closes = new AtomicInteger();
+
+    FakeReplica(long position) {
+      this.position = BigDecimal.valueOf(position);
+    }
+
+    Connection open(String serverURL) {
+      opens.incrementAndGet();
+      return (Connection) Proxy.newProxyInstance(
+          ReplicaPoolTest.class.getClassLoader(), new Class<?>[] {Connection.class},
+          (proxy, method, args) -> {
+            switch (method.getName()) {
+              case "prepareStatement":
+                return statement((String) args[0]);
+              case "close":
+                closes.incrementAndGet();
+                return null;
+              default:
+                return null;
+            }
+          });
+    }
+
+    private PreparedStatement statement(String sql) {
+      return (PreparedStatement) Proxy.newProxyInstance(
+          ReplicaPoolTest.class.getClassLoader(), new Class<?>[] {PreparedStatement.class},
+          (proxy, method, args) -> {
+            if (!method.getName().equals("executeQuery")) {
+              return null;
+            }
+            if (sql.equals(ReplicaPool.REPLICA_POSITION_SQL)) {
+              positionQueries.incrementAndGet();
+              return singleValue(position);
+            }
+            if (down) {
+              throw new SQLException("replica is down");
+            }
+            return singleValue(BigDecimal.ONE);
+          });
+    }
+  }
+
+  private static ResultSet singleValue(BigDecimal value) {
+    AtomicInteger rows = new AtomicInteger(value != null ? 1 : 0);
+    return (ResultSet) Proxy.newProxyInstance(
+        ReplicaPoolTest.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "next":
+              return rows.getAndDecrement() > 0;
+            case "getBigDecimal":
+              return value;
+            default:
+              return null;
+          }
+        });
+  }
+
+  /**
+   * A primary whose commit position query returns {@code position}, or no row if it's null
+   */
+  private static Connection fakePrimary(BigDecimal position) {
+    return fakePrimary(position, new AtomicInteger());
+  }
+
+  /**
+   * Like fakePrimary(position), counting the commit position queries in {@code asked}
+   */
+  private static Connection fakePrimary(BigDecimal position, AtomicInteger asked) {
+    PreparedStatement stmt = (PreparedStatement) Proxy.newProxyInstance(
+        ReplicaPoolTest.class.getClassLoader(), new Class<?>[] {PreparedStatement.class},
+        (proxy, method, args) -> {
+          if (!method.getName().equals("executeQuery")) {
+            return null;
+          }
+          asked.incrementAndGet();
+          return singleValue(position);
+        });
+    return (Connection) Proxy.newProxyInstance(
+        ReplicaPoolTest.class.getClassLoader(), new Class<?>[] {Connection.class},
+        (proxy, method, args) -> method.getName().equals("prepareStatement") ? stmt : null);
+  }
+
+  /**
+   * Reads one value through the lease, or "primary" if the read was sent to the primary
+   */
+  private static String readOnce(ReplicaPool pool, BigDecimal minPosition) throws SQLException {
+    return pool.read(minPosition, lease -> {
+      if (lease == null) {
+        return "primary";
+      }
+      try (ResultSet rs = lease.prepare("SELECT 1").executeQuery()) {
+        rs.next();
+        return "replica";
+      }
+    });
+  }
+
+  @Test
+  public void testReadsGoToAReplicaAndTheLeaseIsReturned() throws SQLException {
+    FakeReplica replica = new FakeReplica(100);
+    ReplicaPool pool = new ReplicaPool(Collections.singletonList("replica1"), 1, replica::open);
+
+    assertEquals("replica", readOnce(pool, null));
+    assertEquals("replica", readOnce(pool, null));
+    assertEquals(1, replica.opens.get());
+    assertEquals(0, replica.positionQueries.get());
+
+    ReplicaPool.Lease lease = pool.acquire();
+    assertNotNull(lease);
+    assertEquals("primary", readOnce(pool, null));
+    lease.close();
+  }
+
+  @Test
+  public void testReadsWaitForTheReplicaToReachTheWrite() throws SQLException {
+    FakeReplica replica = new FakeReplica(100);
+    ReplicaPool pool = new ReplicaPool(Collections.singletonList("replica1"), 1, replica::open);
+
+    assertEquals("primary", readOnce(pool, BigDecimal.valueOf(150)));
+    replica.position = BigDecimal.valueOf(150);
+    assertEquals("replica", readOnce(pool, BigDecimal.valueOf(150)));
+
+    // an older position is known to be reached without asking again
+    int asked = replica.positionQueries.get();
+    assertEquals("replica", readOnce(pool, BigDecimal.valueOf(120)));
+    assertEquals(asked, replica.positionQueries.get());
+
+    assertEquals("primary", readOnce(pool, ReplicaPool.PRIMARY_ONLY));
+  }
+
+  @Test
+  public void testAFailedReplicaReadIsRetriedOnThePrimary() throws SQLException {
+    FakeReplica replica = new FakeReplica(100);
+    ReplicaPool pool = new ReplicaPool(Collections.singletonList("replica1"), 1, replica::open);
+
+    replica.down = true;
+    assertEquals("primary", readOnce(pool, null));
+    assertEquals(1, replica.closes.get());
+
+    // the discarded connection is reopened on the next read
+    replica.down = false;
+    assertEquals("replica", readOnce(pool, null));
+    assertEquals(2, replica.opens.get());
+  }
+
+  @Test
+  public void testCommitPosition() {
+    ReplicaPool pool = new ReplicaPool(Collections.singletonList("replica1"), 1,
+                                       new FakeReplica(0)::open);
+    assertEquals(BigDecimal.valueOf(42), pool.commitPosition(fakePrimary(BigDecimal.valueOf(42))));
+    assertSame(ReplicaPool.PRIMARY_ONLY, pool.commitPosition(fakePrimary(null)));
+    assertTrue(ReplicaPool.PRIMARY_ONLY.compareTo(new BigDecimal("9999999999999999999999999")) > 0);
+  }
+
+  @Test
+  public void testAPrimaryWithoutPositionsIsOnlyAskedOnce() throws SQLException {
+    FakeReplica replica = new FakeReplica(100);
+    ReplicaPool pool = new ReplicaPool(Collections.singletonList("replica1"), 1, replica::open);
+    AtomicInteger asked = new AtomicInteger();
+    Connection primary = fakePrimary(null, asked);
+
+    assertSame(ReplicaPool.PRIMARY_ONLY, pool.commitPosition(primary));
+    assertSame(ReplicaPool.PRIMARY_ONLY, pool.commitPosition(primary));
+    assertEquals(1, asked.get());
+
+    // such reads go straight to the primary, without asking the replica where it is
+    assertEquals("primary", readOnce(pool, ReplicaPool.PRIMARY_ONLY));
+    assertEquals(0, replica.opens.get());
+    assertEquals(0, replica.positionQueries.get());
+  }
+}
@@ -0,0 +1,50 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class ReservationsCacheTest extends TestCase {
+  public ReservationsCacheTest() { }
+
+  @Test
+  public void testUsernamesAreCaseInsensitive() {
+    ReservationsCache cache = new ReservationsCache(1 << 20);
+    String key = ReservationsCache.key("test", "Alice");
+    cache.put(key, "No reservations found\n", cache.version(key));
+    assertEquals("No reservations found\n", cache.get(ReservationsCache.key("test", "aLICE")));
+    assertNull(cache.get(ReservationsCache.key("other", "alice")));
+  }
+
+  @Test
+  public void testListingReadBeforeAWriteIsNotCached() {
+    ReservationsCache cache = new ReservationsCache(1 << 20);
+    String key = ReservationsCache.key("test", "alice");
+    long version = cache.version(key);
+    // another session books while this one is reading the old listing
+    cache.invalidate(key);
+    cache.put(key, "No reservations found\n", version);
+    assertNull(cache.get(key));
+
+    cache.put(key, "Reservation 1 paid: false:\n", cache.version(key));
+    cache.invalidate(key);
+    assertNull(cache.get(key));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedListingsAreEvicted() {
+    ReservationsCache cache = new ReservationsCache(2000);
+    for (int i = 0; i < 100; i++) {
+      String key = ReservationsCache.key("test", "user" + i);
+      cache.put(key, "Reservation " + i + " paid: false:\n", cache.version(key));
+      // keep user0 in use
+      assertTrue(cache.get(ReservationsCache.key("test", "user0")) != null);
+      assertTrue(cache.bytes() <= 2000);
+    }
+    assertTrue(cache.size() < 100);
+    assertNull(cache.get(ReservationsCache.key("test", "user1")));
+  }
+}
@@ -0,0 +1,54 @@
+package flightapp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class ResponseBuilderTest extends TestCase {
+  public ResponseBuilderTest() { }
+
+  @Test
+  public void testMatchesStringConcatenation() {
+    ResponseBuilder out = new ResponseBuilder(1);
+    StringBuilder expected = new StringBuilder();
+    int[] values = {0, 7, -7, 42, 1000, Integer.MAX_VALUE, Integer.MIN_VALUE};
+    for (int value : values) {
+      out.append("Itinerary ").append(value).append(": ").append(value < 0).append('\n');
+      expected.append("Itinerary ").append(value).append(": ").append(value < 0).append('\n');
+    }
+    out.append("Origin: São Paulo SP").append('\n');
+    expected.append("Origin: São Paulo SP").append('\n');
+
+    assertEquals(expected.toString(), out.toString());
+    assertArrayEquals(expected.toString().getBytes(StandardCharsets.UTF_8), out.toByteArray());
+  }
+
+  @Test
+  public void testFlightLinesAreRerenderedWhenCapacityChanges() {
+    FlightLines lines = new FlightLines(10);
+    AtomicInteger renders = new AtomicInteger();
+    byte[] first = lines.line(1, 5, () -> "Capacity: 5 #" + renders.incrementAndGet());
+    assertSame(first, lines.line(1, 5, () -> "Capacity: 5 #" + renders.incrementAndGet()));
+    assertEquals(1, renders.get());
+
+    byte[] changed = lines.line(1, 4, () -> "Capacity: 4 #" + renders.incrementAndGet());
+    assertEquals("Capacity: 4 #2", new String(changed, StandardCharsets.UTF_8));
+    assertSame(changed, lines.line(1, 4, () -> "unused"));
+    assertEquals(1, lines.size());
+  }
+
+  @Test
+  public void testFlightLinesStopCachingWhenFull() {
+    FlightLines lines = new FlightLines(2);
+    for (int fid = 0; fid < 5; fid++) {
+      String line = "ID: " + fid;
+      assertEquals(line, new String(lines.line(fid, 1, () -> line), StandardCharsets.UTF_8));
+    }
+    assertEquals(2, lines.size());
+  }
+}
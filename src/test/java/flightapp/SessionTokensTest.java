@@ -0,0 +1,78 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class SessionTokensTest extends TestCase {
+  public SessionTokensTest() { }
+
+  private static final long NOW = 1_700_000_000L;
+
+  private final Map<String, byte[]> users = new HashMap<>();
+
+  private String verify(SessionTokens tokens, String suffix, String token, long nowSecs)
+      throws SQLException {
+    return tokens.verify(suffix, token, users::get, nowSecs);
+  }
+
+  @Override
+  protected void setUp() {
+    users.put("Alice:1", new byte[] {1, 2, 3});
+    users.put("alice", new byte[] {4, 5, 6});
+    users.put("bob", new byte[] {7, 8, 9});
+  }
+
+  @Test
+  public void testTokensResumeTheirUserUntilTheyExpire() throws SQLException {
+    SessionTokens tokens = new SessionTokens(null, 60);
+    String token = tokens.issue("test", "Alice:1", users.get("Alice:1"), NOW);
+    assertEquals("Alice:1", verify(tokens, "test", token, NOW));
+    assertEquals("Alice:1", verify(tokens, "test", token, NOW + 59));
+    assertNull(verify(tokens, "test", token, NOW + 60));
+    // only for the tables it was issued for
+    assertNull(verify(tokens, "other", token, NOW));
+  }
+
+  @Test
+  public void testTamperedAndForeignTokensAreRejected() throws SQLException {
+    byte[] key = new byte[32];
+    SessionTokens tokens = new SessionTokens(key, 60);
+    String token = tokens.issue("test", "alice", users.get("alice"), NOW);
+    String[] parts = token.split("\\.");
+
+    // same signature with someone else's name
+    String bob = new SessionTokens(key, 60).issue("test", "bob", users.get("bob"), NOW)
+        .split("\\.")[0];
+    assertNull(verify(tokens, "test", bob + "." + parts[1], NOW));
+    assertNull(verify(tokens, "test", parts[0], NOW));
+    assertNull(verify(tokens, "test", parts[0] + ".%%%", NOW));
+
+    byte[] otherKey = Arrays.copyOf(key, 32);
+    otherKey[0] = 1;
+    assertNull(verify(new SessionTokens(otherKey, 60), "test", token, NOW));
+    // a process with the same secret accepts it
+    assertEquals("alice", verify(new SessionTokens(key, 60), "test", token, NOW));
+  }
+
+  @Test
+  public void testTokensStopWorkingWhenTheirUserIsDeletedOrRecreated() throws SQLException {
+    byte[] key = new byte[32];
+    SessionTokens tokens = new SessionTokens(key, 60);
+    String token = tokens.issue("test", "alice", users.get("alice"), NOW);
+
+    // re-created with the same name, so with a new salt
+    users.put("alice", new byte[] {4, 5, 7});
+    assertNull(verify(tokens, "test", token, NOW));
+    users.remove("alice");
+    assertNull(verify(tokens, "test", token, NOW));
+    // another process with the same secret sees the same rows, so it rejects the token too
+    assertNull(verify(new SessionTokens(key, 60), "test", token, NOW));
+  }
+}
@@ -0,0 +1,192 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class ShardsTest extends TestCase {
+  public ShardsTest() { }
+
+  @Test
+  public void testSingleShardKeepsEverythingOnThePrimary() {
+    Shards shards = new Shards(null, Collections.emptyList(), "test");
+    assertEquals(1, shards.count());
+    assertEquals(0, shards.shardOf("Alice"));
+    assertEquals(0, shards.shardOfReservation(1));
+    assertEquals(0, shards.shardOfReservation(12345));
+  }
+
+  @Test
+  public void testReservationIdsEncodeTheirShard() {
+    // INSERT_BOOKING_SQL hands out shard+1, shard+1+N, shard+1+2N, ... on each shard
+    Shards shards = new Shards(null, Arrays.asList("s1", "s2"), "test");
+    for (int shard = 0; shard < shards.count(); shard++) {
+      for (int rid = shard + 1; rid < 100; rid += shards.count()) {
+        assertEquals(shard, shards.shardOfReservation(rid));
+      }
+    }
+  }
+
+  @Test
+  public void testUsersAreSpreadCaseInsensitively() {
+    Shards shards = new Shards(null, Arrays.asList("s1", "s2", "s3"), "test");
+    int[] users = new int[shards.count()];
+    for (int i = 0; i < 1000; i++) {
+      int shard = shards.shardOf("user" + i);
+      assertEquals(shard, shards.shardOf("USER" + i));
+      users[shard]++;
+    }
+    for (int count : users) {
+      assertTrue("unbalanced: " + Arrays.toString(users), count > 150);
+    }
+  }
+
+  // A flight for the fake primary to return from a direct search
+  private static final int FID = 912345;
+
+  /**
+   * A session on a fake primary and two fake shards, with a user on the last shard who has
+   * searched and can book itinerary 0
+   */
+  private static class ShardedSession {
+    final FakeDatabase[] dbs = {new FakeDatabase(), new FakeDatabase(), new FakeDatabase()};
+    final String user;
+    final Query q;
+
+    ShardedSession() throws SQLException, IOException {
+      q = new Query(dbs[0].connection(), "test");
+      Shards shards = new Shards(dbs[0].connection(), Arrays.asList("s1", "s2"), "test",
+                                 url -> dbs[Integer.parseInt(url.substring(1))].connection());
+      q.setShards(shards);
+      q.setBookingPipeline(null);
+      String name = null;
+      for (int i = 0; name == null || shards.shardOf(name) != 2; i++) {
+        name = "routed" + i;
+      }
+      user = name;
+
+      dbs[0].answer("FROM Flights", Collections.singletonList(FakeDatabase.row(
+          "fid", FID, "day_of_month", 3, "carrier_id", "AS", "flight_num", "42",
+          "origin_city", "Seattle WA", "dest_city", "Boston MA", "actual_time", 300,
+          "capacity", 10, "price", 250)));
+      dbs[2].answer("AS hashedPassword", Collections.singletonList(
+          FakeDatabase.row("hashedPassword", PasswordUtils.saltAndHashPassword("pw"))));
+    }
+
+    void createLoginAndSearch() {
+      assertEquals("Created user " + user + "\n", q.transaction_createCustomer(user, "pw", 1000));
+      assertEquals("Logged in as " + user + "\n", q.transaction_login(user, "pw"));
+      assertTrue(q.transaction_search("Seattle WA", "Boston MA", true, 3, 1)
+                 .startsWith("Itinerary 0: 1 flight(s)"));
+    }
+
+    /**
+     * Whether the shards other than the user's ran anything against the user tables
+     */
+    boolean otherShardsTouchedUserData() {
+      for (int shard = 0; shard < 2; shard++) {
+        if (dbs[shard].ran("Users_test") && !dbs[shard].executions("Users_test").stream()
+                .allMatch(e -> e.sql.startsWith("DELETE"))
+            || dbs[shard].ran("INSERT INTO Reservations_test")
+            || dbs[shard].ran("UPDATE Reservations_test")) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  @Test
+  public void testCreateLoginBookAndListGoToTheUsersShard() throws Exception {
+    ShardedSession session = new ShardedSession();
+    FakeDatabase shard = session.dbs[2];
+    // rid = shard + 1 on an empty shard
+    shard.answer("INSERT INTO Reservations_test", params -> Collections.singletonList(
+        FakeDatabase.row("rid", (Integer) params.get(5) + 1)));
+    shard.answer("FROM Reservations_test r LEFT JOIN", Collections.singletonList(
+        FakeDatabase.row("rid", 3, "paid", 0,
+                         "fid1", FID, "day_of_month1", 3, "carrier_id1", "AS",
+                         "flight_num1", "42", "origin_city1", "Seattle WA",
+                         "dest_city1", "Boston MA", "actual_time1", 300, "capacity1", 10,
+                         "price1", 250,
+                         "fid2", null, "day_of_month2", null, "carrier_id2", null,
+                         "flight_num2", null, "origin_city2", null, "dest_city2", null,
+                         "actual_time2", null, "capacity2", null, "price2", null)));
+
+    session.createLoginAndSearch();
+    assertTrue(shard.ran("INSERT INTO Users_test"));
+    assertEquals("Booked flight(s), reservation ID: 3\n", session.q.transaction_book(0));
+    List<Object> params = shard.executions("INSERT INTO Reservations_test").get(0).params;
+    assertEquals(Arrays.asList(session.user, FID, null, 3, 3, 2), params);
+
+    assertTrue(session.q.transaction_reservations().startsWith("Reservation 3 paid: false:\n"));
+    assertFalse(session.dbs.toString(), session.otherShardsTouchedUserData());
+  }
+
+  @Test
+  public void testBothPaymentPathsRunOnTheUsersShard() throws Exception {
+    for (boolean singleStatement : new boolean[] {true, false}) {
+      ShardedSession session = new ShardedSession();
+      FakeDatabase shard = session.dbs[2];
+      shard.answer("@debited", Collections.singletonList(FakeDatabase.row(
+          "status", 1, "balance", 750, "cost", 250, "fid1", FID, "fid2", null)));
+      shard.answer("AS totalCost", Collections.singletonList(FakeDatabase.row(
+          "userId", session.user, "paid", 0, "fid1", FID, "fid2", null, "totalCost", 250)));
+      shard.answer("SELECT balance FROM Users_test", Collections.singletonList(
+          FakeDatabase.row("balance", 1000)));
+      session.q.setSingleStatementPay(singleStatement);
+      session.createLoginAndSearch();
+
+      // rid 3 is on the user's shard; rid 1 is on the primary's
+      assertEquals("Paid reservation: 3 remaining balance: 750\n",
+                   session.q.transaction_pay(3));
+      assertEquals("Cannot find unpaid reservation 1 under user: " + session.user + "\n",
+                   session.q.transaction_pay(1));
+      if (!singleStatement) {
+        assertTrue(shard.ran("UPDATE Reservations_test SET paid"));
+        assertEquals(1, shard.commits.get());
+      }
+      assertFalse(session.dbs.toString(), session.otherShardsTouchedUserData());
+      assertEquals(0, session.dbs[0].commits.get());
+    }
+  }
+
+  @Test
+  public void testPipelinedBookingsGoToTheUsersShardsPipeline() throws Exception {
+    ShardedSession session = new ShardedSession();
+    FakeDatabase[] pipelineDbs = {new FakeDatabase(), new FakeDatabase(), new FakeDatabase()};
+    List<BookingPipeline> pipelines = new ArrayList<>();
+    try {
+      for (int i = 0; i < pipelineDbs.length; i++) {
+        pipelineDbs[i].answer("MAX(rid)", Collections.singletonList(
+            FakeDatabase.row("maxRid", 0)));
+        pipelines.add(new BookingPipeline(8, 0, "test", pipelineDbs[i].connection(), i, 3));
+      }
+      session.q.setBookingPipelines(pipelines);
+      session.createLoginAndSearch();
+
+      assertEquals("Booked flight(s), reservation ID: 3\n", session.q.transaction_book(0));
+      List<FakeDatabase.Execution> inserts =
+          pipelineDbs[2].executions("INSERT INTO Reservations_test");
+      assertEquals(1, inserts.size());
+      assertEquals(Arrays.asList(3, session.user, FID, null, 3), inserts.get(0).params);
+      assertFalse(pipelineDbs[0].ran("Reservations_test"));
+      assertFalse(pipelineDbs[1].ran("Reservations_test"));
+      assertFalse(session.otherShardsTouchedUserData());
+    } finally {
+      for (BookingPipeline pipeline : pipelines) {
+        pipeline.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class StatementTimerTest extends TestCase {
+  public StatementTimerTest() { }
+
+  private static final String SQL = "SELECT fid FROM Flights WHERE origin_city = ? AND day = ?";
+
+  /**
+   * A connection whose statements return {@code rows} rows and execute updates in
+   * {@code executeMillis}
+   */
+  private static Connection fakeConnection(int rows, long executeMillis) {
+    ResultSet rs = (ResultSet) Proxy.newProxyInstance(
+        StatementTimerTest.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+        new InvocationHandler() {
+          int remaining = rows;
+
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            return method.getName().equals("next") ? remaining-- > 0 : null;
+          }
+        });
+    PreparedStatement stmt = (PreparedStatement) Proxy.newProxyInstance(
+        StatementTimerTest.class.getClassLoader(), new Class<?>[] {PreparedStatement.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "executeQuery":
+              return rs;
+            case "executeUpdate":
+              Thread.sleep(executeMillis);
+              return 1;
+            case "executeBatch":
+              Thread.sleep(executeMillis);
+              throw new SQLException("deadlock", "40001", 1205);
+            default:
+              return null;
+          }
+        });
+    return (Connection) Proxy.newProxyInstance(
+        StatementTimerTest.class.getClassLoader(), new Class<?>[] {Connection.class},
+        (proxy, method, args) -> method.getName().equals("prepareStatement") ? stmt : null);
+  }
+
+  @Test
+  public void testRoundTripsAndRowsAreCountedPerCommand() throws SQLException {
+    StatementTimer timer = new StatementTimer(Long.MAX_VALUE, new PrintWriter(new StringWriter()));
+    Connection conn = timer.wrap(fakeConnection(3, 0));
+    StatementTimer.takeCommandStats();
+
+    PreparedStatement stmt = conn.prepareStatement(SQL);
+    try (ResultSet rs = stmt.executeQuery()) {
+      while (rs.next()) {
+      }
+    }
+    stmt.executeUpdate();
+    StatementTimer.CommandStats stats = StatementTimer.takeCommandStats();
+    assertEquals(2, stats.roundTrips);
+    assertEquals(3, stats.rowsFetched);
+    assertEquals(0, StatementTimer.takeCommandStats().roundTrips);
+
+    assertTrue(timer.format(), timer.format().contains("count=2"));
+    assertTrue(stmt.equals(stmt));
+  }
+
+  @Test
+  public void testSlowStatementsAreLoggedWithTheirParameters() throws SQLException {
+    StringWriter log = new StringWriter();
+    StatementTimer timer = new StatementTimer(5000000L, new PrintWriter(log, true));
+    Connection conn = timer.wrap(fakeConnection(0, 20));
+
+    PreparedStatement stmt = conn.prepareStatement(SQL);
+    stmt.setString(1, "Seattle WA");
+    stmt.setNull(2, Types.INTEGER);
+    stmt.executeQuery();
+    assertEquals("", log.toString());
+
+    stmt.setInt(2, 14);
+    stmt.setBytes(3, new byte[16]);
+    stmt.executeUpdate();
+    String line = log.toString();
+    assertTrue(line, line.contains(SQL + " [1='Seattle WA', 2=14, 3=<16 bytes>]"));
+  }
+
+  @Test
+  public void testFailedExecutesAreCountedAndLogged() throws SQLException {
+    StringWriter log = new StringWriter();
+    StatementTimer timer = new StatementTimer(5000000L, new PrintWriter(log, true));
+    Connection conn = timer.wrap(fakeConnection(0, 20));
+    StatementTimer.startCommand();
+
+    PreparedStatement stmt = conn.prepareStatement(SQL);
+    stmt.setString(1, "Seattle WA");
+    try {
+      stmt.executeBatch();
+      fail("the batch should have failed");
+    } catch (SQLException e) {
+      assertEquals(1205, e.getErrorCode());
+    }
+    assertEquals(1, StatementTimer.takeCommandStats().roundTrips);
+    assertTrue(timer.format(), timer.format().contains("count=1"));
+    assertTrue(log.toString(), log.toString().contains(SQL + " [1='Seattle WA']"));
+  }
+
+  @Test
+  public void testEachCommandStartsFromZeroAndGetsWorkDoneForIt() throws SQLException {
+    StatementTimer timer = new StatementTimer(Long.MAX_VALUE, new PrintWriter(new StringWriter()));
+    Connection conn = timer.wrap(fakeConnection(0, 0));
+
+    // a command that threw before its counts were taken
+    conn.prepareStatement(SQL).executeUpdate();
+    StatementTimer.startCommand();
+    conn.prepareStatement(SQL).executeUpdate();
+    // eg its booking's share of a BookingPipeline batch
+    StatementTimer.addToCommand(new StatementTimer.CommandStats(2, 5));
+
+    StatementTimer.CommandStats stats = StatementTimer.takeCommandStats();
+    assertEquals(3, stats.roundTrips);
+    assertEquals(5, stats.rowsFetched);
+  }
+}
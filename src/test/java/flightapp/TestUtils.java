@@ -2,6 +2,10 @@ package flightapp;
 
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.sql.*;
 import java.util.*;
 
@@ -75,6 +79,22 @@ public class TestUtils {
     scriptRunner.runScript(reader);
   }
 
+  /**
+   * Runs createTables.sql with its table names rewritten to use the given suffix (see
+   * DBConnUtils.withTableSuffix), so that several workers can each have their own tables.
+   */
+  public static void runCreateTables(Connection conn, String suffix)
+    throws SQLException, IOException
+  {
+    String script = new String(Files.readAllBytes(Paths.get("createTables.sql")),
+                               StandardCharsets.UTF_8);
+    ScriptRunner scriptRunner = new ScriptRunner(conn);
+    scriptRunner.setStopOnError(true);
+    scriptRunner.setLogWriter(null);
+    scriptRunner.setErrorLogWriter(null);
+    scriptRunner.runScript(new StringReader(DBConnUtils.withTableSuffix(script, suffix)));
+  }
+
   public static void checkTables(Connection conn) throws SQLException, IOException {
     DatabaseMetaData metaData = conn.getMetaData();
     String schema = conn.getSchema();
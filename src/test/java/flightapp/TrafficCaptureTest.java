@@ -0,0 +1,74 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class TrafficCaptureTest extends TestCase {
+  public TrafficCaptureTest() { }
+
+  @Test
+  public void testRecordsAreReadBackAndGroupedBySession() throws IOException {
+    Path file = Files.createTempFile("capture", ".bin");
+    try {
+      try (TrafficCapture capture = new TrafficCapture(file, 1024)) {
+        long base = System.nanoTime();
+        capture.record(1, "search \"Seattle WA\" \"Boston MA\" 1 1 5", base, base + 2000000);
+        capture.record(2, "reservations", base + 1000000, base + 1500000);
+        capture.record(1, "book 0", base + 3000000, base + 4000000);
+      }
+
+      List<TrafficCapture.Record> records = TrafficCapture.read(file);
+      assertEquals(3, records.size());
+      assertEquals("search \"Seattle WA\" \"Boston MA\" 1 1 5", records.get(0).command);
+      assertEquals(2000, records.get(0).durationMicros);
+
+      Map<Integer, List<TrafficCapture.Record>> sessions = TrafficReplay.bySession(records);
+      assertEquals(2, sessions.size());
+      assertEquals(2, sessions.get(1).size());
+      assertEquals("book 0", sessions.get(1).get(1).command);
+      assertTrue(sessions.get(1).get(1).startMicros - sessions.get(1).get(0).startMicros
+                 >= 3000);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testPasswordsAreHashedConsistentlyAndNeverWritten() throws IOException {
+    Path file = Files.createTempFile("capture", ".bin");
+    try {
+      long now = System.nanoTime();
+      try (TrafficCapture capture = new TrafficCapture(file, 1024)) {
+        capture.record(1, "create alice hunter2 100", now, now);
+        capture.record(1, "login alice hunter2", now, now);
+        capture.record(2, "login alice wrongpass", now, now);
+        capture.record(3, "resume c2VjcmV0.dG9rZW4", now, now);
+      }
+
+      String contents = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+      assertFalse(contents.contains("hunter2"));
+      assertFalse(contents.contains("wrongpass"));
+      assertFalse(contents.contains("c2VjcmV0"));
+
+      List<TrafficCapture.Record> records = TrafficCapture.read(file);
+      String created = records.get(0).command.split(" ")[2];
+      assertEquals("create alice " + created + " 100", records.get(0).command);
+      assertEquals("login alice " + created, records.get(1).command);
+      assertNotEquals("login alice " + created, records.get(2).command);
+      assertTrue(records.get(3).command.startsWith("resume h"));
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package flightapp;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays a TrafficCapture file through FlightService.execute, for reproducing production
+ * performance problems against a local database.
+ *
+ * Every captured session gets its own Query (opened at its first command and closed after its
+ * last) and thread, so sessions run concurrently while each session's commands run in their
+ * captured order.  A command starts at its captured start time divided by speed=, or as soon
+ * as the session's previous command finishes if that is later; the report lists, per
+ * command, the captured and replayed latency percentiles and how far behind schedule the
+ * replay started them, so that a replay that can't keep up is visible as such.
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=flightapp.TrafficReplay \
+ *       -Dexec.args="file=capture.bin speed=4"
+ *
+ * The user and reservation tables are cleared first unless clear=false is given.  Captured
+ * passwords are hashed the same way per capture, so creates, logins and failed logins replay
+ * as they happened; captured session tokens don't verify, so resumes fail on replay.
+ */
+public class TrafficReplay {
+  private final Map<Integer, List<TrafficCapture.Record>> sessions;
+  private final double speed;
+
+  private final Map<String, LatencyHistogram> captured = new ConcurrentHashMap<>();
+  private final Map<String, LatencyHistogram> replayed = new ConcurrentHashMap<>();
+  private final Map<String, LatencyHistogram> lag = new ConcurrentHashMap<>();
+  private final AtomicInteger sessionErrors = new AtomicInteger();
+
+  TrafficReplay(List<TrafficCapture.Record> records, double speed) {
+    this.sessions = bySession(records);
+    this.speed = speed;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      String[] kv = arg.split("=", 2);
+      options.put(kv[0], kv.length > 1 ? kv[1] : "true");
+    }
+    if (!options.containsKey("file")) {
+      System.out.println("Usage: TrafficReplay file=<capture> [speed=1] [clear=true]");
+      return;
+    }
+
+    List<TrafficCapture.Record> records = TrafficCapture.read(Paths.get(options.get("file")));
+    TrafficReplay replay =
+        new TrafficReplay(records, Double.parseDouble(options.getOrDefault("speed", "1")));
+    System.out.println("Loaded " + records.size() + " commands of "
+                       + replay.sessions.size() + " sessions");
+
+    if (Boolean.parseBoolean(options.getOrDefault("clear", "true"))) {
+      QueryBenchmark.clearTables();
+    }
+    replay.run();
+  }
+
+  /**
+   * The records of each session in the order they started, sessions in the order they started
+   */
+  static Map<Integer, List<TrafficCapture.Record>> bySession(
+      List<TrafficCapture.Record> records) {
+    List<TrafficCapture.Record> sorted = new ArrayList<>(records);
+    sorted.sort(Comparator.comparingLong(r -> r.startMicros));
+    Map<Integer, List<TrafficCapture.Record>> sessions = new LinkedHashMap<>();
+    for (TrafficCapture.Record record : sorted) {
+      sessions.computeIfAbsent(record.session, k -> new ArrayList<>()).add(record);
+    }
+    return sessions;
+  }
+
+  /**
+   * Replays every session to completion, then prints the report
+   */
+  void run() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, sessions.size()));
+    long begin = System.nanoTime();
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (List<TrafficCapture.Record> session : sessions.values()) {
+        futures.add(pool.submit(() -> {
+          replaySession(session, begin);
+          return null;
+        }));
+      }
+      for (Future<?> f : futures) {
+        f.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+    report(System.nanoTime() - begin);
+  }
+
+  private void replaySession(List<TrafficCapture.Record> session, long begin) {
+    long scheduled = begin + scheduledOffsetNanos(session.get(0));
+    sleepUntil(scheduled);
+    try {
+      Query q = new Query();
+      try {
+        for (TrafficCapture.Record record : session) {
+          scheduled = begin + scheduledOffsetNanos(record);
+          sleepUntil(scheduled);
+          String name = record.command.trim().split("\\s+", 2)[0];
+          long start = System.nanoTime();
+          FlightService.execute(q, record.command);
+          long end = System.nanoTime();
+
+          histogram(replayed, name).recordValue(end - start);
+          histogram(captured, name).recordValue(TimeUnit.MICROSECONDS.toNanos(record.durationMicros));
+          histogram(lag, name).recordValue(start - scheduled);
+        }
+      } finally {
+        q.closeConnection();
+      }
+    } catch (SQLException | IOException e) {
+      sessionErrors.incrementAndGet();
+      e.printStackTrace();
+    }
+  }
+
+  private long scheduledOffsetNanos(TrafficCapture.Record record) {
+    return (long) (TimeUnit.MICROSECONDS.toNanos(record.startMicros) / speed);
+  }
+
+  private static LatencyHistogram histogram(Map<String, LatencyHistogram> histograms,
+                                            String name) {
+    return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+  }
+
+  private static void sleepUntil(long nanoTime) {
+    long remaining;
+    while ((remaining = nanoTime - System.nanoTime()) > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void report(long elapsedNanos) {
+    long total = 0;
+    System.out.println();
+    System.out.println(String.format("%-14s %9s %12s %12s %12s %12s %12s", "command", "count",
+                                     "capt p50 ms", "p50 ms", "capt p99 ms", "p99 ms",
+                                     "lag p99 ms"));
+    for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(replayed).entrySet()) {
+      LatencyHistogram.Snapshot snap = entry.getValue().snapshot();
+      LatencyHistogram.Snapshot capt = captured.get(entry.getKey()).snapshot();
+      LatencyHistogram.Snapshot late = lag.get(entry.getKey()).snapshot();
+      total += snap.getCount();
+      System.out.println(String.format("%-14s %9d %12.2f %12.2f %12.2f %12.2f %12.2f",
+                                       entry.getKey(), snap.getCount(),
+                                       capt.valueAtPercentile(50) / 1e6,
+                                       snap.valueAtPercentile(50) / 1e6,
+                                       capt.valueAtPercentile(99) / 1e6,
+                                       snap.valueAtPercentile(99) / 1e6,
+                                       late.valueAtPercentile(99) / 1e6));
+    }
+    System.out.println();
+    System.out.println(String.format("%d sessions, %d commands in %.1fs at %.1fx: %.1f commands/s",
+                                     sessions.size(), total, elapsedNanos / 1e9, speed,
+                                     total / (elapsedNanos / 1e9)));
+    System.out.println("Sessions that hit errors: " + sessionErrors.get());
+  }
+}